@@ -1,69 +1,95 @@
 package Microbiome;
 
-import processing.core.PApplet;
-
 /**
  * This is a representation of a microbiome.
+ * The state of every microbiome is kept in an AgentStore, this class holds the logic that runs on one index of it.
  */
-public class Agent {
-    private Vector2<Double> position;   //Current position of the microbiome.
-    private double angle = 0.0f;        //Current angle of the microbiome.
-    private double moveSpeed = 100.0;  //Move speed of the single microbiome. 
-    private double turnSpeed = 80.0;   //Turning speed of the single microbiome.
-
-    private int colorR = 255;            //Color R value.
-    private int colorG = 255;            //Color G value.
-    private int colorB = 255;            //Color B value.
+public final class Agent {
 
-    private int sensorSize = 1;                       //The size of the sensor.
-    private double sensorDistance = 8;                //The distance of the sensor from the position.
-    private double sensorOffsetAngle = Math.PI / 4;   //The angle offset of each sensor.
+    public static final int BORDER_SIZE = 15;     //Distance from the border of the world an agent bounces back to.
+    public static final int MIN_SIZE = 2 * BORDER_SIZE;    //Smallest width and height of a world, the borders on both sides must fit.
 
-    private final int BORDER_SIZE = 15;
+    //The ways an agent can steer after sensing.
+    public static final int KEEP = 0;           //Keep the current angle.
+    public static final int WANDER = 1;         //Turn randomly to either side.
+    public static final int TURN_RIGHT = 2;     //Turn right.
+    public static final int TURN_LEFT = 3;      //Turn left.
 
-    public Agent(Vector2<Double> position, double angle, double moveSpeed, double turnSpeed,
-     int sensorSize, double sensorDistance, double sensorOffsetAngle, int colorR, int colorG, int colorB) {
+    private Agent() {}
 
-        this.position = position;
-        this.angle = angle;
-
-        this.moveSpeed = moveSpeed;
-        this.turnSpeed = turnSpeed;
+    /**
+     * Make sure a world is large enough for the agents to stay inside the border on every side.
+     * @param what What the size belongs to, for the error message.
+     * @param width Width of the world.
+     * @param height Height of the world.
+     * @throws IllegalArgumentException If the width or the height is below MIN_SIZE.
+     */
+    public static void checkSize(String what, int width, int height){
+        if(width < MIN_SIZE || height < MIN_SIZE){
+            throw new IllegalArgumentException(what + " must be at least " + MIN_SIZE + "x" + MIN_SIZE + " pixels to keep the agents "
+                + BORDER_SIZE + " pixels from every edge, not " + width + "x" + height);
+        }
+    }
 
-        this.sensorSize = sensorSize;
-        this.sensorDistance = sensorDistance;
-        this.sensorOffsetAngle = sensorOffsetAngle;
+    /**
+     * Sense the trail of other agents.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
+     * @param sensorAngleOffset The angle offset from the curren direction.
+     * @return The sum of RGB value sensed within the sensor.
+     */
+    public static int sense(AgentStore agents, int i, TrailMap trail, double sensorAngleOffset){
+        double sensorAngle = agents.angle[i] + sensorAngleOffset;
+        double sensorDistance = agents.sensorDistance[i];
+        double sensorX = agents.x[i] + Math.cos(sensorAngle) * sensorDistance;
+        double sensorY = agents.y[i] + Math.sin(sensorAngle) * sensorDistance;
 
-        this.colorR = colorR;
-        this.colorG = colorG;
-        this.colorB = colorB;
+        return senseAt(agents, i, trail, sensorX, sensorY);
     }
 
-    public Agent(Vector2<Double> position, double angle) {
-        this.position = position;
-        this.angle = angle;
+    /**
+     * Sense the trail around a position the way an agent does,
+     * weighting each channel by its species when the store has species weights.
+     * Reads the summed area table of the trail when it has one, which gives the same sum.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
+     * @param sensorX Position X of the sensor.
+     * @param sensorY Position Y of the sensor.
+     * @return The weight sensed within the sensor.
+     */
+    public static int senseAt(AgentStore agents, int i, TrailMap trail, double sensorX, double sensorY){
+        int[][] speciesWeights = agents.speciesWeights;
+        SummedAreaTable summedArea = trail.summedArea;
+        if(summedArea != null){
+            if(speciesWeights == null) return summedArea.sum(sensorX, sensorY, agents.sensorSize[i]);
+            return summedArea.sum(sensorX, sensorY, agents.sensorSize[i], speciesWeights[agents.species[i]]);
+        }
+        if(speciesWeights == null) return senseAt(trail, sensorX, sensorY, agents.sensorSize[i]);
+        return senseAt(trail, sensorX, sensorY, agents.sensorSize[i], speciesWeights[agents.species[i]]);
     }
 
     /**
-     * Sense the trail of other agents.
-     * @param mainProgram The program that renders.
-     * @param sensorDistance The distance from the position.
-     * @param sensorAngleOffset The angle offset from the curren direction.
+     * Sense the trail around a position.
+     * @param trail The trail the agents leave.
+     * @param sensorX Position X of the sensor.
+     * @param sensorY Position Y of the sensor.
      * @param sensorSize The size of the sensor.
-     * @return The sum of RGB value sensed within the sensor..
+     * @return The sum of RGB value sensed within the sensor.
      */
-    public int sense(PApplet mainProgram, double sensorDistance, double sensorAngleOffset, int sensorSize){
-        double sensorAngle = angle + sensorAngleOffset;
-        Vector2<Double> direction = new Vector2<Double>(Math.cos(sensorAngle), Math.sin(sensorAngle));
-        Vector2<Double> sensorPos = new Vector2<Double>(position.x + direction.x * sensorDistance, position.y + direction.y * sensorDistance);
+    public static int senseAt(TrailMap trail, double sensorX, double sensorY, int sensorSize){
+        int width = trail.width;
+        int height = trail.height;
+        short[] intensity = trail.intensity;
 
         int sum = 0;
         for(int x = -sensorSize; x <= sensorSize; x++){
             for(int y = -sensorSize; y <= sensorSize; y++){
-                int pos = (sensorPos.y.intValue() + y) * GlobalSettings.CANVAS_WIDTH + (sensorPos.x.intValue() + x);
+                if(sensorX + x < 0 || sensorX + x >= width || sensorY + y < 0 || sensorY + y >= height) continue;
 
-                if(sensorPos.x + x < 0 || sensorPos.x + x >= GlobalSettings.CANVAS_WIDTH || sensorPos.y + y < 0 || sensorPos.y + y >= GlobalSettings.CANVAS_HEIGHT) continue;
-                sum += sumRGB(mainProgram.pixels[pos]);
+                int pos = ((int)sensorY + y) * width + ((int)sensorX + x);
+                sum += intensity[pos];
             }
         }
 
@@ -71,101 +97,217 @@ public class Agent {
     }
 
     /**
-     * Steer the angle according to the sensors.
-     * @param mainProgram The main program that renders.
-     * @param randomSteerStrength The random number generated.
+     * Sense the trail around a position with a weight for each channel.
+     * @param trail The trail the agents leave.
+     * @param sensorX Position X of the sensor.
+     * @param sensorY Position Y of the sensor.
+     * @param sensorSize The size of the sensor.
+     * @param weights How much the R, G and B channels count, negative to be repelled.
+     * @return The weighted sum of the channels sensed within the sensor.
      */
-    public void steer(PApplet mainProgram, double randomSteerStrength){
-        int weightForward = sense(mainProgram, sensorDistance, 0, sensorSize);
-        int weightLeft = sense(mainProgram, sensorDistance, sensorOffsetAngle, sensorSize);
-        int weightRight = sense(mainProgram, sensorDistance, -sensorOffsetAngle, sensorSize);
+    public static int senseAt(TrailMap trail, double sensorX, double sensorY, int sensorSize, int[] weights){
+        int width = trail.width;
+        int height = trail.height;
+        int[] color = trail.color;
+        int weightR = weights[0], weightG = weights[1], weightB = weights[2];
+
+        int sum = 0;
+        for(int x = -sensorSize; x <= sensorSize; x++){
+            for(int y = -sensorSize; y <= sensorSize; y++){
+                if(sensorX + x < 0 || sensorX + x >= width || sensorY + y < 0 || sensorY + y >= height) continue;
 
+                int sample = color[((int)sensorY + y) * width + ((int)sensorX + x)];
+                sum += ((sample >> 16) & 255) * weightR + ((sample >> 8) & 255) * weightG + (sample & 255) * weightB;
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Decide how to steer from the weights of the three sensors.
+     * @param weightForward The weight sensed in front.
+     * @param weightLeft The weight sensed on the left.
+     * @param weightRight The weight sensed on the right.
+     * @return One of KEEP, WANDER, TURN_RIGHT or TURN_LEFT.
+     */
+    public static int decide(int weightForward, int weightLeft, int weightRight){
         //Move forward if the weight forward is dominant.
         if(weightForward > weightLeft && weightForward > weightRight){
-            angle += 0;
+            return KEEP;
         }
         //Move randomly if the weight left and right is larger than forward.
         else if(weightForward < weightLeft && weightForward < weightRight){
-            angle += (randomSteerStrength - 0.5) * 2 * turnSpeed * GlobalSettings.DELTA_TIME;
+            return WANDER;
         }
         //Move Right
         else if(weightLeft < weightRight){
-            angle -= randomSteerStrength * turnSpeed * GlobalSettings.DELTA_TIME;
+            return TURN_RIGHT;
         }
         //Move Left
         else if(weightLeft > weightRight){
-            angle += randomSteerStrength * turnSpeed * GlobalSettings.DELTA_TIME;
+            return TURN_LEFT;
         }
+        return KEEP;
     }
 
     /**
-     * Sum the RGB values.
-     * @param sample The color int.
-     * @return The sum of RGB.
+     * Get how much the angle changes for a steering decision.
+     * @param decision One of KEEP, WANDER, TURN_RIGHT or TURN_LEFT.
+     * @param turnSpeed The turning speed of the agent.
+     * @param randomSteerStrength The random number generated.
+     * @return The change of the angle in radian.
      */
-    public int sumRGB(int sample){
-        int[] color = getColor(sample);
-        return color[0] + color[1] + color[2];
+    public static double turn(int decision, double turnSpeed, double randomSteerStrength){
+        switch(decision){
+            case WANDER:
+                return (randomSteerStrength - 0.5) * 2 * turnSpeed * GlobalSettings.DELTA_TIME;
+            case TURN_RIGHT:
+                return -randomSteerStrength * turnSpeed * GlobalSettings.DELTA_TIME;
+            case TURN_LEFT:
+                return randomSteerStrength * turnSpeed * GlobalSettings.DELTA_TIME;
+            default:
+                return 0;
+        }
     }
 
     /**
-     * Convert int color value to RGB int array.
-     * @param sample The int color value.
-     * @return Returns the RGB int array. rgb[0]=R, rgb[1]=G, rgb[2]=B. 
+     * Steer the angle according to the sensors.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
+     * @param randomSteerStrength The random number generated.
      */
-    public int[] getColor(int sample){
-        //The int value of color is represented as XRGB
-        //which is constructed in [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB]
-        int B_MASK = 255;       //[0000 0000 0000 0000 0000 0000 1111 1111]
-        int G_MASK = 255<<8;    //[0000 0000 0000 0000 1111 1111 0000 0000]
-        int R_MASK = 255<<16;   //[0000 0000 1111 1111 0000 0000 0000 0000]
-
-        //Use only single color part in bits and shift it to the right.
-        //In this way we created a set of valid RGB values.
-        int[] rgb = new int[3];
-        rgb[2] = sample & B_MASK;           //B
-        rgb[1] = (sample & G_MASK)>>8;      //G
-        rgb[0] = (sample & R_MASK)>>16;     //R
-
-        return rgb;
+    public static void steer(AgentStore agents, int i, TrailMap trail, double randomSteerStrength){
+        double sensorOffsetAngle = agents.sensorOffsetAngle[i];
+        int weightForward = sense(agents, i, trail, 0);
+        int weightLeft = sense(agents, i, trail, sensorOffsetAngle);
+        int weightRight = sense(agents, i, trail, -sensorOffsetAngle);
+
+        agents.angle[i] += turn(decide(weightForward, weightLeft, weightRight), agents.turnSpeed[i], randomSteerStrength);
     }
 
     /**
      * Move the agent.
-     * @param mainProgram The program that renders.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
+     * @param random The random number generated for this agent in this frame.
+     */
+    public static void tick(AgentStore agents, int i, TrailMap trail, double random){
+        double angle = agents.angle[i];
+        double moveSpeed = agents.moveSpeed[i];
+
+        double newX = agents.x[i] + Math.cos(angle) * moveSpeed * GlobalSettings.DELTA_TIME;
+        double newY = agents.y[i] + Math.sin(angle) * moveSpeed * GlobalSettings.DELTA_TIME;
+
+        steer(agents, i, trail, random);
+        moveTo(agents, i, trail.width, trail.height, newX, newY, random);
+    }
+
+    /**
+     * Move the agent using the fast math path.
+     * The heading is looked up once from the TrigTable, and the side sensors are found by rotating it
+     * with the precomputed sine and cosine of the sensor offset angle, so no Math.sin or Math.cos is called.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
+     * @param random The random number generated for this agent in this frame.
+     */
+    public static void tickFast(AgentStore agents, int i, TrailMap trail, double random){
+        double angle = agents.angle[i];
+        double headingX = TrigTable.cos(angle);
+        double headingY = TrigTable.sin(angle);
+
+        double moveDistance = agents.moveSpeed[i] * GlobalSettings.DELTA_TIME;
+        double newX = agents.x[i] + headingX * moveDistance;
+        double newY = agents.y[i] + headingY * moveDistance;
+
+        tickAlong(agents, i, trail, random, headingX, headingY, newX, newY);
+    }
+
+    /**
+     * Move the agent with a heading and a new position that were already worked out.
+     * The side sensors are found by rotating the heading with the precomputed sine and cosine of the sensor offset angle.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
+     * @param random The random number generated for this agent in this frame.
+     * @param headingX Cosine of the angle of the agent.
+     * @param headingY Sine of the angle of the agent.
+     * @param newX The position X the agent moves to.
+     * @param newY The position Y the agent moves to.
+     */
+    public static void tickAlong(AgentStore agents, int i, TrailMap trail, double random, double headingX, double headingY, double newX, double newY){
+        tickIn(agents, i, trail, 0, 0, trail.width, trail.height, random, headingX, headingY, newX, newY);
+    }
+
+    /**
+     * Move the agent like tickAlong, sensing a part of the world that starts at an origin instead of the whole trail,
+     * so agents of a tiled world keep their position in the world and bounce off the border of the world, not of the part.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param part The part of the trail around the agent, every sensor of the agent must fall inside it.
+     * @param originX Position X in the world of the first pixel of the part.
+     * @param originY Position Y in the world of the first pixel of the part.
+     * @param worldWidth Width of the world.
+     * @param worldHeight Height of the world.
+     * @param random The random number generated for this agent in this frame.
+     * @param headingX Cosine of the angle of the agent.
+     * @param headingY Sine of the angle of the agent.
+     * @param newX The position X the agent moves to.
+     * @param newY The position Y the agent moves to.
+     */
+    public static void tickIn(AgentStore agents, int i, TrailMap part, double originX, double originY, int worldWidth, int worldHeight,
+     double random, double headingX, double headingY, double newX, double newY){
+        double x = agents.x[i] - originX;
+        double y = agents.y[i] - originY;
+
+        //Rotate the heading by +offset for the left sensor and by -offset for the right sensor.
+        double sensorDistance = agents.sensorDistance[i];
+        double offsetCos = agents.sensorOffsetCos[i];
+        double offsetSin = agents.sensorOffsetSin[i];
+        double leftX = headingX * offsetCos - headingY * offsetSin;
+        double leftY = headingX * offsetSin + headingY * offsetCos;
+        double rightX = headingX * offsetCos + headingY * offsetSin;
+        double rightY = headingY * offsetCos - headingX * offsetSin;
+
+        int weightForward = senseAt(agents, i, part, x + headingX * sensorDistance, y + headingY * sensorDistance);
+        int weightLeft = senseAt(agents, i, part, x + leftX * sensorDistance, y + leftY * sensorDistance);
+        int weightRight = senseAt(agents, i, part, x + rightX * sensorDistance, y + rightY * sensorDistance);
+
+        agents.angle[i] += turn(decide(weightForward, weightLeft, weightRight), agents.turnSpeed[i], random);
+        moveTo(agents, i, worldWidth, worldHeight, newX, newY, random);
+    }
+
+    /**
+     * Set the new position of the agent, bouncing it off the border of the world in a random direction.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param width Width of the world.
+     * @param height Height of the world.
+     * @param newX The new position X.
+     * @param newY The new position Y.
+     * @param random The random number generated for this agent in this frame.
      */
-    public void tick(PApplet mainProgram){
-        double random = Math.random();
-        Vector2<Double> direction = new Vector2<Double>(Math.cos(angle), Math.sin(angle));
-        
-        double newX = position.x + direction.x * moveSpeed * GlobalSettings.DELTA_TIME;
-        double newY = position.y + direction.y * moveSpeed * GlobalSettings.DELTA_TIME;
-
-        steer(mainProgram, random);
-
-        if(newX < 0 || newX >= GlobalSettings.CANVAS_WIDTH || newY < 0 || newY >= GlobalSettings.CANVAS_HEIGHT){
-            newX = Math.min(GlobalSettings.CANVAS_WIDTH - BORDER_SIZE, Math.max(BORDER_SIZE, newX));
-            newY = Math.min(GlobalSettings.CANVAS_HEIGHT - BORDER_SIZE, Math.max(BORDER_SIZE, newY));
-            angle = random * 2 * Math.PI;
+    private static void moveTo(AgentStore agents, int i, int width, int height, double newX, double newY, double random){
+        if(newX < 0 || newX >= width || newY < 0 || newY >= height){
+            newX = Math.min(width - BORDER_SIZE, Math.max(BORDER_SIZE, newX));
+            newY = Math.min(height - BORDER_SIZE, Math.max(BORDER_SIZE, newY));
+            agents.angle[i] = random * 2 * Math.PI;
         }
 
-        position.x = newX;
-        position.y = newY;
+        agents.x[i] = newX;
+        agents.y[i] = newY;
     }
 
     /**
      * Draw the agent. Each agent add the value of the pixel with its color.
-     * @param mainProgram The program that renders.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
      */
-    public void draw(PApplet mainProgram){
-        
-        int originalColor = mainProgram.pixels[position.y.intValue() * GlobalSettings.CANVAS_WIDTH + position.x.intValue()];
-        int[] originalRGB = getColor(originalColor);
-
-        int finalR = Math.min(255, originalRGB[0] + colorR);
-        int finalG = Math.min(255, originalRGB[1] + colorG);
-        int finalB = Math.min(255, originalRGB[2] + colorB);
-          
-        mainProgram.pixels[position.y.intValue() * GlobalSettings.CANVAS_WIDTH + position.x.intValue()] = mainProgram.color(finalR, finalG, finalB);
+    public static void draw(AgentStore agents, int i, TrailMap trail){
+        trail.deposit((int)agents.x[i], (int)agents.y[i], agents.color[i]);
     }
 }
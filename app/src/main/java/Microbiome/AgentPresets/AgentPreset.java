@@ -26,4 +26,61 @@ public class AgentPreset {
         this.colorG = colorG;
         this.colorB = colorB;
     }
+
+    /**
+     * Creates every built in preset, in the order they are switched through.
+     * @return A new array of the presets.
+     */
+    public static AgentPreset[] createAll() {
+        return new AgentPreset[]{
+            new DefaultPreset(),
+            new BreadBug(),
+            new Vein(),
+            new Venom(),
+            new StarDust(),
+            new LiquidGem(),
+            new WaterBug(),
+            new BloodStealer(),
+            new Gene(),
+            new Virus(),
+            new Alpha(),
+            new Beta(),
+            new FireFly(),
+            new FlourBug(),
+            new Parallel(),
+            new COVID(),
+            new Cell()
+        };
+    }
+
+    /**
+     * Find a preset by its name, ignoring case and spaces.
+     * @param presets The presets to search.
+     * @param name The name of the preset.
+     * @return The preset, or null if there is none with the name.
+     */
+    public static AgentPreset find(AgentPreset[] presets, String name) {
+        String key = name.replace(" ", "");
+        for(AgentPreset preset : presets){
+            if(preset.name.replace(" ", "").equalsIgnoreCase(key)) return preset;
+        }
+        return null;
+    }
+
+    /**
+     * Find several presets by their names.
+     * @param presets The presets to search.
+     * @param names The names of the presets separated by commas.
+     * @return The presets in the order they are named.
+     * @throws IllegalArgumentException If a name has no preset.
+     */
+    public static AgentPreset[] findAll(AgentPreset[] presets, String names) {
+        String[] keys = names.split(",");
+        AgentPreset[] found = new AgentPreset[keys.length];
+        for(int i = 0; i < keys.length; i++){
+            found[i] = find(presets, keys[i].trim());
+            if(found[i] == null) throw new IllegalArgumentException("Unknown preset " + keys[i].trim());
+        }
+        return found;
+    }
 }
@@ -0,0 +1,221 @@
+package Microbiome.AgentPresets;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Presets kept in a text file, so new ones can be added without writing a class for each.
+ * <p>
+ * The file is comma separated, with a header naming the columns, one preset on each line after it.
+ * Every field of AgentPreset must have a column, in any order, and other columns are ignored,
+ * so the results of a sweep can be loaded as a catalog too. Empty lines and lines starting with # are skipped.
+ * <pre>
+ * name,moveSpeed,turnSpeed,sensorSize,sensorDistance,sensorOffsetAngle,colorR,colorG,colorB
+ * Slow Vein,60,25,1,5,0.785,20,1,1
+ * </pre>
+ */
+public final class PresetCatalog {
+
+    //The columns of a preset, in the order they are written.
+    public static final String[] FIELDS = { "name", "moveSpeed", "turnSpeed", "sensorSize", "sensorDistance",
+        "sensorOffsetAngle", "colorR", "colorG", "colorB" };
+
+    private PresetCatalog() {}
+
+    /**
+     * Get the built in presets followed by the presets of a catalog file.
+     * A preset of the file with the name of a built in one replaces it.
+     * @param file The catalog, skipped when it does not exist.
+     * @return A new array of the presets.
+     * @throws IOException If the file can not be read.
+     * @throws IllegalArgumentException If the file is not a valid catalog.
+     */
+    public static AgentPreset[] loadAll(File file) throws IOException {
+        List<AgentPreset> presets = new ArrayList<>(Arrays.asList(AgentPreset.createAll()));
+        if(!file.isFile()) return presets.toArray(new AgentPreset[0]);
+
+        for(AgentPreset preset : read(file)){
+            AgentPreset existing = AgentPreset.find(presets.toArray(new AgentPreset[0]), preset.name);
+            if(existing != null) presets.set(presets.indexOf(existing), preset);
+            else presets.add(preset);
+        }
+        return presets.toArray(new AgentPreset[0]);
+    }
+
+    /**
+     * Read the presets of a catalog file.
+     * @param file The catalog.
+     * @return The presets in the order of the file.
+     * @throws IOException If the file can not be read.
+     * @throws IllegalArgumentException If the file is not a valid catalog.
+     */
+    public static List<AgentPreset> read(File file) throws IOException {
+        List<AgentPreset> presets = new ArrayList<>();
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)){
+            int[] columns = null;       //The column of each field.
+            int lineNumber = 0;
+            String line;
+            while((line = reader.readLine()) != null){
+                lineNumber++;
+                if(line.trim().isEmpty() || line.startsWith("#")) continue;
+
+                String[] values = line.split(",", -1);
+                if(columns == null){
+                    columns = columns(values, file);
+                    continue;
+                }
+
+                AgentPreset preset = new AgentPreset("", 0, 0, 0, 0, 0, 0, 0, 0);
+                for(int f = 0; f < FIELDS.length; f++){
+                    if(columns[f] >= values.length) throw new IllegalArgumentException(file + " line " + lineNumber + ": missing " + FIELDS[f]);
+                    String value = values[columns[f]].trim();
+                    try{
+                        set(preset, FIELDS[f], value);
+                    }catch(NumberFormatException e){
+                        throw new IllegalArgumentException(file + " line " + lineNumber + ": bad " + FIELDS[f] + " \"" + value + "\"");
+                    }catch(IllegalArgumentException e){
+                        throw new IllegalArgumentException(file + " line " + lineNumber + ": " + e.getMessage());
+                    }
+                }
+                presets.add(preset);
+            }
+        }
+        return presets;
+    }
+
+    /**
+     * Add a preset at the end of a catalog file, writing the header first when the file is new.
+     * @param file The catalog.
+     * @param preset The preset to add.
+     * @throws IOException If the file can not be written.
+     */
+    public static void append(File file, AgentPreset preset) throws IOException {
+        boolean created = !file.isFile() || file.length() == 0;
+        try(Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)){
+            if(created) writer.write(header() + System.lineSeparator());
+            writer.write(line(preset) + System.lineSeparator());
+        }
+    }
+
+    /**
+     * Get the header of a catalog.
+     * @return The names of the fields separated by commas.
+     */
+    public static String header() {
+        return String.join(",", FIELDS);
+    }
+
+    /**
+     * Get the line of a preset in a catalog.
+     * @param preset The preset.
+     * @return The fields of the preset separated by commas, in the order of FIELDS.
+     */
+    public static String line(AgentPreset preset) {
+        StringBuilder line = new StringBuilder();
+        for(int f = 0; f < FIELDS.length; f++){
+            if(f > 0) line.append(',');
+            line.append(get(preset, FIELDS[f]));
+        }
+        return line.toString();
+    }
+
+    /**
+     * Get a field of a preset as text, numbers written so they read back the same.
+     * @param preset The preset.
+     * @param field One of FIELDS.
+     * @return The value of the field.
+     */
+    public static String get(AgentPreset preset, String field) {
+        switch(field){
+            case "name": return preset.name;
+            case "moveSpeed": return Double.toString(preset.moveSpeed);
+            case "turnSpeed": return Double.toString(preset.turnSpeed);
+            case "sensorSize": return Integer.toString(preset.sensorSize);
+            case "sensorDistance": return Double.toString(preset.sensorDistance);
+            case "sensorOffsetAngle": return Double.toString(preset.sensorOffsetAngle);
+            case "colorR": return Integer.toString(preset.colorR);
+            case "colorG": return Integer.toString(preset.colorG);
+            case "colorB": return Integer.toString(preset.colorB);
+            default: throw new IllegalArgumentException("Unknown preset field " + field);
+        }
+    }
+
+    /**
+     * Set a field of a preset from text.
+     * @param preset The preset.
+     * @param field One of FIELDS.
+     * @param value The value, a whole number for the sensor size and the colors.
+     * @throws NumberFormatException If the value is not a number of the type of the field.
+     * @throws IllegalArgumentException If the value is out of the range of the field, a color must be in [0, 255] and the sensor size at least 0.
+     */
+    public static void set(AgentPreset preset, String field, String value) {
+        switch(field){
+            case "name":
+                if(value.isEmpty() || value.contains(",")) throw new IllegalArgumentException("Bad preset name \"" + value + "\"");
+                preset.name = value;
+                break;
+            case "moveSpeed": preset.moveSpeed = Double.parseDouble(value); break;
+            case "turnSpeed": preset.turnSpeed = Double.parseDouble(value); break;
+            case "sensorSize":
+                int sensorSize = Integer.parseInt(value);
+                if(sensorSize < 0) throw new IllegalArgumentException("The sensor size must be at least 0, got " + sensorSize);
+                preset.sensorSize = sensorSize;
+                break;
+            case "sensorDistance": preset.sensorDistance = Double.parseDouble(value); break;
+            case "sensorOffsetAngle": preset.sensorOffsetAngle = Double.parseDouble(value); break;
+            case "colorR": preset.colorR = channel(field, value); break;
+            case "colorG": preset.colorG = channel(field, value); break;
+            case "colorB": preset.colorB = channel(field, value); break;
+            default: throw new IllegalArgumentException("Unknown preset field " + field);
+        }
+    }
+
+    /**
+     * Copy a preset under another name.
+     * @param preset The preset to copy.
+     * @param name The name of the copy.
+     * @return The copy.
+     */
+    public static AgentPreset copy(AgentPreset preset, String name) {
+        return new AgentPreset(name, preset.moveSpeed, preset.turnSpeed, preset.sensorSize, preset.sensorDistance,
+            preset.sensorOffsetAngle, preset.colorR, preset.colorG, preset.colorB);
+    }
+
+    /**
+     * Read a color channel, which is packed into 8 bits.
+     * @param field The field, for the error message.
+     * @param value The value.
+     * @return The channel in [0, 255].
+     */
+    private static int channel(String field, String value) {
+        int channel = Integer.parseInt(value);
+        if(channel < 0 || channel > 255) throw new IllegalArgumentException(field + " must be in [0, 255], got " + channel);
+        return channel;
+    }
+
+    /**
+     * Find the column of every field in a header.
+     * @param header The names of the columns.
+     * @param file The catalog, for the error message.
+     * @return The column of each field of FIELDS.
+     */
+    private static int[] columns(String[] header, File file) {
+        int[] columns = new int[FIELDS.length];
+        for(int f = 0; f < FIELDS.length; f++){
+            columns[f] = -1;
+            for(int c = 0; c < header.length; c++){
+                if(header[c].trim().equals(FIELDS[f])) columns[f] = c;
+            }
+            if(columns[f] < 0) throw new IllegalArgumentException(file + " has no column " + FIELDS[f]);
+        }
+        return columns;
+    }
+}
@@ -0,0 +1,156 @@
+package Microbiome;
+
+import java.util.Arrays;
+
+/**
+ * Stores the state of all the microbiomes in primitive arrays.
+ * Each agent is an index into the arrays, so iterating the agents walks memory sequentially
+ * and moving an agent does not create any objects.
+ */
+public class AgentStore {
+    public int count;                       //Number of agents currently alive in the store.
+
+    public double[] x;                      //Current position x of each microbiome.
+    public double[] y;                      //Current position y of each microbiome.
+    public double[] angle;                  //Current angle of each microbiome.
+
+    public double[] moveSpeed;              //Move speed of each microbiome.
+    public double[] turnSpeed;              //Turning speed of each microbiome.
+
+    public int[] sensorSize;                //The size of the sensor.
+    public double[] sensorDistance;         //The distance of the sensor from the position.
+    public double[] sensorOffsetAngle;      //The angle offset of each sensor.
+    public double[] sensorOffsetCos;        //Cosine of the sensor offset angle, rotates the heading to the side sensors.
+    public double[] sensorOffsetSin;        //Sine of the sensor offset angle, rotates the heading to the side sensors.
+
+    public int[] color;                     //Color of each microbiome packed as [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB].
+    public byte[] species;                  //Species of each microbiome, only used when there are species weights.
+
+    //For each species, how much it is drawn to the R, G and B channel of the trail, negative to be repelled.
+    //Null when every agent senses the sum of the channels.
+    public int[][] speciesWeights;
+
+    /**
+     * Creates an empty store.
+     * @param capacity The maximum number of agents the store can hold.
+     */
+    public AgentStore(int capacity) {
+        x = new double[capacity];
+        y = new double[capacity];
+        angle = new double[capacity];
+
+        moveSpeed = new double[capacity];
+        turnSpeed = new double[capacity];
+
+        sensorSize = new int[capacity];
+        sensorDistance = new double[capacity];
+        sensorOffsetAngle = new double[capacity];
+        sensorOffsetCos = new double[capacity];
+        sensorOffsetSin = new double[capacity];
+
+        color = new int[capacity];
+        species = new byte[capacity];
+    }
+
+    /**
+     * Get the maximum number of agents the store can hold.
+     * @return The capacity of the arrays.
+     */
+    public int capacity() {
+        return x.length;
+    }
+
+    /**
+     * Set every value of the agent at an index.
+     * @param i The index of the agent.
+     * @param x The position x.
+     * @param y The position y.
+     * @param angle The angle in radian.
+     * @param moveSpeed The movement speed of the agent.
+     * @param turnSpeed The turn speed of the agent.
+     * @param sensorSize The sensor size of the agent.
+     * @param sensorDistance The sensor distance of the agent.
+     * @param sensorOffsetAngle The sensor offset angle in radian of the agent.
+     * @param colorR The red color value of the agent.
+     * @param colorG The green color value of the agent.
+     * @param colorB The blue color value of the agent.
+     */
+    public void set(int i, double x, double y, double angle, double moveSpeed, double turnSpeed,
+     int sensorSize, double sensorDistance, double sensorOffsetAngle, int colorR, int colorG, int colorB) {
+
+        this.x[i] = x;
+        this.y[i] = y;
+        this.angle[i] = angle;
+
+        this.moveSpeed[i] = moveSpeed;
+        this.turnSpeed[i] = turnSpeed;
+
+        this.sensorSize[i] = sensorSize;
+        this.sensorDistance[i] = sensorDistance;
+        this.sensorOffsetAngle[i] = sensorOffsetAngle;
+        this.sensorOffsetCos[i] = Math.cos(sensorOffsetAngle);
+        this.sensorOffsetSin[i] = Math.sin(sensorOffsetAngle);
+
+        this.color[i] = (colorR << 16) | (colorG << 8) | colorB;
+    }
+
+    /**
+     * Make room for at least a number of agents, keeping the agents already stored.
+     * The arrays at least double when they grow, so adding agents one by one stays cheap.
+     * @param capacity The number of agents the store must hold.
+     */
+    public void ensureCapacity(int capacity) {
+        if(capacity <= capacity()) return;
+
+        capacity = Math.max(capacity, capacity() * 2);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        angle = Arrays.copyOf(angle, capacity);
+
+        moveSpeed = Arrays.copyOf(moveSpeed, capacity);
+        turnSpeed = Arrays.copyOf(turnSpeed, capacity);
+
+        sensorSize = Arrays.copyOf(sensorSize, capacity);
+        sensorDistance = Arrays.copyOf(sensorDistance, capacity);
+        sensorOffsetAngle = Arrays.copyOf(sensorOffsetAngle, capacity);
+        sensorOffsetCos = Arrays.copyOf(sensorOffsetCos, capacity);
+        sensorOffsetSin = Arrays.copyOf(sensorOffsetSin, capacity);
+
+        color = Arrays.copyOf(color, capacity);
+        species = Arrays.copyOf(species, capacity);
+    }
+
+    /**
+     * Copy every value of an agent from a store, which may be this one.
+     * @param i The index to copy the agent to.
+     * @param source The store to copy the agent from.
+     * @param from The index of the agent in the source.
+     */
+    public void copy(int i, AgentStore source, int from) {
+        x[i] = source.x[from];
+        y[i] = source.y[from];
+        angle[i] = source.angle[from];
+
+        moveSpeed[i] = source.moveSpeed[from];
+        turnSpeed[i] = source.turnSpeed[from];
+
+        sensorSize[i] = source.sensorSize[from];
+        sensorDistance[i] = source.sensorDistance[from];
+        sensorOffsetAngle[i] = source.sensorOffsetAngle[from];
+        sensorOffsetCos[i] = source.sensorOffsetCos[from];
+        sensorOffsetSin[i] = source.sensorOffsetSin[from];
+
+        color[i] = source.color[from];
+        species[i] = source.species[from];
+    }
+
+    /**
+     * Add a copy of an agent of another store after the last agent, growing the store when it is full.
+     * @param source The store to copy the agent from.
+     * @param from The index of the agent in the source.
+     */
+    public void append(AgentStore source, int from) {
+        ensureCapacity(count + 1);
+        copy(count++, source, from);
+    }
+}
@@ -3,13 +3,18 @@ package Microbiome;
 import Microbiome.AgentPresets.*;
 import processing.core.PApplet;
 import processing.core.PFont;
+import processing.core.PGraphics;
+import processing.core.PImage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * The main program of the project.
  */
 public class App extends PApplet {
 
-    public Agent[] agents;
     public int totalAgents = 50000;
     public double maxSpawnDistance = 200;
     public double minSpawnDistance = 100;
@@ -19,36 +24,34 @@ public class App extends PApplet {
     public double maxSensorOffsetAngle = 2 * Math.PI;
     public double maxSensorDistance = 200;
 
+    public Simulation simulation = new Simulation(GlobalSettings.SIMULATION_WIDTH, GlobalSettings.SIMULATION_HEIGHT, GlobalSettings.WORKER_COUNT, System.nanoTime());
+    public FrameScheduler scheduler = new FrameScheduler(simulation);
+
+    public PImage trailImage;       //The image the trail is presented to every frame, at the size of the canvas.
+    public PGraphics stampLayer;    //Offscreen layer for drawing characters into the trail, at the size of the trail.
+    public FrameRecorder recorder;  //Records every frame while not null.
+    public FrameStreamServer stream;    //Streams every frame to remote viewers while not null.
+    public Telemetry telemetry = new Telemetry(GlobalSettings.FRAME_RATE, GlobalSettings.FRAME_RATE);  //Times the phases of every frame.
+    public boolean showTelemetry = GlobalSettings.TELEMETRY_OVERLAY;                                    //Show the timings over the trail.
+    public FrameClock clock = new FrameClock(GlobalSettings.DELTA_TIME, GlobalSettings.MAX_STEPS_PER_FRAME);  //Steps the simulation on its own clock.
+    public QualityGovernor governor = GlobalSettings.ADAPTIVE_QUALITY ? new QualityGovernor(GlobalSettings.FRAME_RATE) : null;  //Lowers the quality when frames are late, when not null.
+
     public int currentAgentPresetIndex = 0;
-    public AgentPreset[] agentPresets = new AgentPreset[]{
-        new DefaultPreset(),
-        new BreadBug(),
-        new Vein(),
-        new Venom(),
-        new StarDust(),
-        new LiquidGem(),
-        new WaterBug(),
-        new BloodStealer(),
-        new Gene(),
-        new Virus(),
-        new Alpha(),
-        new Beta(),
-        new FireFly(),
-        new FlourBug(),
-        new Parallel(),
-        new COVID(),
-        new Cell()
-    };
+    public AgentPreset[] agentPresets = AgentPreset.createAll();    //The built in presets, followed by the ones of the catalog file.
 
     public String keyPressed;
     public PFont font;
     public TextObject titleText;
     public TextObject presetText;
     public TextObject instructionText;
+    public TextObject keysText;
 
     public TextObject speedText;
     public TextObject sensorText;
     public TextObject colorText;
+    public TextObject telemetryText;
+    public UiLayer bottomBar;       //The texts under the trail, only drawn again when one of them changes.
+    public UiLayer telemetryLayer;  //The timings over the trail.
 
     /**
      * Initialise the setting of the window size.
@@ -76,16 +79,54 @@ public class App extends PApplet {
         //No border.
         noStroke();
 
+        //Add the presets of the catalog file.
+        try{
+            agentPresets = PresetCatalog.loadAll(new File(GlobalSettings.PRESET_FILE));
+        }catch(IOException | IllegalArgumentException e){
+            System.err.println("Can not load the presets: " + e.getMessage());
+        }
+
+        //Setup the layers the trail is presented to and stamped from.
+        trailImage = createImage(GlobalSettings.CANVAS_WIDTH, GlobalSettings.CANVAS_HEIGHT, RGB);
+        stampLayer = createGraphics(simulation.trail.width, simulation.trail.height);
+
         //Setup the texts
         int paddings = 20;
         font = createFont(this.getClass().getResource("Quicksand-Light.ttf").getPath(), 128, true);
         titleText       = new TextObject(paddings, GlobalSettings.CANVAS_HEIGHT + paddings * 1, 15, "MICROBIOME", font, PApplet.LEFT);
         presetText      = new TextObject(paddings, GlobalSettings.CANVAS_HEIGHT + paddings * 2, 11, "Preset", font, PApplet.LEFT);
         instructionText = new TextObject(paddings, GlobalSettings.CANVAS_HEIGHT + paddings * 3, 11, "Left & Right - Switch Species | Enter - Random Species", font, PApplet.LEFT);
+        keysText        = new TextObject(paddings, GlobalSettings.CANVAS_HEIGHT + paddings * 4, 11, "F2 - Mix | F3 - Timings | F5 - Save | F6 - Keep | F8 - Record | F9 - Load", font, PApplet.LEFT);
 
         speedText       = new TextObject(GlobalSettings.CANVAS_WIDTH - paddings, GlobalSettings.CANVAS_HEIGHT + paddings * 1, 11, "Speed", font, PApplet.RIGHT);
         sensorText      = new TextObject(GlobalSettings.CANVAS_WIDTH - paddings, GlobalSettings.CANVAS_HEIGHT + paddings * 2, 11, "Sensor", font, PApplet.RIGHT);
         colorText       = new TextObject(GlobalSettings.CANVAS_WIDTH - paddings, GlobalSettings.CANVAS_HEIGHT + paddings * 3, 11, "Color", font, PApplet.RIGHT);
+        telemetryText   = new TextObject(paddings / 2, paddings / 2, 11, "", font, PApplet.LEFT);
+
+        //The texts are drawn into offscreen layers, and only copied to the screen while they do not change.
+        bottomBar = new UiLayer(this, 0, GlobalSettings.CANVAS_HEIGHT, GlobalSettings.CANVAS_WIDTH, GlobalSettings.BOTTOM_PRESERVE, 0xFF000000,
+            titleText, presetText, instructionText, keysText, speedText, sensorText, colorText);
+        telemetryLayer = new UiLayer(this, 0, 0, GlobalSettings.CANVAS_WIDTH, paddings, 0, telemetryText);
+
+        //Time the phases, and write them to a CSV file when asked.
+        simulation.telemetry = telemetry;
+        if(GlobalSettings.TELEMETRY_CSV != null){
+            try{
+                telemetry.openCsv(new File(GlobalSettings.TELEMETRY_CSV));
+            }catch(IOException e){
+                System.err.println("Can not write the telemetry: " + e.getMessage());
+            }
+        }
+
+        //Stream the trail to remote viewers when a port is set.
+        if(GlobalSettings.STREAM_PORT >= 0){
+            try{
+                stream = new FrameStreamServer(GlobalSettings.STREAM_PORT, simulation.trail.width, simulation.trail.height);
+                System.out.println("Streaming on port " + stream.port);
+            }catch(IOException e){
+                System.err.println("Can not stream: " + e.getMessage());
+            }
+        }
 
         //Spawn the agents
         spawnAgents();
@@ -138,20 +179,48 @@ public class App extends PApplet {
      * @param agentPreset The preset of the agent.
      */
     public void spawnAgents(int totalAgents, double spawnAreaSize, AgentPreset agentPreset){
-        spawnAgents(totalAgents, spawnAreaSize, agentPreset.moveSpeed, agentPreset.turnSpeed, 
-        agentPreset.sensorSize, agentPreset.sensorDistance, agentPreset.sensorOffsetAngle, 
-        agentPreset.colorR, agentPreset.colorG, agentPreset.colorB);
+        //Set black background.
+        background(0);
+
+        //Spawn agents in a circle, measured in pixels of the canvas. They replace the current agents once they are ready.
+        simulation.prepareSpawn(totalAgents, spawnAreaSize * GlobalSettings.SIMULATION_SCALE, agentPreset);
+
+        //Set text.
+        setText(agentPreset.moveSpeed, agentPreset.turnSpeed, agentPreset.sensorSize, agentPreset.sensorDistance,
+        agentPreset.sensorOffsetAngle, agentPreset.colorR, agentPreset.colorG, agentPreset.colorB);
     }
 
     /**
-     * Spawn random agent.
+     * Spawn random agent. The preset is kept by the simulation once spawned, so it can be saved with F6.
      */
     public void spawnAgentsRandom(){
-        presetText.setText("Random Species RAND-" + (int)(Math.random() * 1000));
-        spawnAgents(totalAgents, minSpawnDistance + Math.random() * (maxSpawnDistance - minSpawnDistance), 
+        AgentPreset agentPreset = new AgentPreset("RAND-" + (int)(Math.random() * 1000),
         Math.random() * maxMoveSpeed,  Math.random() * maxTurnSpeed,
         1,  Math.random() * maxSensorDistance, Math.random() * maxSensorOffsetAngle,
         (int)(Math.random() * 255 / 3), (int)(Math.random() * 255 / 3), (int)(Math.random() * 255 / 3));
+
+        presetText.setText("Random Species " + agentPreset.name);
+        spawnAgents(totalAgents, minSpawnDistance + Math.random() * (maxSpawnDistance - minSpawnDistance), agentPreset);
+    }
+
+    /**
+     * Add the preset of the running agents to the catalog file and to the presets switched through.
+     */
+    public void savePreset(){
+        //A mix of species is not one preset, and built in or loaded presets are already there.
+        AgentPreset agentPreset = simulation.preset;
+        if(simulation.agents.speciesWeights != null || AgentPreset.find(agentPresets, agentPreset.name) != null) return;
+
+        try{
+            PresetCatalog.append(new File(GlobalSettings.PRESET_FILE), agentPreset);
+        }catch(IOException e){
+            System.err.println("Can not save the preset: " + e.getMessage());
+            return;
+        }
+
+        agentPresets = Arrays.copyOf(agentPresets, agentPresets.length + 1);
+        agentPresets[agentPresets.length - 1] = agentPreset;
+        presetText.setText(agentPreset.name + " - Kept in " + GlobalSettings.PRESET_FILE);
     }
 
     /**
@@ -168,31 +237,71 @@ public class App extends PApplet {
      * @param colorB The blue color value of each agent.
      */
     public void spawnAgents(int totalAgents, double spawnAreaSize, double moveSpeed, double turnSpeed, int sensorSize, double sensorDistance, double sensorOffsetAngle, int colorR, int colorG, int colorB){
-        //Set black background.
-        background(0);
+        spawnAgents(totalAgents, spawnAreaSize, new AgentPreset("Custom", moveSpeed, turnSpeed, sensorSize, sensorDistance, sensorOffsetAngle, colorR, colorG, colorB));
+    }
 
-        //Spawn agents in a circle.
-        agents = new Agent[totalAgents];
+    /**
+     * Spawn the species of the settings together, each in its own channel of the trail.
+     */
+    public void spawnSpecies(){
+        AgentPreset[] species = AgentPreset.findAll(agentPresets, GlobalSettings.SPECIES);
+        int[][] weights = Simulation.parseSpeciesWeights(GlobalSettings.SPECIES_WEIGHTS, species.length);
 
-        //If the spawn area is larger than screen size, set the spawn area to the maximum of screen size.
-        int midWidth = GlobalSettings.CANVAS_WIDTH / 2;
-        int midHeight = GlobalSettings.CANVAS_HEIGHT / 2;
-        if(spawnAreaSize >= midWidth || spawnAreaSize >= midHeight) spawnAreaSize = Math.min(midWidth, midHeight);
+        background(0);
+        simulation.prepareSpawnSpecies(totalAgents, (minSpawnDistance + Math.random() * (maxSpawnDistance - minSpawnDistance)) * GlobalSettings.SIMULATION_SCALE, species, weights);
 
-        for(int i=0; i<totalAgents; i++){
-            
-            double randomAngle = 2 * Math.PI * Math.random();
-            double randomDistance = spawnAreaSize * Math.random();
+        AgentPreset first = species[0];
+        presetText.setText(GlobalSettings.SPECIES.replace(",", " + "));
+        setText(first.moveSpeed, first.turnSpeed, first.sensorSize, first.sensorDistance, first.sensorOffsetAngle, first.colorR, first.colorG, first.colorB);
+    }
 
-            double randomPosX = GlobalSettings.CANVAS_WIDTH / 2.0 + Math.cos(randomAngle) * randomDistance;
-            double randomPoxY = GlobalSettings.CANVAS_HEIGHT / 2.0 + Math.sin(randomAngle) * randomDistance;
+    /**
+     * Save the simulation to the checkpoint file.
+     */
+    public void saveCheckpoint(){
+        try{
+            Checkpoint.save(simulation, new File(GlobalSettings.CHECKPOINT_FILE));
+        }catch(IOException e){
+            System.err.println("Can not save the checkpoint: " + e.getMessage());
+        }
+    }
 
-            Vector2<Double> randomPos = new Vector2<Double>(randomPosX, randomPoxY);
-            agents[i] = new Agent(randomPos, randomAngle, moveSpeed, turnSpeed, sensorSize, sensorDistance, sensorOffsetAngle, colorR, colorG, colorB);
+    /**
+     * Restore the simulation from the checkpoint file and show its preset.
+     */
+    public void restoreCheckpoint(){
+        try{
+            Checkpoint.restore(simulation, new File(GlobalSettings.CHECKPOINT_FILE));
+        }catch(IOException e){
+            System.err.println("Can not restore the checkpoint: " + e.getMessage());
+            return;
         }
 
-        //Set text.
-        setText(moveSpeed, turnSpeed, sensorSize, sensorDistance, sensorOffsetAngle, colorR, colorG, colorB);
+        AgentPreset agentPreset = simulation.preset;
+        presetText.setText(agentPreset.name);
+        setText(agentPreset.moveSpeed, agentPreset.turnSpeed, agentPreset.sensorSize, agentPreset.sensorDistance,
+        agentPreset.sensorOffsetAngle, agentPreset.colorR, agentPreset.colorG, agentPreset.colorB);
+    }
+
+    /**
+     * Start recording every frame to a new directory, or stop the recording that is running.
+     * Frames are dropped rather than slowing the window down when the disk can not keep up.
+     */
+    public void toggleRecording(){
+        try{
+            if(recorder == null){
+                File directory = new File(GlobalSettings.RECORDING_DIRECTORY, "recording-" + System.currentTimeMillis());
+                recorder = new FrameRecorder(simulation.trail.width, simulation.trail.height, 32,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2), FrameRecorder.Output.PNG, FrameRecorder.Policy.DROP, directory);
+            }else{
+                recorder.close();
+                System.out.println(recorder.report());
+                recorder = null;
+            }
+        }catch(IOException e){
+            System.err.println("Recording failed: " + e.getMessage());
+            recorder = null;
+        }
     }
 
     /**
@@ -201,16 +310,40 @@ public class App extends PApplet {
     public void keyPressed(){
         final int LEFT = 37;
         final int RIGHT = 39;
+        final int F2 = 113;
+        final int F3 = 114;
+        final int F5 = 116;
+        final int F6 = 117;
+        final int F8 = 119;
+        final int F9 = 120;
 
         switch(this.keyCode){
             case LEFT:
-                previousAgentPreset();
+                scheduler.post(this::previousAgentPreset);
                 break;
             case RIGHT:
-                nextAgentPreset();
+                scheduler.post(this::nextAgentPreset);
                 break;
             case ENTER:
-                spawnAgentsRandom();
+                scheduler.post(this::spawnAgentsRandom);
+                break;
+            case F2:
+                scheduler.post(this::spawnSpecies);
+                break;
+            case F3:
+                showTelemetry = !showTelemetry;
+                break;
+            case F5:
+                scheduler.post(this::saveCheckpoint);
+                break;
+            case F6:
+                scheduler.post(this::savePreset);
+                break;
+            case F8:
+                scheduler.post(this::toggleRecording);
+                break;
+            case F9:
+                scheduler.post(this::restoreCheckpoint);
                 break;
             default:
                 if(key != CODED)
@@ -223,117 +356,86 @@ public class App extends PApplet {
      * Draw all elements by current frame.
     */
     public void draw() {
-
-        loadPixels();
-
-        //Move agents.
-        thread("tickThread");
-
-        //Blur the pixels
-        blur();
-        
-        //Draw agents.
-        for (Agent a : agents) { 
-            a.draw(this); 
+        long frameStart = System.nanoTime();
+        TrailMap trail = simulation.trail;
+
+        //Run as many steps as the time since the last frame holds, the trail is only presented when none is due.
+        //The telemetry window is only closed while no step is running, so a frame without steps waits for the running one.
+        int steps = clock.advance(frameStart);
+        if(steps > 0){
+            simulateFrame(trail, steps);
+        }else{
+            scheduler.awaitStep();
+            telemetry.endFrame();
         }
 
-        updatePixels();
-
-        //Draw mouse
-        fill(255);    
-        rectMode(CENTER);
-        rect(mouseX, mouseY, 2, 2);
-
-        //Draw any character
-        if(keyPressed != null){
-            fill(255);
-            textFont(font);
-            textSize(128);
-            textAlign(CENTER, CENTER);
-            text(keyPressed.toUpperCase(), mouseX, mouseY);
-            keyPressed = null;
+        //Present the trail, scaled to the canvas when it is simulated at another size.
+        long presentStart = System.nanoTime();
+        trail.presentScaled(trailImage.pixels, trailImage.width, trailImage.height);
+        trailImage.updatePixels();
+        image(trailImage, 0, 0);
+        telemetry.record(Telemetry.Phase.PRESENT, presentStart);
+
+        //Draw Text UI, the texts are only rasterized again when they changed.
+        long uiStart = System.nanoTime();
+        bottomBar.draw(this);
+        if(showTelemetry){
+            telemetryText.setText(governor == null ? telemetry.summary : telemetry.summary + "  " + governor.describe());
+            telemetryLayer.draw(this);
         }
+        telemetry.record(Telemetry.Phase.UI, uiStart);
+        telemetry.record(Telemetry.Phase.FRAME, frameStart);
 
-        //Draw Text UI
-        fill(0);
-        rectMode(CORNER);
-        rect(0, GlobalSettings.CANVAS_HEIGHT, GlobalSettings.CANVAS_WIDTH, GlobalSettings.BOTTOM_PRESERVE);
-        titleText.draw(this);
-        presetText.draw(this);
-        instructionText.draw(this);
-        sensorText.draw(this);
-        colorText.draw(this);
-        speedText.draw(this);
+        //A new quality level is applied at the next frame boundary, the background step reads the agent stride.
+        if(governor != null && governor.update(System.nanoTime() - frameStart)) scheduler.post(() -> governor.apply(simulation));
     }
 
     /**
-     * Put logic of each agent on another thread
+     * Finish the steps of this frame, draw the mouse and typed characters into the trail,
+     * record it and start moving the agents of the next step in the background.
+     * @param trail The trail of the simulation.
+     * @param steps The number of steps to advance, at least 1.
      */
-    public void tickThread(){
-        for (int i = 0; i < totalAgents; i++) { 
-            if(agents[i] == null) return;
-            agents[i].tick(this);
+    public void simulateFrame(TrailMap trail, int steps) {
+        //Finish moving, blurring and drawing the agents of this frame.
+        scheduler.finishFrame(steps);
+        telemetry.endFrame();
+
+        //Draw mouse into the trail.
+        int trailMouseX = TrailMap.scale(mouseX, GlobalSettings.CANVAS_WIDTH, trail.width);
+        int trailMouseY = TrailMap.scale(mouseY, GlobalSettings.CANVAS_HEIGHT, trail.height);
+        trail.fillRect(trailMouseX - 1, trailMouseY - 1, 2, 2, 0xFFFFFF);
+
+        //Draw any character into the trail.
+        if(keyPressed != null){
+            stampLayer.beginDraw();
+            stampLayer.clear();
+            stampLayer.fill(255);
+            stampLayer.textFont(font);
+            stampLayer.textSize((float)Math.max(1, 128 * GlobalSettings.SIMULATION_SCALE));
+            stampLayer.textAlign(CENTER, CENTER);
+            stampLayer.text(keyPressed.toUpperCase(), trailMouseX, trailMouseY);
+            stampLayer.endDraw();
+            stampLayer.loadPixels();
+            trail.stamp(stampLayer.pixels);
+            keyPressed = null;
         }
-    }
 
-    /**
-     * 3x3 blur function.
-     */
-    public void blur() {
-        //The int value of color is represented as XRGB
-        //which is constructed in [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB]
-        int B_MASK = 255;       //[0000 0000 0000 0000 0000 0000 1111 1111]
-        int G_MASK = 255<<8;    //[0000 0000 0000 0000 1111 1111 0000 0000]
-        int R_MASK = 255<<16;   //[0000 0000 1111 1111 0000 0000 0000 0000]
-        
-        float diffuseSpeed = 10f;
-        int darkenSpeed = 2000;
-        
-        int darkenDelta = (int)(darkenSpeed * GlobalSettings.DELTA_TIME);
-        int[] processedPixels = new int[GlobalSettings.TOTAL_PIXELS];
-
-        for(int x=0; x<GlobalSettings.CANVAS_WIDTH; x++){
-            for(int y=0; y<GlobalSettings.CANVAS_HEIGHT; y++){
-
-                int sumR = 0;
-                int sumG = 0;
-                int sumB = 0;
-
-                for(int offsetX=-1; offsetX<2; offsetX++){
-                    for(int offsetY=-1; offsetY<2; offsetY++){
-                        int sampleX = x + offsetX;
-                        int sampleY = y + offsetY;
-                        if(sampleX>=0 && sampleX<GlobalSettings.CANVAS_WIDTH && sampleY>=0 && sampleY<GlobalSettings.CANVAS_HEIGHT){
-                            int sample = pixels[sampleY * GlobalSettings.CANVAS_WIDTH + sampleX];
-
-                            //Use only single color part in bits and shift it to the right.
-                            //In this way we created a set of valid RGB values.
-                            int b = sample & B_MASK;
-                            int g = (sample & G_MASK)>>8;
-                            int r = (sample & R_MASK)>>16;
-
-                            sumR += r;
-                            sumG += g;
-                            sumB += b;
-                        }
-                    }
-                }
-
-                int avgR = sumR / 9;
-                int avgG = sumG / 9;
-                int avgB = sumB / 9;
-
-                int resultColor = color(avgR-darkenDelta, avgG-darkenDelta, avgB-darkenDelta);
-                int currentColor = pixels[y * GlobalSettings.CANVAS_WIDTH + x];
-
-                processedPixels[y * GlobalSettings.CANVAS_WIDTH + x] = lerpColor(currentColor, resultColor, diffuseSpeed * (float)GlobalSettings.DELTA_TIME);
+        //Move the agents of the next frame while this one is presented and recorded.
+        scheduler.startNextFrame();
+
+        //Record the trail, the copy is encoded in the background.
+        if(recorder != null){
+            try{
+                recorder.record(trail.color);
+            }catch(IOException e){
+                System.err.println("Recording failed: " + e.getMessage());
+                recorder = null;
             }
         }
-        
-        for(int i = 0; i < GlobalSettings.TOTAL_PIXELS; i++){
-            pixels[i] = processedPixels[i];
-        }
-        
+
+        //Stream the trail, the copy is encoded on the thread of the server.
+        if(stream != null) stream.offer(trail.color);
     }
 
     public static void main(String[] args) {
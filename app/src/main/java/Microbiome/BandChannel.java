@@ -0,0 +1,207 @@
+package Microbiome;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * One non blocking connection between the processes of a distributed run, carrying framed binary messages.
+ * <p>
+ * Every message is a type and a payload length, both ints, followed by the payload in big endian.
+ * Messages are queued in an output buffer and written as the socket takes them, and read into an input buffer
+ * until a whole message is there, so two processes can send each other large messages at the same time
+ * without both blocking on a full socket. The buffers grow to the largest message and are then reused.
+ */
+public class BandChannel implements Closeable {
+
+    //The types of message.
+    public static final int HELLO = 1;      //Band to coordinator: the band and the port it accepts its lower neighbour on.
+    public static final int PEERS = 2;      //Coordinator to band: the port of the upper neighbour, -1 for the first band.
+    public static final int ROWS = 3;       //Band to band: the rows of the trail next to the neighbour, for its halo.
+    public static final int AGENTS = 4;     //Band to band: the agents that moved into the neighbour.
+    public static final int PREVIEW = 5;    //Band to coordinator: the band scaled down for a preview frame.
+    public static final int DONE = 6;       //Band to coordinator: the totals of the band after the last step.
+
+    private static final int HEADER = 8;    //Bytes of the type and the length.
+
+    public final SocketChannel channel;
+    public long bytesSent;                  //Bytes written to the socket, headers included.
+    public long bytesReceived;              //Bytes read from the socket, headers included.
+
+    private final SelectionKey key;
+    private ByteBuffer out = ByteBuffer.allocate(1 << 16);     //Queued messages, in write mode.
+    private ByteBuffer in = ByteBuffer.allocate(1 << 16);      //Received bytes, in write mode.
+    private int consumed;                                       //Bytes of the input taken by the last message returned.
+    private int lastType;                                       //Type of the last message returned.
+
+    /**
+     * Make a connected socket non blocking and register it for reading.
+     * @param channel The connected socket.
+     * @param selector The selector the process waits on.
+     * @throws IOException If the socket can not be set up.
+     */
+    public BandChannel(SocketChannel channel, Selector selector) throws IOException {
+        this.channel = channel;
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Queue the header of a message and get the buffer to put its payload in.
+     * @param type The type of the message.
+     * @param length The exact number of bytes of the payload the caller puts next.
+     * @return The output buffer, positioned after the header.
+     */
+    public ByteBuffer message(int type, int length) {
+        if(out.remaining() < HEADER + length){
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + HEADER + length));
+            out.flip();
+            grown.put(out);
+            out = grown;
+        }
+        return out.putInt(type).putInt(length);
+    }
+
+    /**
+     * Tell if queued bytes are waiting to be written.
+     * @return True if a flush has more to write.
+     */
+    public boolean pending() {
+        return out.position() > 0;
+    }
+
+    /**
+     * Write as much of the queued messages as the socket takes without blocking.
+     * @return True if everything queued was written.
+     * @throws IOException If the socket fails.
+     */
+    public boolean flush() throws IOException {
+        out.flip();
+        bytesSent += channel.write(out);
+        out.compact();
+        key.interestOps(pending() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        return !pending();
+    }
+
+    /**
+     * Read what has arrived and take the next whole message.
+     * The payload is a view of the input buffer, only valid until the next call.
+     * @return The payload of the message, or null if no whole message has arrived yet.
+     * @throws IOException If the socket fails or was closed by the other side.
+     */
+    public ByteBuffer poll() throws IOException {
+        if(consumed > 0){
+            in.flip();
+            in.position(consumed);
+            in.compact();
+            consumed = 0;
+        }
+
+        int read;
+        while((read = channel.read(in)) > 0){
+            bytesReceived += read;
+            if(!in.hasRemaining()) grow(in.capacity() * 2);
+        }
+        if(read < 0 && in.position() < HEADER) throw new EOFException("Connection closed by " + channel.getRemoteAddress());
+
+        if(in.position() < HEADER) return null;
+        int length = in.getInt(4);
+        if(in.capacity() < HEADER + length) grow(HEADER + length);
+        if(in.position() < HEADER + length){
+            if(read < 0) throw new EOFException("Connection closed in the middle of a message by " + channel.getRemoteAddress());
+            return null;
+        }
+
+        lastType = in.getInt(0);
+        consumed = HEADER + length;
+        ByteBuffer payload = in.duplicate();
+        payload.limit(HEADER + length).position(HEADER);
+        return payload.slice();
+    }
+
+    /**
+     * Take the next whole message, which must be of a type.
+     * @param type The type expected.
+     * @return The payload of the message, or null if no whole message has arrived yet.
+     * @throws IOException If the socket fails or the message is of another type.
+     */
+    public ByteBuffer poll(int type) throws IOException {
+        ByteBuffer payload = poll();
+        if(payload != null && lastType != type) throw new IOException("Expected message " + type + " but got " + lastType);
+        return payload;
+    }
+
+    /**
+     * Get the type of the last message returned by poll.
+     * @return The type.
+     */
+    public int type() {
+        return lastType;
+    }
+
+    /**
+     * Send what is queued on every channel and wait until each has sent it and received a whole message of a type.
+     * The channels are read and written together, so neighbours sending each other large messages do not block each other.
+     * @param selector The selector the channels are registered with.
+     * @param channels The channels, null ones are skipped.
+     * @param type The type of message expected from each channel.
+     * @param received The payload received from each channel, written here, null for skipped channels.
+     * @param also A channel whose queued messages are written along the way without waiting for it, or null.
+     * @throws IOException If a socket fails or a message of another type arrives.
+     */
+    public static void exchange(Selector selector, BandChannel[] channels, int type, ByteBuffer[] received, BandChannel also) throws IOException {
+        for(int c = 0; c < channels.length; c++) received[c] = null;
+
+        while(true){
+            boolean done = true;
+            for(int c = 0; c < channels.length; c++){
+                BandChannel channel = channels[c];
+                if(channel == null) continue;
+
+                if(channel.pending()) channel.flush();
+                if(received[c] == null) received[c] = channel.poll(type);
+                if(channel.pending() || received[c] == null) done = false;
+            }
+            if(also != null && also.pending()) also.flush();
+            if(done) return;
+
+            selector.select(1000);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    /**
+     * Wait until everything queued on a channel is written.
+     * @param selector The selector the channel is registered with.
+     * @throws IOException If the socket fails.
+     */
+    public void drain(Selector selector) throws IOException {
+        while(!flush()){
+            selector.select(1000);
+            selector.selectedKeys().clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        key.cancel();
+        channel.close();
+    }
+
+    /**
+     * Make the input buffer larger, keeping what was received.
+     * @param capacity The new capacity.
+     */
+    private void grow(int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        in.flip();
+        grown.put(in);
+        in = grown;
+    }
+}
@@ -0,0 +1,309 @@
+package Microbiome;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * One band of a distributed run, in its own process started by the DistributedRunner.
+ * <p>
+ * The band owns the rows [startRow, endRow) of the world and the agents standing in them. Its trail is padded with halo
+ * rows above and below, as many as the sensors reach. A step runs like a step of the Simulation, with two exchanges
+ * with the bands above and below: the rows next to each neighbour are sent for its halo before the agents move, and the
+ * agents that moved into a neighbour are sent to it before they deposit. Both exchanges wait for the neighbours,
+ * so the bands run their steps in lockstep. The agents move with the same Agent logic and presets as the App.
+ */
+public class BandWorker {
+
+    private static final int AGENT_BYTES = 8 * 7 + 4 + 4 + 1;     //Bytes of one agent in an AGENTS message.
+
+    private final DistributedRunner options;
+    private final int band;
+    private final int startRow;                 //First row of the world owned by the band.
+    private final int endRow;                   //Row after the last row of the world owned by the band.
+    private final int halo;                     //Rows above and below the band copied from the neighbours.
+    private final int width;                    //Width of the world.
+
+    private final WorkerPool workers;
+    private final Diffuser diffuser;
+    private final TrailMap trail;               //The rows of the band with the halo rows above and below.
+    private AgentStore agents;                  //The agents standing in the band.
+
+    private final Selector selector;
+    private BandChannel coordinator;
+    private final BandChannel[] neighbours = new BandChannel[2];       //The band above and the band below, null at the edges.
+    private final ByteBuffer[] received = new ByteBuffer[2];
+    private final AgentStore[] leaving = { new AgentStore(0), new AgentStore(0) };  //Agents moving up and down.
+
+    private final WorkerPool.RangeTask senseAndMoveTask = this::senseAndMove;
+    private final WorkerPool.RangeTask diffuseTask = this::diffuseRows;
+
+    /**
+     * Creates the band and its trail.
+     * @param options The options of the run, the same in every band.
+     * @param band The index of the band.
+     * @throws IOException If the selector can not be opened or the preset catalog can not be read.
+     */
+    public BandWorker(DistributedRunner options, int band) throws IOException {
+        this.options = options;
+        this.band = band;
+        this.startRow = options.bandStart(band);
+        this.endRow = options.bandStart(band + 1);
+        this.width = options.width;
+
+        this.halo = options.halo();
+
+        workers = new WorkerPool(options.workers, options.seed + band);
+        trail = new TrailMap(width, endRow - startRow + 2 * halo);
+        diffuser = new Diffuser(width, trail.height, workers, Kernels.create(GlobalSettings.SIMD));
+        selector = Selector.open();
+    }
+
+    /**
+     * Connect to the coordinator and the neighbours, spawn the agents of the band and run every step.
+     * @param coordinatorPort The port the coordinator listens on.
+     * @throws IOException If a connection fails.
+     */
+    public void run(int coordinatorPort) throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try(ServerSocketChannel server = ServerSocketChannel.open()){
+            server.bind(new InetSocketAddress(loopback, 0));
+            coordinator = new BandChannel(SocketChannel.open(new InetSocketAddress(loopback, coordinatorPort)), selector);
+            coordinator.message(BandChannel.HELLO, 8).putInt(band).putInt(((InetSocketAddress)server.getLocalAddress()).getPort());
+
+            BandChannel.exchange(selector, new BandChannel[]{ coordinator }, BandChannel.PEERS, received, null);
+            int upPort = received[0].getInt();
+
+            //Connect up first, the band above is already listening, then take the connection of the band below.
+            if(upPort >= 0) neighbours[0] = new BandChannel(SocketChannel.open(new InetSocketAddress(loopback, upPort)), selector);
+            if(band < options.bands - 1) neighbours[1] = new BandChannel(server.accept(), selector);
+        }
+
+        spawn();
+
+        long simulatedNanos = 0;
+        for(int step = 1; step <= options.steps; step++){
+            long start = System.nanoTime();
+            step();
+            simulatedNanos += System.nanoTime() - start;
+
+            if(step == options.steps || (options.every > 0 && step % options.every == 0)) sendPreview(step);
+        }
+
+        long sent = 0;
+        for(BandChannel neighbour : neighbours){
+            if(neighbour != null) sent += neighbour.bytesSent;
+        }
+        coordinator.message(BandChannel.DONE, 24).putLong(agents.count).putLong(simulatedNanos).putLong(sent);
+        coordinator.drain(selector);
+
+        for(BandChannel neighbour : neighbours){
+            if(neighbour != null) neighbour.close();
+        }
+        coordinator.close();
+        selector.close();
+        workers.shutdown();
+    }
+
+    /**
+     * Spawn the agents of the whole world that stand in the band, the same ones the Simulation spawns with the seed.
+     * @throws IOException If the preset catalog can not be read.
+     */
+    private void spawn() throws IOException {
+        Spawner spawner = new Spawner(width, options.height, 1);
+        long spawnSeed = Simulation.spawnSeed(options.seed);
+        try{
+            agents = spawner.prepareRows(options.totalAgents, options.spawnAreaSize, options.presets(), options.weights(),
+                spawnSeed, startRow, endRow).get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while spawning", e);
+        }catch(ExecutionException e){
+            throw new IllegalStateException("Spawning failed", e.getCause());
+        }finally{
+            spawner.shutdown();
+        }
+
+        for(AgentStore store : leaving) store.speciesWeights = agents.speciesWeights;
+    }
+
+    /**
+     * Run one step: exchange the halo rows, sense and move, diffuse, exchange the agents that left and deposit.
+     * @throws IOException If a neighbour fails.
+     */
+    private void step() throws IOException {
+        exchangeRows();
+        workers.parallelFor(agents.count, senseAndMoveTask);
+
+        diffuser.updateRates();
+        workers.parallelFor(endRow - startRow, diffuseTask);
+        trail.swap();
+
+        exchangeAgents();
+        for(int i = 0; i < agents.count; i++){
+            trail.deposit((int)agents.x[i], (int)agents.y[i] - startRow + halo, agents.color[i]);
+        }
+    }
+
+    /**
+     * Send the rows next to each neighbour and fill the halo rows with the rows they send back.
+     * The halo rows at the top and bottom of the world are never written, so they stay black.
+     * @throws IOException If a neighbour fails.
+     */
+    private void exchangeRows() throws IOException {
+        int rowPixels = halo * width;
+        int[] color = trail.color;
+        for(int n = 0; n < 2; n++){
+            if(neighbours[n] == null) continue;
+
+            //The top rows of the band go up, the bottom rows go down.
+            int firstRow = n == 0 ? halo : trail.height - 2 * halo;
+            ByteBuffer message = neighbours[n].message(BandChannel.ROWS, rowPixels * 4);
+            message.asIntBuffer().put(color, firstRow * width, rowPixels);
+            message.position(message.position() + rowPixels * 4);
+        }
+
+        BandChannel.exchange(selector, neighbours, BandChannel.ROWS, received, coordinator);
+
+        short[] intensity = trail.intensity;
+        for(int n = 0; n < 2; n++){
+            if(received[n] == null) continue;
+
+            int offset = (n == 0 ? 0 : trail.height - halo) * width;
+            received[n].asIntBuffer().get(color, offset, rowPixels);
+            for(int pos = offset; pos < offset + rowPixels; pos++){
+                intensity[pos] = (short)PackedColor.sum(color[pos]);
+            }
+        }
+    }
+
+    /**
+     * Send the agents that moved out of the band to the neighbour they moved into and take the ones that moved in.
+     * The last agent takes the place of each agent that leaves, so the store stays packed.
+     * @throws IOException If a neighbour fails or an agent moved further than the next band.
+     */
+    private void exchangeAgents() throws IOException {
+        leaving[0].count = 0;
+        leaving[1].count = 0;
+
+        int i = 0;
+        while(i < agents.count){
+            int row = (int)agents.y[i];
+            if(row >= startRow && row < endRow){
+                i++;
+                continue;
+            }
+
+            int n = row < startRow ? 0 : 1;
+            if(neighbours[n] == null || row < options.bandStart(band - 1 + 2 * n) || row >= options.bandStart(band + 2 * n)){
+                throw new IllegalStateException("An agent moved from band " + band + " to row " + row + ", further than the next band");
+            }
+            leaving[n].append(agents, i);
+            agents.copy(i, agents, --agents.count);
+        }
+
+        for(int n = 0; n < 2; n++){
+            if(neighbours[n] == null) continue;
+
+            AgentStore store = leaving[n];
+            ByteBuffer message = neighbours[n].message(BandChannel.AGENTS, 4 + store.count * AGENT_BYTES);
+            message.putInt(store.count);
+            for(int k = 0; k < store.count; k++){
+                message.putDouble(store.x[k]).putDouble(store.y[k]).putDouble(store.angle[k])
+                    .putDouble(store.moveSpeed[k]).putDouble(store.turnSpeed[k])
+                    .putInt(store.sensorSize[k]).putDouble(store.sensorDistance[k]).putDouble(store.sensorOffsetAngle[k])
+                    .putInt(store.color[k]).put(store.species[k]);
+            }
+        }
+
+        BandChannel.exchange(selector, neighbours, BandChannel.AGENTS, received, coordinator);
+
+        for(int n = 0; n < 2; n++){
+            if(received[n] == null) continue;
+
+            ByteBuffer message = received[n];
+            int count = message.getInt();
+            agents.ensureCapacity(agents.count + count);
+            for(int k = 0; k < count; k++){
+                int a = agents.count++;
+                agents.set(a, message.getDouble(), message.getDouble(), message.getDouble(), message.getDouble(), message.getDouble(),
+                    message.getInt(), message.getDouble(), message.getDouble(), 0, 0, 0);
+                agents.color[a] = message.getInt();
+                agents.species[a] = message.get();
+            }
+        }
+    }
+
+    /**
+     * Scale the band down by the preview factor and queue it for the coordinator.
+     * Each pixel of the preview is the average of the pixels it covers.
+     * @param step The step the preview belongs to.
+     */
+    private void sendPreview(int step) {
+        int factor = options.previewFactor;
+        int frameWidth = options.frameWidth();
+        int firstRow = startRow / factor;
+        int rows = (endRow + factor - 1) / factor - firstRow;
+
+        ByteBuffer message = coordinator.message(BandChannel.PREVIEW, 12 + rows * frameWidth * 4);
+        message.putInt(step).putInt(firstRow).putInt(rows);
+
+        int[] row = new int[frameWidth];
+        for(int r = 0; r < rows; r++){
+            int top = (firstRow + r) * factor;
+            int bottom = Math.min(endRow, top + factor);
+
+            TrailMap.averageRows(trail.color, (top - startRow + halo) * width, width, bottom - top, row, 0, frameWidth);
+            for(int pixel : row) message.putInt(pixel);
+        }
+    }
+
+    /**
+     * Logic of the agents in one part of the store, each worker uses its own random stream.
+     * @param worker The worker running the part.
+     * @param start The first agent of the part.
+     * @param end The agent after the last agent of the part.
+     */
+    private void senseAndMove(int worker, int start, int end) {
+        SplittableRandom random = workers.random(worker);
+        boolean fastMath = options.fastMath;
+        double originY = startRow - halo;
+
+        for(int i = start; i < end; i++){
+            double angle = agents.angle[i];
+            double headingX = fastMath ? TrigTable.cos(angle) : Math.cos(angle);
+            double headingY = fastMath ? TrigTable.sin(angle) : Math.sin(angle);
+            double moveDistance = agents.moveSpeed[i] * GlobalSettings.DELTA_TIME;
+
+            Agent.tickIn(agents, i, trail, 0, originY, width, options.height, random.nextDouble(),
+                headingX, headingY, agents.x[i] + headingX * moveDistance, agents.y[i] + headingY * moveDistance);
+        }
+    }
+
+    /**
+     * Diffuse some rows of the band into the back buffer. The halo rows of the back buffer are not written.
+     * @param worker The worker diffusing the rows.
+     * @param start The first row of the band to diffuse.
+     * @param end The row after the last row to diffuse.
+     */
+    private void diffuseRows(int worker, int start, int end) {
+        diffuser.diffuseRows(trail, worker, halo + start, halo + end);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 4 || !args[0].equals("--coordinator") || !args[2].equals("--band")){
+            System.err.println("Usage: BandWorker --coordinator PORT --band N [DistributedRunner options], started by the DistributedRunner");
+            System.exit(1);
+        }
+
+        DistributedRunner options = DistributedRunner.parse(Arrays.copyOfRange(args, 4, args.length));
+        new BandWorker(options, Integer.parseInt(args[3])).run(Integer.parseInt(args[1]));
+    }
+}
@@ -0,0 +1,244 @@
+package Microbiome;
+
+import Microbiome.AgentPresets.AgentPreset;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves and restores the whole state of a simulation through memory mapped files.
+ * <p>
+ * The file is a fixed header followed by every array of the agents and the front buffer of the trail, each stored
+ * as raw little endian values, so both saving and restoring are bulk copies between the arrays and the mapped file.
+ * The header holds the size of the trail, the number of agents, the preset they were spawned with, the weights of the
+ * species when there are several, and the seed of the random streams. The streams can not be read back from a SplittableRandom, so saving draws a new seed,
+ * restarts every stream from it and stores it. A restored run then repeats the saved run step for step,
+ * as long as it has the same number of workers and the same sort interval.
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x4D42434B;    //"MBCK"
+    private static final int VERSION = 2;          //Version 2 added the species, version 1 files are still read.
+    private static final int NAME_BYTES = 64;       //Space kept for the name of the preset.
+    private static final int HEADER_BYTES = 128 + NAME_BYTES;
+
+    private Checkpoint() {}
+
+    /**
+     * Write the state of a simulation to a file, replacing it. Must run while no phase is running.
+     * @param simulation The simulation to save, its random streams are restarted from a new seed.
+     * @param file The file to write.
+     * @throws IOException If the file can not be written.
+     */
+    public static void save(Simulation simulation, File file) throws IOException {
+        long seed = simulation.reseed();
+
+        AgentStore agents = simulation.agents;
+        TrailMap trail = simulation.trail;
+        AgentPreset preset = simulation.preset;
+        int count = agents.count;
+        int pixels = trail.size();
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION);
+            header.putInt(trail.width).putInt(trail.height).putInt(count);
+            header.putLong(seed).putInt(simulation.stepsSinceSort);
+            header.putDouble(preset.moveSpeed).putDouble(preset.turnSpeed).putInt(preset.sensorSize);
+            header.putDouble(preset.sensorDistance).putDouble(preset.sensorOffsetAngle);
+            header.putInt(preset.colorR).putInt(preset.colorG).putInt(preset.colorB);
+            int[][] speciesWeights = agents.speciesWeights;
+            header.putInt(speciesWeights == null ? 0 : speciesWeights.length);
+            if(speciesWeights != null){
+                for(int[] weights : speciesWeights){
+                    for(int weight : weights) header.putInt(weight);
+                }
+            }
+
+            byte[] name = preset.name.getBytes(StandardCharsets.UTF_8);
+            int nameLength = Math.min(name.length, NAME_BYTES);
+            header.position(HEADER_BYTES - NAME_BYTES - 4);
+            header.putInt(nameLength).put(name, 0, nameLength);
+
+            long position = HEADER_BYTES;
+            for(double[] values : doubleArrays(agents)){
+                map(channel, FileChannel.MapMode.READ_WRITE, position, 8L * count).asDoubleBuffer().put(values, 0, count);
+                position += 8L * count;
+            }
+            for(int[] values : new int[][]{ agents.sensorSize, agents.color }){
+                map(channel, FileChannel.MapMode.READ_WRITE, position, 4L * count).asIntBuffer().put(values, 0, count);
+                position += 4L * count;
+            }
+            if(speciesWeights != null){
+                map(channel, FileChannel.MapMode.READ_WRITE, position, count).put(agents.species, 0, count);
+                position += count;
+            }
+            map(channel, FileChannel.MapMode.READ_WRITE, position, 4L * pixels).asIntBuffer().put(trail.color);
+            position += 4L * pixels;
+            map(channel, FileChannel.MapMode.READ_WRITE, position, 2L * pixels).asShortBuffer().put(trail.intensity);
+        }
+    }
+
+    /**
+     * Read the state of a simulation back from a file. Must run while no phase is running.
+     * @param simulation The simulation to restore, its trail must be the size of the saved one.
+     * @param file The file to read.
+     * The file is checked before the simulation is changed, a damaged file leaves the simulation as it was.
+     * @throws IOException If the file can not be read, is damaged or was saved from a different trail size.
+     */
+    public static void restore(Simulation simulation, File file) throws IOException {
+        TrailMap trail = simulation.trail;
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            if(channel.size() < HEADER_BYTES) throw new IOException(file + " is not a checkpoint");
+
+            MappedByteBuffer header = map(channel, FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if(header.getInt() != MAGIC) throw new IOException(file + " is not a checkpoint");
+            int version = header.getInt();
+            if(version < 1 || version > VERSION) throw new IOException(file + " is checkpoint version " + version + ", expected " + VERSION);
+
+            int width = header.getInt(), height = header.getInt(), count = header.getInt();
+            if(width != trail.width || height != trail.height){
+                throw new IOException(file + " was saved from a " + width + "x" + height + " trail, the trail is " + trail.width + "x" + trail.height);
+            }
+            if(count < 0 || count > Integer.MAX_VALUE / 8) throw new IOException(file + " has " + count + " agents");
+            long seed = header.getLong();
+            int stepsSinceSort = header.getInt();
+
+            double moveSpeed = header.getDouble(), turnSpeed = header.getDouble();
+            int sensorSize = header.getInt();
+            double sensorDistance = header.getDouble(), sensorOffsetAngle = header.getDouble();
+            int colorR = header.getInt(), colorG = header.getInt(), colorB = header.getInt();
+            if(sensorSize < 0) throw new IOException(file + " has a sensor size of " + sensorSize);
+            if(!isChannel(colorR) || !isChannel(colorG) || !isChannel(colorB)){
+                throw new IOException(file + " has the color " + colorR + ", " + colorG + ", " + colorB);
+            }
+            int speciesCount = version >= 2 ? header.getInt() : 0;
+            if(speciesCount < 0 || speciesCount > Simulation.MAX_SPECIES) throw new IOException(file + " has " + speciesCount + " species");
+            int[][] speciesWeights = speciesCount == 0 ? null : new int[speciesCount][Simulation.MAX_SPECIES];
+            for(int s = 0; s < speciesCount; s++){
+                for(int c = 0; c < Simulation.MAX_SPECIES; c++) speciesWeights[s][c] = header.getInt();
+            }
+
+            header.position(HEADER_BYTES - NAME_BYTES - 4);
+            int nameLength = header.getInt();
+            if(nameLength < 0 || nameLength > NAME_BYTES) throw new IOException(file + " has a name of " + nameLength + " bytes");
+            byte[] name = new byte[nameLength];
+            header.get(name);
+
+            int pixels = trail.size();
+            long expected = HEADER_BYTES + (speciesCount == 0 ? 80L : 81L) * count + 6L * pixels;
+            if(channel.size() < expected) throw new IOException(file + " is truncated");
+
+            //The agents are read into a store of their own and the trail into its back buffer,
+            //so nothing the simulation uses is written until the whole file has been read and checked.
+            AgentStore agents = simulation.spawner.take(count);
+            try{
+                read(channel, agents, count, speciesWeights != null, trail);
+                check(agents, count, speciesCount, file);
+            }catch(IOException | RuntimeException e){
+                simulation.spawner.recycle(agents);
+                throw e;
+            }
+
+            simulation.cancelSpawn();
+            simulation.spawner.recycle(simulation.agents);
+            trail.swap();
+            agents.count = count;
+            agents.speciesWeights = speciesWeights;
+            simulation.agents = agents;
+            simulation.preset = new AgentPreset(new String(name, StandardCharsets.UTF_8), moveSpeed, turnSpeed,
+                sensorSize, sensorDistance, sensorOffsetAngle, colorR, colorG, colorB);
+            simulation.stepsSinceSort = stepsSinceSort;
+            simulation.reseed(seed);
+        }
+    }
+
+    /**
+     * Read the arrays of the agents and the trail that follow the header.
+     * @param channel The file.
+     * @param agents The store to read the agents into.
+     * @param count The number of agents.
+     * @param species True if the species of the agents are stored.
+     * @param trail The trail, its back buffer is read into.
+     * @throws IOException If the file can not be read.
+     */
+    private static void read(FileChannel channel, AgentStore agents, int count, boolean species, TrailMap trail) throws IOException {
+        int pixels = trail.size();
+        long position = HEADER_BYTES;
+        for(double[] values : doubleArrays(agents)){
+            map(channel, FileChannel.MapMode.READ_ONLY, position, 8L * count).asDoubleBuffer().get(values, 0, count);
+            position += 8L * count;
+        }
+        for(int[] values : new int[][]{ agents.sensorSize, agents.color }){
+            map(channel, FileChannel.MapMode.READ_ONLY, position, 4L * count).asIntBuffer().get(values, 0, count);
+            position += 4L * count;
+        }
+        if(species){
+            map(channel, FileChannel.MapMode.READ_ONLY, position, count).get(agents.species, 0, count);
+            position += count;
+        }
+        map(channel, FileChannel.MapMode.READ_ONLY, position, 4L * pixels).asIntBuffer().get(trail.backColor);
+        position += 4L * pixels;
+        map(channel, FileChannel.MapMode.READ_ONLY, position, 2L * pixels).asShortBuffer().get(trail.backIntensity);
+    }
+
+    /**
+     * Check the values of the agents read from a file that would make them sense or deposit outside their arrays.
+     * @param agents The agents read.
+     * @param count The number of agents.
+     * @param speciesCount The number of species, 0 for a single one.
+     * @param file The file, for the error message.
+     * @throws IOException If a value is out of its range.
+     */
+    private static void check(AgentStore agents, int count, int speciesCount, File file) throws IOException {
+        for(int i = 0; i < count; i++){
+            if(agents.sensorSize[i] < 0) throw new IOException(file + " has an agent with a sensor size of " + agents.sensorSize[i]);
+            if((agents.color[i] & 0xFF000000) != 0) throw new IOException(file + " has an agent with the color " + Integer.toHexString(agents.color[i]));
+            if(speciesCount > 0 && (agents.species[i] < 0 || agents.species[i] >= speciesCount)){
+                throw new IOException(file + " has an agent of species " + agents.species[i]);
+            }
+        }
+    }
+
+    /**
+     * Tell if a value fits in a color channel.
+     * @param value The value.
+     * @return True if it is in [0, 255].
+     */
+    private static boolean isChannel(int value) {
+        return value >= 0 && value <= 255;
+    }
+
+    /**
+     * Get the double arrays of a store in the order they are saved.
+     * @param agents The store.
+     * @return The arrays.
+     */
+    private static double[][] doubleArrays(AgentStore agents) {
+        return new double[][]{ agents.x, agents.y, agents.angle, agents.moveSpeed, agents.turnSpeed,
+            agents.sensorDistance, agents.sensorOffsetAngle, agents.sensorOffsetCos, agents.sensorOffsetSin };
+    }
+
+    /**
+     * Map a region of a file as little endian.
+     * @param channel The file.
+     * @param mode Read only or read write.
+     * @param position Where the region starts.
+     * @param size The size of the region, less than 2 GB.
+     * @return The mapped region.
+     * @throws IOException If the region can not be mapped.
+     */
+    private static MappedByteBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(mode, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+}
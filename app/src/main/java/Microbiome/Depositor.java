@@ -0,0 +1,151 @@
+package Microbiome;
+
+import java.util.Arrays;
+
+/**
+ * Deposits the color of every agent on the trail from all workers at once.
+ * The trail is split in stripes of rows, one for each worker, and the agents are binned by the stripe they stand in
+ * with a counting sort, so each worker only writes the rows of its own stripe and no pixel is shared between workers.
+ * Adding colors that saturate at 255 gives the same result in any order, so the trail is the same as a serial deposit
+ * however many agents meet on the same pixel.
+ */
+public class Depositor {
+
+    private final WorkerPool workers;
+    private final int stripes;
+
+    private final int[] rowStripe;      //The stripe each row of the trail belongs to.
+    private final int[][] counts;       //For each worker, how many of its agents stand in each stripe.
+    private final int[][] cursors;      //For each worker, where its next agent of each stripe goes in the bins.
+    private final int[] stripeStart;    //Index of the first agent of each stripe in the bins, plus the total at the end.
+    private int[] bins = new int[0];    //Index of every agent, grouped by stripe.
+
+    private AgentStore agents;
+    private TrailMap trail;
+    private int stride;
+    private final WorkerPool.RangeTask countTask = this::countStripe;
+    private final WorkerPool.RangeTask binTask = this::binStripe;
+    private final WorkerPool.RangeTask depositTask = this::depositStripe;
+
+    /**
+     * Creates the depositor and all of its buffers.
+     * @param height The height of the trail.
+     * @param workers The workers that share the stripes.
+     */
+    public Depositor(int height, WorkerPool workers) {
+        this.workers = workers;
+        this.stripes = Math.min(workers.size(), height);
+
+        rowStripe = new int[height];
+        for(int s = 0; s < stripes; s++){
+            int startRow = (int)((long)height * s / stripes);
+            int endRow = (int)((long)height * (s + 1) / stripes);
+            Arrays.fill(rowStripe, startRow, endRow, s);
+        }
+
+        counts = new int[workers.size()][stripes];
+        cursors = new int[workers.size()][stripes];
+        stripeStart = new int[stripes + 1];
+    }
+
+    /**
+     * Add the color of every agent to the front buffer of the trail.
+     * @param agents The store of all agents, every agent must stand inside the trail.
+     * @param trail The trail to deposit on, must be the height given to the depositor.
+     */
+    public void deposit(AgentStore agents, TrailMap trail) {
+        deposit(agents, trail, 1);
+    }
+
+    /**
+     * Add the color of every stride-th agent to the front buffer of the trail, starting with the first agent.
+     * @param agents The store of all agents, every agent must stand inside the trail.
+     * @param trail The trail to deposit on, must be the height given to the depositor.
+     * @param stride Only agents whose index is a multiple of it are deposited.
+     */
+    public void deposit(AgentStore agents, TrailMap trail, int stride) {
+        if(stripes == 1){
+            for (int i = 0; i < agents.count; i += stride) {
+                Agent.draw(agents, i, trail);
+            }
+            return;
+        }
+
+        this.agents = agents;
+        this.trail = trail;
+        this.stride = stride;
+        if(bins.length < agents.count) bins = new int[agents.capacity()];
+
+        //Count the agents of each worker in each stripe, then lay the bins out stripe by stripe, worker by worker.
+        for(int[] count : counts) Arrays.fill(count, 0);
+        workers.parallelFor(agents.count, countTask);
+
+        int position = 0;
+        for(int s = 0; s < stripes; s++){
+            stripeStart[s] = position;
+            for(int w = 0; w < counts.length; w++){
+                cursors[w][s] = position;
+                position += counts[w][s];
+            }
+        }
+        stripeStart[stripes] = position;
+
+        //The same split of the agents is used again, so each worker fills the places it counted.
+        workers.parallelFor(agents.count, binTask);
+        workers.parallelFor(stripes, depositTask);
+
+        this.agents = null;
+        this.trail = null;
+    }
+
+    /**
+     * Count the agents of a part of the store in each stripe.
+     * @param worker The worker counting the part.
+     * @param start The first agent of the part.
+     * @param end The agent after the last agent of the part.
+     */
+    private void countStripe(int worker, int start, int end) {
+        int[] count = counts[worker];
+        double[] y = agents.y;
+        for(int i = firstActive(start); i < end; i += stride){
+            count[rowStripe[(int)y[i]]]++;
+        }
+    }
+
+    /**
+     * Put the agents of a part of the store in the bin of their stripe.
+     * @param worker The worker binning the part.
+     * @param start The first agent of the part.
+     * @param end The agent after the last agent of the part.
+     */
+    private void binStripe(int worker, int start, int end) {
+        int[] cursor = cursors[worker];
+        int[] bins = this.bins;
+        double[] y = agents.y;
+        for(int i = firstActive(start); i < end; i += stride){
+            bins[cursor[rowStripe[(int)y[i]]]++] = i;
+        }
+    }
+
+    /**
+     * Get the first agent at or after an index that is deposited.
+     * @param start The index.
+     * @return The first multiple of the stride at or after the index.
+     */
+    private int firstActive(int start) {
+        return start + Math.floorMod(-start, stride);
+    }
+
+    /**
+     * Deposit the agents of some stripes, only the rows of those stripes are written.
+     * @param worker The worker owning the stripes.
+     * @param startStripe The first stripe.
+     * @param endStripe The stripe after the last stripe.
+     */
+    private void depositStripe(int worker, int startStripe, int endStripe) {
+        int[] bins = this.bins;
+        for(int k = stripeStart[startStripe]; k < stripeStart[endStripe]; k++){
+            Agent.draw(agents, bins[k], trail);
+        }
+    }
+}
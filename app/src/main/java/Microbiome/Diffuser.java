@@ -0,0 +1,247 @@
+package Microbiome;
+
+import java.util.Arrays;
+
+/**
+ * Diffuses and evaporates the trail.
+ * Gives the same result as a 3x3 box blur followed by darkening and a lerp towards the blurred color,
+ * but sums the box in two separable passes and slides a window of three summed rows down the image.
+ * The image is split in stripes of rows, one for each worker, and the loops over a row run on the Kernels.
+ * Without the vector backend, rows are summed with the channels spread over the lanes of a long and darkened and lerped
+ * with PackedColor, so each step handles the three channels at once, as long as the fixed point lerp rounds like lerpSteps.
+ */
+public class Diffuser {
+
+    public float diffuseSpeed = 10f;    //How fast the trail moves towards the blurred color.
+    public int darkenSpeed = 2000;      //How fast the trail evaporates.
+
+    private final int width;
+    private final int height;
+    private final WorkerPool workers;
+    private final Kernels kernels;
+
+    //For each worker, three rows of horizontal sums, each stored as an R, a G and a B plane.
+    private final int[][][] windows;
+    //For each worker, the current and the next row split into padded R, G and B planes.
+    private final int[][][] channels;
+    //For each worker, three rows of horizontal sums of wide colors, null with the vector backend.
+    private final long[][][] wideWindows;
+    private final WorkerPool.RangeTask diffuseTask = this::diffuseStripe;
+
+    private int[] source;
+    private int[] target;
+    private short[] targetIntensity;
+    private int darkenDelta;
+    private float lerpAmount = Float.NaN;
+    private int lerpFixed;                          //The lerp amount in 16.16 fixed point, -1 when it rounds differently.
+    private final int[] lerpSteps = new int[511];   //The rounded lerp step for every difference in [-255, 255].
+
+    /**
+     * Creates the diffuser and all of its buffers.
+     * @param width The width of the trail.
+     * @param height The height of the trail.
+     * @param workers The workers that share the rows.
+     * @param kernels The kernels that run the loops over a row.
+     */
+    public Diffuser(int width, int height, WorkerPool workers, Kernels kernels) {
+        this.width = width;
+        this.height = height;
+        this.workers = workers;
+        this.kernels = kernels;
+
+        windows = new int[workers.size()][3][width * 3];
+        channels = new int[workers.size()][2][(width + 2) * 3];
+        wideWindows = kernels.isVector() ? null : new long[workers.size()][3][width];
+    }
+
+    /**
+     * Diffuse the front buffer of the trail into its back buffer, then swap the buffers.
+     * @param trail The trail to diffuse, must be the size given to the diffuser.
+     */
+    public void diffuse(TrailMap trail) {
+        updateRates();
+        this.source = trail.color;
+        this.target = trail.backColor;
+        this.targetIntensity = trail.backIntensity;
+
+        workers.parallelFor(height, diffuseTask);
+
+        this.source = null;
+        this.target = null;
+        this.targetIntensity = null;
+
+        trail.swap();
+    }
+
+    /**
+     * Work out the darkening and the lerp of a step from diffuseSpeed and darkenSpeed, before diffuseRows is called.
+     */
+    public void updateRates() {
+        this.darkenDelta = (int)(darkenSpeed * GlobalSettings.DELTA_TIME);
+
+        float amount = Math.min(1f, Math.max(0f, diffuseSpeed * (float)GlobalSettings.DELTA_TIME));
+        if(amount != lerpAmount){
+            lerpAmount = amount;
+            lerpFixed = Math.round(amount * 65536);
+            for(int difference = -255; difference <= 255; difference++){
+                lerpSteps[difference + 255] = Math.round(difference * amount);
+                if(((difference * lerpFixed + 32768) >> 16) != lerpSteps[difference + 255]) lerpFixed = -1;
+            }
+        }
+    }
+
+    /**
+     * Diffuse some rows of the front buffer of a trail into its back buffer, without swapping the buffers.
+     * Workers may diffuse different trails of the size given to the diffuser at the same time, with the rates of the last updateRates.
+     * @param trail The trail to diffuse.
+     * @param worker The worker diffusing the rows, whose buffers are used.
+     * @param startRow The first row to diffuse.
+     * @param endRow The row after the last row to diffuse.
+     */
+    public void diffuseRows(TrailMap trail, int worker, int startRow, int endRow) {
+        diffuseRows(trail.color, trail.backColor, trail.backIntensity, worker, startRow, endRow);
+    }
+
+    /**
+     * Diffuse one stripe of rows of the trail being diffused.
+     * @param worker The worker that owns the stripe.
+     * @param startRow The first row of the stripe.
+     * @param endRow The row after the last row of the stripe.
+     */
+    private void diffuseStripe(int worker, int startRow, int endRow) {
+        diffuseRows(source, target, targetIntensity, worker, startRow, endRow);
+    }
+
+    /**
+     * Diffuse rows of packed colors, with the packed path when it rounds the same.
+     * @param source The colors to diffuse.
+     * @param target The colors to write.
+     * @param targetIntensity The R + G + B to write.
+     * @param worker The worker whose buffers are used.
+     * @param startRow The first row.
+     * @param endRow The row after the last row.
+     */
+    private void diffuseRows(int[] source, int[] target, short[] targetIntensity, int worker, int startRow, int endRow) {
+        if(wideWindows != null && lerpFixed >= 0) diffuseRowsPacked(source, target, targetIntensity, worker, startRow, endRow);
+        else diffuseRowsPlanar(source, target, targetIntensity, worker, startRow, endRow);
+    }
+
+    /**
+     * Diffuse rows with the channels split into planes.
+     * @param source The colors to diffuse.
+     * @param target The colors to write.
+     * @param targetIntensity The R + G + B to write.
+     * @param worker The worker whose buffers are used.
+     * @param startRow The first row.
+     * @param endRow The row after the last row.
+     */
+    private void diffuseRowsPlanar(int[] source, int[] target, short[] targetIntensity, int worker, int startRow, int endRow) {
+        int[][] window = windows[worker];
+        int[] above = window[0];
+        int[] middle = window[1];
+        int[] below = window[2];
+
+        int[] current = channels[worker][0];
+        int[] next = channels[worker][1];
+
+        sumRow(source, startRow - 1, next, above);
+        sumRow(source, startRow, current, middle);
+
+        for(int y = startRow; y < endRow; y++){
+            sumRow(source, y + 1, next, below);
+            kernels.blendRow(above, middle, below, current, width, darkenDelta, lerpSteps, lerpFixed, target, targetIntensity, y * width);
+
+            //Slide the window down one row by rotating the buffers.
+            int[] recycled = above;
+            above = middle;
+            middle = below;
+            below = recycled;
+
+            recycled = current;
+            current = next;
+            next = recycled;
+        }
+    }
+
+    /**
+     * Diffuse rows with the channels of every pixel packed together.
+     * @param source The colors to diffuse.
+     * @param target The colors to write.
+     * @param targetIntensity The R + G + B to write.
+     * @param worker The worker whose buffers are used.
+     * @param startRow The first row.
+     * @param endRow The row after the last row.
+     */
+    private void diffuseRowsPacked(int[] source, int[] target, short[] targetIntensity, int worker, int startRow, int endRow) {
+        long[][] window = wideWindows[worker];
+        long[] above = window[0];
+        long[] middle = window[1];
+        long[] below = window[2];
+
+        int darken = Math.min(255, darkenDelta);
+        int lerpFixed = this.lerpFixed;
+
+        sumRowWide(source, startRow - 1, above);
+        sumRowWide(source, startRow, middle);
+
+        for(int y = startRow; y < endRow; y++){
+            sumRowWide(source, y + 1, below);
+
+            int offset = y * width;
+            for(int x = 0; x < width; x++){
+                int average = PackedColor.averageOfNine(above[x] + middle[x] + below[x]);
+                int color = PackedColor.lerp(source[offset + x], PackedColor.darken(average, darken), lerpFixed);
+                target[offset + x] = color;
+                targetIntensity[offset + x] = (short)PackedColor.sum(color);
+            }
+
+            //Slide the window down one row by rotating the buffers.
+            long[] recycled = above;
+            above = middle;
+            middle = below;
+            below = recycled;
+        }
+    }
+
+    /**
+     * Sum each pixel of a row with its left and right neighbours, with the channels in the lanes of a long.
+     * Rows outside of the trail sum to zero.
+     * @param source The colors to sum.
+     * @param y The row to sum.
+     * @param sums The buffer to write the wide sums to.
+     */
+    private void sumRowWide(int[] source, int y, long[] sums) {
+        if(y < 0 || y >= height){
+            Arrays.fill(sums, 0);
+            return;
+        }
+
+        int offset = y * width;
+        long previous = 0;
+        long current = PackedColor.widen(source[offset]);
+        for(int x = 0; x < width - 1; x++){
+            long next = PackedColor.widen(source[offset + x + 1]);
+            sums[x] = previous + current + next;
+            previous = current;
+            current = next;
+        }
+        sums[width - 1] = previous + current;
+    }
+
+    /**
+     * Split a row into planes and sum each pixel with its left and right neighbours. Rows outside of the trail sum to zero.
+     * @param source The colors to sum.
+     * @param y The row to sum.
+     * @param channels The buffer to split the row into.
+     * @param sums The buffer to write the R, G and B sums to.
+     */
+    private void sumRow(int[] source, int y, int[] channels, int[] sums) {
+        if(y < 0 || y >= height){
+            Arrays.fill(sums, 0);
+            return;
+        }
+
+        kernels.unpackRow(source, y * width, width, channels);
+        kernels.sumRow(channels, width, sums);
+    }
+}
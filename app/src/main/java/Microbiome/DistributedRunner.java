@@ -0,0 +1,345 @@
+package Microbiome;
+
+import Microbiome.AgentPresets.AgentPreset;
+import Microbiome.AgentPresets.PresetCatalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs one world split over several JVM processes, each owning a horizontal band of the trail and the agents inside it.
+ * <p>
+ * This process is the coordinator. It starts one BandWorker process for each band on the same machine, tells every band
+ * where its upper neighbour listens, and then only collects the scaled down bands and puts them together into preview frames.
+ * The bands run the steps among themselves, exchanging halo rows and agents with their neighbours over loopback sockets.
+ * <p>
+ * Usage: DistributedRunner [--bands N] [--workers N] [--preset NAME] [--agents N] [--width W] [--height H] [--seed S]
+ * [--steps N] [--spawn-size D] [--every N] [--preview-factor F] [--out DIR] [--fast-math true|false]
+ * [--species NAME,NAME,...] [--species-weights SELF,OTHER|W,W,...] [--band-memory SIZE]
+ * <p>
+ * Frames are written every N steps and after the last one, scaled down by F in both directions.
+ */
+public class DistributedRunner {
+
+    public int bands = 2;                       //Number of band processes.
+    public int workers = Math.max(1, GlobalSettings.WORKER_COUNT / 2);  //Workers in each band process.
+    public String presetName = "Default";       //Name of the preset the agents are spawned with.
+    public int totalAgents = 50000;             //Total agents of the whole world.
+    public int width = GlobalSettings.CANVAS_WIDTH;
+    public int height = GlobalSettings.CANVAS_HEIGHT;
+    public long seed = 0;                       //Seed of every random stream of the run.
+    public int steps = 1000;                    //Number of steps to simulate.
+    public double spawnAreaSize = 150;          //Maximum distance of the spawn area.
+    public int every = 0;                       //Write every Nth step as well as the last, 0 for only the last.
+    public int previewFactor = 1;               //The frames are this many times smaller than the world in both directions.
+    public File outputDirectory = new File(".");
+    public boolean fastMath = GlobalSettings.FAST_MATH;             //Move the agents with the TrigTable.
+    public String species;                      //Names of the presets spawned together, null to spawn only the preset.
+    public String speciesWeights = GlobalSettings.SPECIES_WEIGHTS;  //How much each species is drawn to each channel.
+    public String bandMemory;                   //Maximum heap of each band process, like 4g, null for the default.
+
+    private final List<String> arguments = new ArrayList<>();      //The options as given, passed on to the bands.
+
+    /**
+     * The frame of one step, filled as the bands send their part.
+     */
+    private static class Frame {
+        final int[] pixels;
+        int bands;              //Bands received so far.
+
+        Frame(int size) {
+            pixels = new int[size];
+        }
+    }
+
+    /**
+     * Read the options from the command line.
+     * @param args The command line arguments.
+     * @return The runner with the options set.
+     */
+    public static DistributedRunner parse(String[] args) {
+        DistributedRunner runner = new DistributedRunner();
+
+        for(int i = 0; i < args.length; i++){
+            String option = args[i];
+            if(i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+
+            switch(option){
+                case "--bands": runner.bands = Integer.parseInt(value); break;
+                case "--workers": runner.workers = Integer.parseInt(value); break;
+                case "--preset": runner.presetName = value; break;
+                case "--agents": runner.totalAgents = Integer.parseInt(value); break;
+                case "--width": runner.width = Integer.parseInt(value); break;
+                case "--height": runner.height = Integer.parseInt(value); break;
+                case "--seed": runner.seed = Long.parseLong(value); break;
+                case "--steps": runner.steps = Integer.parseInt(value); break;
+                case "--spawn-size": runner.spawnAreaSize = Double.parseDouble(value); break;
+                case "--every": runner.every = Integer.parseInt(value); break;
+                case "--preview-factor": runner.previewFactor = Integer.parseInt(value); break;
+                case "--out": runner.outputDirectory = new File(value); break;
+                case "--fast-math": runner.fastMath = Boolean.parseBoolean(value); break;
+                case "--species": runner.species = value; break;
+                case "--species-weights": runner.speciesWeights = value; break;
+                case "--band-memory": runner.bandMemory = value; break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+            runner.arguments.add(option);
+            runner.arguments.add(value);
+        }
+
+        Agent.checkSize("The world", runner.width, runner.height);
+        if(runner.bands < 1 || runner.bands > runner.height) throw new IllegalArgumentException("Between 1 and " + runner.height + " bands can be run");
+        if(runner.previewFactor < 1) throw new IllegalArgumentException("The preview factor must be at least 1");
+        return runner;
+    }
+
+    /**
+     * Get the presets the agents are spawned with, the same in every process.
+     * @return The preset of each species, or only the preset when no species are given.
+     * @throws IOException If the preset catalog can not be read.
+     */
+    public AgentPreset[] presets() throws IOException {
+        AgentPreset[] all = PresetCatalog.loadAll(new File(GlobalSettings.PRESET_FILE));
+        if(species != null) return AgentPreset.findAll(all, species);
+
+        AgentPreset preset = AgentPreset.find(all, presetName);
+        if(preset == null) throw new IllegalArgumentException("Unknown preset " + presetName);
+        return new AgentPreset[]{ preset };
+    }
+
+    /**
+     * Get the species weights of the spawn.
+     * @return The weights, or null for a single preset.
+     * @throws IOException If the preset catalog can not be read.
+     */
+    public int[][] weights() throws IOException {
+        return species == null ? null : Simulation.parseSpeciesWeights(speciesWeights, presets().length);
+    }
+
+    /**
+     * Get the rows above and below a band that are copied from its neighbours, enough for the farthest sensor
+     * and one more for the diffusion.
+     * @return The number of halo rows on each side.
+     * @throws IOException If the preset catalog can not be read.
+     */
+    public int halo() throws IOException {
+        int reach = 0;
+        for(AgentPreset preset : presets()){
+            reach = Math.max(reach, (int)Math.ceil(preset.sensorDistance) + preset.sensorSize);
+        }
+        return reach + 1;
+    }
+
+    /**
+     * Get the first row of a band. Bands start on a multiple of the preview factor, so every pixel of a preview frame
+     * is made from the rows of one band.
+     * @param band The band, or the number of bands for the end of the last band.
+     * @return The first row of the band.
+     */
+    public int bandStart(int band) {
+        if(band >= bands) return height;
+        return (int)((long)height * band / bands) / previewFactor * previewFactor;
+    }
+
+    /**
+     * Get the width of the preview frames.
+     * @return The width of the world divided by the preview factor, rounded up.
+     */
+    public int frameWidth() {
+        return (width + previewFactor - 1) / previewFactor;
+    }
+
+    /**
+     * Get the height of the preview frames.
+     * @return The height of the world divided by the preview factor, rounded up.
+     */
+    public int frameHeight() {
+        return (height + previewFactor - 1) / previewFactor;
+    }
+
+    /**
+     * Start the bands, wire them together and write the frames they send until every band is done.
+     * @throws IOException If a band fails or a frame can not be written.
+     */
+    public void run() throws IOException {
+        //A band with neighbours sends them its rows for their halo, so it needs at least as many rows as the halo.
+        int halo = bands > 1 ? halo() : 1;
+        for(int b = 0; b < bands; b++){
+            int rows = bandStart(b + 1) - bandStart(b);
+            if(rows < halo) throw new IllegalArgumentException("Too many bands for " + height + " rows: band " + b + " has " + rows
+                + " rows, fewer than its halo of " + halo + (previewFactor > 1 ? " with a preview factor of " + previewFactor : ""));
+        }
+        if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) throw new IOException("Can not create " + outputDirectory);
+
+        List<Process> processes = new ArrayList<>();
+        boolean finished = false;
+        try(Selector selector = Selector.open();
+            ServerSocketChannel server = ServerSocketChannel.open()){
+
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+            for(int b = 0; b < bands; b++){
+                processes.add(startBand(b, port));
+            }
+
+            //Every band says hello with the port it accepts its lower neighbour on.
+            //A band that dies before it connects never will, so the bands are checked every time the wait wakes up.
+            server.configureBlocking(false);
+            SelectionKey acceptKey = server.register(selector, SelectionKey.OP_ACCEPT);
+            BandChannel[] channels = new BandChannel[bands];
+            int[] peerPorts = new int[bands];
+            for(int connected = 0; connected < bands; connected++){
+                SocketChannel socket;
+                while((socket = server.accept()) == null){
+                    selector.select(1000);
+                    selector.selectedKeys().clear();
+                    checkAlive(processes);
+                }
+                BandChannel channel = new BandChannel(socket, selector);
+                ByteBuffer[] hello = new ByteBuffer[1];
+                BandChannel.exchange(selector, new BandChannel[]{ channel }, BandChannel.HELLO, hello, null);
+                int band = hello[0].getInt();
+                peerPorts[band] = hello[0].getInt();
+                channels[band] = channel;
+            }
+            acceptKey.cancel();
+            for(int b = 0; b < bands; b++){
+                channels[b].message(BandChannel.PEERS, 4).putInt(b == 0 ? -1 : peerPorts[b - 1]);
+                channels[b].drain(selector);
+            }
+
+            collect(selector, channels);
+            for(BandChannel channel : channels) channel.close();
+            finished = true;
+        }finally{
+            //After a failure the other bands would wait for their neighbours forever.
+            if(!finished){
+                for(Process process : processes) process.destroy();
+            }
+            for(Process process : processes){
+                try{
+                    if(process.waitFor() != 0) System.err.println("A band exited with " + process.exitValue());
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    process.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure every band is still running.
+     * @param processes The process of each band.
+     * @throws IOException If a band has exited.
+     */
+    private static void checkAlive(List<Process> processes) throws IOException {
+        for(int b = 0; b < processes.size(); b++){
+            Process process = processes.get(b);
+            if(!process.isAlive()) throw new IOException("Band " + b + " exited with " + process.exitValue() + " before it was done");
+        }
+    }
+
+    /**
+     * Start the process of a band, with the same class path and the same options as this one.
+     * @param band The band.
+     * @param port The port of the coordinator.
+     * @return The process.
+     * @throws IOException If the process can not be started.
+     */
+    private Process startBand(int band, int port) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if(bandMemory != null) command.add("-Xmx" + bandMemory);
+        command.add("-Djava.awt.headless=true");
+        command.add("-Dmicrobiome.presets=" + new File(GlobalSettings.PRESET_FILE).getAbsolutePath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(BandWorker.class.getName());
+        command.add("--coordinator");
+        command.add(Integer.toString(port));
+        command.add("--band");
+        command.add(Integer.toString(band));
+        command.addAll(arguments);
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    /**
+     * Put the preview frames together and write them until every band is done, then print the totals.
+     * @param selector The selector the channels are registered with.
+     * @param channels The channel of each band.
+     * @throws IOException If a band fails or a frame can not be written.
+     */
+    private void collect(Selector selector, BandChannel[] channels) throws IOException {
+        int frameWidth = frameWidth();
+        Map<Integer, Frame> frames = new HashMap<>();
+        long agents = 0, sent = 0, slowestNanos = 0;
+        int done = 0;
+        boolean[] finished = new boolean[bands];
+
+        while(done < bands){
+            selector.select(1000);
+            selector.selectedKeys().clear();
+
+            for(int b = 0; b < bands; b++){
+                if(finished[b]) continue;
+
+                ByteBuffer message;
+                while(!finished[b] && (message = channels[b].poll()) != null){
+                    if(channels[b].type() == BandChannel.PREVIEW){
+                        int step = message.getInt();
+                        int firstRow = message.getInt();
+                        int rows = message.getInt();
+
+                        Frame frame = frames.computeIfAbsent(step, s -> new Frame(frameWidth * frameHeight()));
+                        message.asIntBuffer().get(frame.pixels, firstRow * frameWidth, rows * frameWidth);
+                        if(++frame.bands == bands){
+                            frames.remove(step);
+                            String name = step == steps ? "final" : String.format("frame-%06d", step);
+                            FrameWriter.writePng(frame.pixels, frameWidth, frameHeight(), new File(outputDirectory, name + ".png"));
+                        }
+                    }else if(channels[b].type() == BandChannel.DONE){
+                        agents += message.getLong();
+                        slowestNanos = Math.max(slowestNanos, message.getLong());
+                        sent += message.getLong();
+                        finished[b] = true;
+                        done++;
+                    }else{
+                        throw new IOException("Unexpected message " + channels[b].type() + " from band " + b);
+                    }
+                }
+            }
+        }
+
+        double seconds = slowestNanos / 1e9;
+        System.out.printf(Locale.ROOT, "%d bands: %d agents, %dx%d, %d steps in %.2f s (%.1f steps/s), %.1f MB sent between bands%n",
+            bands, agents, width, height, steps, seconds, steps / Math.max(seconds, 1e-9), sent / 1e6);
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        try{
+            parse(args).run();
+        }catch(IllegalArgumentException e){
+            System.err.println(e.getMessage());
+            System.err.println("Usage: DistributedRunner [--bands N] [--workers N] [--preset NAME] [--agents N] [--width W] [--height H] [--seed S]"
+                + " [--steps N] [--spawn-size D] [--every N] [--preview-factor F] [--out DIR] [--fast-math true|false]"
+                + " [--species NAME,NAME,...] [--species-weights SELF,OTHER|W,W,...] [--band-memory SIZE]");
+            System.exit(1);
+        }
+    }
+}
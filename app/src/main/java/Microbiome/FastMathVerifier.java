@@ -0,0 +1,125 @@
+package Microbiome;
+
+import java.util.Locale;
+
+/**
+ * Measures how far the fast math path of the agents drifts from the exact path.
+ * For each agent it checks, it works out the heading and the three sensor positions both ways on the same state,
+ * and counts how often the two paths would steer differently. A heading further off than TrigTable.MAX_ERROR
+ * means the table no longer rounds to the nearest step and is counted as a failure.
+ * Each worker keeps its own totals so checking does not contend between threads.
+ */
+public class FastMathVerifier {
+
+    private static final double ROUNDING = 1e-12;  //Slack on TrigTable.MAX_ERROR for the rounding of the exact sine and cosine.
+
+    private final double[] maxHeadingError;     //Largest heading difference, in radian, for each worker.
+    private final double[] maxSensorError;      //Largest sensor position difference, in pixels, for each worker.
+    private final long[] decisionMismatches;    //Number of different steering decisions for each worker.
+    private final long[] headingFailures;       //Number of headings further off than TrigTable.MAX_ERROR for each worker.
+    private final long[] samples;               //Number of agents checked for each worker.
+
+    /**
+     * Creates a verifier with empty totals.
+     * @param workers The number of workers that check agents.
+     */
+    public FastMathVerifier(int workers) {
+        maxHeadingError = new double[workers];
+        maxSensorError = new double[workers];
+        decisionMismatches = new long[workers];
+        headingFailures = new long[workers];
+        samples = new long[workers];
+    }
+
+    /**
+     * Compare the exact and the fast path for one agent without changing it.
+     * @param worker The worker doing the check.
+     * @param agents The store of all agents.
+     * @param i The index of the agent.
+     * @param trail The trail the agents leave.
+     */
+    public void check(int worker, AgentStore agents, int i, TrailMap trail) {
+        double angle = agents.angle[i];
+        double x = agents.x[i];
+        double y = agents.y[i];
+        double offset = agents.sensorOffsetAngle[i];
+        double distance = agents.sensorDistance[i];
+
+        double exactCos = Math.cos(angle);
+        double exactSin = Math.sin(angle);
+        double headingX = TrigTable.cos(angle);
+        double headingY = TrigTable.sin(angle);
+        double headingError = Math.abs(Math.atan2(headingX * exactSin - headingY * exactCos, headingX * exactCos + headingY * exactSin));
+
+        //The exact sensors turn the angle itself, the fast ones rotate the heading of the table like Agent.tickFast.
+        double offsetCos = agents.sensorOffsetCos[i];
+        double offsetSin = agents.sensorOffsetSin[i];
+        double exactForwardX = x + exactCos * distance, exactForwardY = y + exactSin * distance;
+        double exactLeftX = x + Math.cos(angle + offset) * distance, exactLeftY = y + Math.sin(angle + offset) * distance;
+        double exactRightX = x + Math.cos(angle - offset) * distance, exactRightY = y + Math.sin(angle - offset) * distance;
+        double fastForwardX = x + headingX * distance, fastForwardY = y + headingY * distance;
+        double fastLeftX = x + (headingX * offsetCos - headingY * offsetSin) * distance;
+        double fastLeftY = y + (headingX * offsetSin + headingY * offsetCos) * distance;
+        double fastRightX = x + (headingX * offsetCos + headingY * offsetSin) * distance;
+        double fastRightY = y + (headingY * offsetCos - headingX * offsetSin) * distance;
+
+        double sensorError = Math.max(Math.hypot(exactForwardX - fastForwardX, exactForwardY - fastForwardY),
+            Math.max(Math.hypot(exactLeftX - fastLeftX, exactLeftY - fastLeftY), Math.hypot(exactRightX - fastRightX, exactRightY - fastRightY)));
+
+        //Sense the way the agents do, with the weights of their species.
+        int exactDecision = Agent.decide(Agent.senseAt(agents, i, trail, exactForwardX, exactForwardY),
+            Agent.senseAt(agents, i, trail, exactLeftX, exactLeftY), Agent.senseAt(agents, i, trail, exactRightX, exactRightY));
+        int fastDecision = Agent.decide(Agent.senseAt(agents, i, trail, fastForwardX, fastForwardY),
+            Agent.senseAt(agents, i, trail, fastLeftX, fastLeftY), Agent.senseAt(agents, i, trail, fastRightX, fastRightY));
+
+        maxHeadingError[worker] = Math.max(maxHeadingError[worker], headingError);
+        maxSensorError[worker] = Math.max(maxSensorError[worker], sensorError);
+        if(exactDecision != fastDecision) decisionMismatches[worker]++;
+        if(headingError > TrigTable.MAX_ERROR + ROUNDING) headingFailures[worker]++;
+        samples[worker]++;
+    }
+
+    /**
+     * Clear the totals of every worker.
+     */
+    public void reset() {
+        for(int w = 0; w < samples.length; w++){
+            maxHeadingError[w] = 0;
+            maxSensorError[w] = 0;
+            decisionMismatches[w] = 0;
+            headingFailures[w] = 0;
+            samples[w] = 0;
+        }
+    }
+
+    /**
+     * Tell if every heading checked since the last reset was within TrigTable.MAX_ERROR of the exact one.
+     * @return True if no heading was further off.
+     */
+    public boolean withinBound() {
+        for(long failures : headingFailures){
+            if(failures > 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Describe the drift measured since the last reset.
+     * @return One line with the largest errors and the share of different steering decisions.
+     */
+    public String report() {
+        double headingError = 0, sensorError = 0;
+        long mismatches = 0, failures = 0, checked = 0;
+        for(int w = 0; w < samples.length; w++){
+            headingError = Math.max(headingError, maxHeadingError[w]);
+            sensorError = Math.max(sensorError, maxSensorError[w]);
+            mismatches += decisionMismatches[w];
+            failures += headingFailures[w];
+            checked += samples[w];
+        }
+
+        return String.format(Locale.ROOT, "Fast math drift: max heading error %.2e rad (bound %.2e, %d past it), max sensor error %.3f px, "
+            + "%d of %d decisions differ (%.3f%%)", headingError, TrigTable.MAX_ERROR, failures, sensorError, mismatches, checked,
+            checked == 0 ? 0 : 100.0 * mismatches / checked);
+    }
+}
@@ -0,0 +1,54 @@
+package Microbiome;
+
+/**
+ * Keeps the simulation on its own clock, separate from how often frames are rendered.
+ * <p>
+ * The real time between frames is added to an accumulator, and every whole step of DELTA_TIME in it is one step
+ * of the simulation, so a frame runs no step when frames come faster than steps and several when they come slower.
+ * At most maxSteps run in a frame. Time beyond that is dropped instead of being caught up later,
+ * so a machine that can not keep up runs the simulation slower rather than falling further and further behind.
+ */
+public class FrameClock {
+
+    public final long stepNanos;        //Simulated time of one step.
+    public final int maxSteps;          //Most steps run in one frame.
+
+    private long accumulated;           //Real time not simulated yet.
+    private long lastNanos;             //System.nanoTime of the previous frame, 0 before the first.
+    public long droppedNanos;           //Total real time that was never simulated.
+
+    /**
+     * Creates the clock.
+     * @param stepSeconds Simulated time of one step.
+     * @param maxSteps Most steps run in one frame.
+     */
+    public FrameClock(double stepSeconds, int maxSteps) {
+        this.stepNanos = (long)(stepSeconds * 1e9);
+        this.maxSteps = Math.max(1, maxSteps);
+    }
+
+    /**
+     * Add the time since the previous frame and take the steps it holds.
+     * The first frame always runs one step.
+     * @param nowNanos The System.nanoTime of this frame.
+     * @return The number of steps to run this frame, from 0 to maxSteps.
+     */
+    public int advance(long nowNanos) {
+        if(lastNanos == 0){
+            lastNanos = nowNanos;
+            return 1;
+        }
+
+        accumulated += nowNanos - lastNanos;
+        lastNanos = nowNanos;
+
+        int steps = (int)Math.min(accumulated / stepNanos, maxSteps);
+        accumulated -= steps * stepNanos;
+        if(accumulated >= stepNanos){
+            long dropped = accumulated - accumulated % stepNanos;
+            droppedNanos += dropped;
+            accumulated -= dropped;
+        }
+        return steps;
+    }
+}
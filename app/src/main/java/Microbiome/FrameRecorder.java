@@ -0,0 +1,233 @@
+package Microbiome;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Records frames without stalling the thread that renders them.
+ * <p>
+ * Frames are copied into a ring of slots allocated up front, and encoder threads write the slots out in the background.
+ * When every slot is still waiting to be written, the frame is either dropped or the caller waits for a free slot,
+ * as chosen by the policy. Frames are written as a numbered sequence of files, or as one raw video stream
+ * of 8 bit R, G, B frames back to back, which ffmpeg reads with {@code -f rawvideo -pix_fmt rgb24 -s WIDTHxHEIGHT}.
+ */
+public class FrameRecorder implements AutoCloseable {
+
+    /**
+     * What to do with a frame when every slot is still waiting to be written.
+     */
+    public enum Policy {
+        DROP,       //Skip the frame, the render loop never waits.
+        BLOCK       //Wait for a slot, no frame is lost.
+    }
+
+    /**
+     * Where the recorded frames go.
+     */
+    public enum Output {
+        PNG,        //One PNG file per frame.
+        RAW,        //One raw R, G, B file per frame.
+        STREAM      //All frames in one raw R, G, B file.
+    }
+
+    /**
+     * One frame waiting to be written.
+     */
+    private static class Slot {
+        final int[] pixels;
+        long frame;
+
+        Slot(int size) {
+            pixels = new int[size];
+        }
+    }
+
+    //Taken by an encoder to know it should stop.
+    private static final Slot END = new Slot(0);
+
+    public final int width;
+    public final int height;
+    public final Policy policy;
+    public final Output output;
+    public final File directory;
+
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> pending;
+    private final Thread[] encoders;
+    private final FileChannel stream;
+    private volatile IOException failure;
+
+    private long frames;            //Frames accepted so far, the number of the next frame.
+    private long dropped;           //Frames dropped because no slot was free.
+    private long waitNanos;         //Time the caller spent waiting for a slot.
+    private long recordNanos;       //Total time spent in record, waiting included.
+    private long maxRecordNanos;    //Longest time a single call to record took.
+
+    /**
+     * Creates the recorder, its slots and its encoder threads.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @param slots Number of frames that can wait to be written.
+     * @param encoderCount Number of encoder threads.
+     * @param output Where the frames go.
+     * @param policy What to do when no slot is free.
+     * @param directory The directory to write to, created if missing.
+     * @throws IOException If the directory or the stream can not be created.
+     */
+    public FrameRecorder(int width, int height, int slots, int encoderCount, Output output, Policy policy, File directory) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.policy = policy;
+        this.output = output;
+        this.directory = directory;
+        if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can not create " + directory);
+
+        free = new ArrayBlockingQueue<>(slots);
+        pending = new ArrayBlockingQueue<>(slots + encoderCount);
+        for(int s = 0; s < slots; s++){
+            free.add(new Slot(width * height));
+        }
+
+        stream = output == Output.STREAM ? FileChannel.open(new File(directory, "frames.rgb").toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) : null;
+
+        encoders = new Thread[Math.max(1, encoderCount)];
+        for(int e = 0; e < encoders.length; e++){
+            encoders[e] = new Thread(this::encode, "recorder-" + e);
+            encoders[e].setDaemon(true);
+            encoders[e].start();
+        }
+    }
+
+    /**
+     * Copy a frame into a free slot to be written in the background.
+     * @param pixels The pixels of the frame, [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB] or with any alpha.
+     * @return False if the frame was dropped.
+     * @throws IOException If an encoder failed to write an earlier frame.
+     */
+    public boolean record(int[] pixels) throws IOException {
+        long start = System.nanoTime();
+        if(failure != null) throw failure;
+
+        Slot slot = free.poll();
+        if(slot == null){
+            if(policy == Policy.DROP){
+                dropped++;
+                return false;
+            }
+            slot = takeFreeSlot();
+            waitNanos += System.nanoTime() - start;
+        }
+
+        System.arraycopy(pixels, 0, slot.pixels, 0, slot.pixels.length);
+        slot.frame = frames++;
+        pending.add(slot);
+
+        long elapsed = System.nanoTime() - start;
+        recordNanos += elapsed;
+        maxRecordNanos = Math.max(maxRecordNanos, elapsed);
+        return true;
+    }
+
+    /**
+     * Write every frame still waiting, stop the encoders and close the stream.
+     * @throws IOException If a frame could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        for(int e = 0; e < encoders.length; e++){
+            pending.add(END);
+        }
+        for(Thread encoder : encoders){
+            try{
+                encoder.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if(stream != null) stream.close();
+        if(failure != null) throw failure;
+    }
+
+    /**
+     * Describe what was recorded.
+     * @return One line with the frames written and dropped and what recording cost the caller.
+     */
+    public String report() {
+        return String.format(Locale.ROOT, "Recorded %d frames, dropped %d, waited %.1f ms for slots, record call %.3f ms on average and %.3f ms at most",
+            frames, dropped, waitNanos / 1e6, frames == 0 ? 0 : recordNanos / 1e6 / frames, maxRecordNanos / 1e6);
+    }
+
+    /**
+     * Wait for an encoder to give a slot back.
+     * @return The free slot.
+     * @throws IOException If interrupted while waiting.
+     */
+    private Slot takeFreeSlot() throws IOException {
+        try{
+            return free.take();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a free frame slot", e);
+        }
+    }
+
+    /**
+     * Body of an encoder thread, writes slots until it takes the end marker.
+     */
+    private void encode() {
+        ByteBuffer bytes = output == Output.STREAM ? ByteBuffer.allocateDirect(width * height * 3) : null;
+
+        while(true){
+            Slot slot;
+            try{
+                slot = pending.take();
+            }catch(InterruptedException e){
+                return;
+            }
+            if(slot == END) return;
+
+            try{
+                if(failure == null) write(slot, bytes);
+            }catch(IOException e){
+                failure = e;
+            }
+            free.add(slot);
+        }
+    }
+
+    /**
+     * Write one slot.
+     * @param slot The slot to write.
+     * @param bytes Buffer of one frame of R, G, B bytes, only used for the stream.
+     * @throws IOException If the frame can not be written.
+     */
+    private void write(Slot slot, ByteBuffer bytes) throws IOException {
+        String name = String.format(Locale.ROOT, "frame-%06d", slot.frame);
+        switch(output){
+            case PNG:
+                FrameWriter.writePng(slot.pixels, width, height, new File(directory, name + ".png"));
+                break;
+            case RAW:
+                FrameWriter.writeRaw(slot.pixels, width, height, new File(directory, name + ".rgb"));
+                break;
+            case STREAM:
+                //Each frame has its own place in the file, so encoders can write them in any order.
+                bytes.clear();
+                FrameWriter.packRgb(slot.pixels, bytes);
+                bytes.flip();
+                long position = slot.frame * bytes.capacity();
+                while(bytes.hasRemaining()){
+                    position += stream.write(bytes, position);
+                }
+                break;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package Microbiome;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the phases of the simulation in a fixed order with a barrier between phases that depend on each other.
+ * <p>
+ * A frame goes: sense and steer, move, diffuse, deposit, sort, present.
+ * Sense, steer and move of the next frame only read the front buffer of the trail, and present only reads it too,
+ * so the next frame is simulated on a background thread while the current one is presented.
+ * Diffuse and deposit write the trail, so they only start once that background step has finished.
+ * Anything that changes the simulation from outside, like switching preset, is posted as a command
+ * and runs at the frame boundary while nothing else is running. A spawn started by a command is prepared
+ * in the background and swapped in at the first frame boundary after it is ready.
+ */
+public class FrameScheduler {
+
+    private final Simulation simulation;
+    private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+
+    private final Semaphore stepRequested = new Semaphore(0);
+    private final Semaphore stepFinished = new Semaphore(0);
+    private volatile RuntimeException stepFailure;
+    private boolean stepping;
+
+    /**
+     * Creates the scheduler and the background thread that senses and moves the agents.
+     * @param simulation The simulation to schedule.
+     */
+    public FrameScheduler(Simulation simulation) {
+        this.simulation = simulation;
+
+        Thread thread = new Thread(this::runSteps, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run a command at the next frame boundary, when no phase is running.
+     * @param command The command to run.
+     */
+    public void post(Runnable command) {
+        commands.add(command);
+    }
+
+    /**
+     * Finish the simulation of the current frame.
+     * Waits for sense, steer and move, runs the posted commands, installs a spawn that is ready,
+     * then diffuses, deposits and sorts the agents when due.
+     * Afterwards the front buffer of the trail holds the frame and nothing else is writing to it.
+     */
+    public void finishFrame() {
+        awaitStep();
+
+        Runnable command;
+        while((command = commands.poll()) != null){
+            command.run();
+        }
+        simulation.installSpawn();
+
+        simulation.diffuseIfDue();
+        simulation.deposit();
+        simulation.sortIfDue();
+    }
+
+    /**
+     * Finish the current frame like finishFrame, then run more whole steps on the current thread.
+     * @param steps The number of steps the frame should advance the simulation by, at least 1.
+     */
+    public void finishFrame(int steps) {
+        finishFrame();
+        for(int step = 1; step < steps; step++){
+            simulation.step();
+        }
+    }
+
+    /**
+     * Start sensing, steering and moving the agents for the next frame on the background thread.
+     * The front buffer of the trail must only be read until the next call to finishFrame.
+     */
+    public void startNextFrame() {
+        stepping = true;
+        stepRequested.release();
+    }
+
+    /**
+     * Wait for the background step to finish, if one is running.
+     * Afterwards nothing runs in the background until the next call to startNextFrame.
+     */
+    public void awaitStep() {
+        if(!stepping) return;
+
+        stepFinished.acquireUninterruptibly();
+        stepping = false;
+
+        RuntimeException failure = stepFailure;
+        if(failure != null){
+            stepFailure = null;
+            throw failure;
+        }
+    }
+
+    /**
+     * Body of the background thread, runs one step every time one is requested.
+     */
+    private void runSteps() {
+        while(true){
+            stepRequested.acquireUninterruptibly();
+            try{
+                simulation.senseAndMove();
+            }catch(RuntimeException e){
+                stepFailure = e;
+            }
+            stepFinished.release();
+        }
+    }
+}
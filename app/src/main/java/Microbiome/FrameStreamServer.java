@@ -0,0 +1,425 @@
+package Microbiome;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Streams the frames of a running simulation to remote viewers over plain TCP, on its own thread.
+ * <p>
+ * The frame is split in tiles of TILE_SIZE pixels, and only the tiles that changed since the last frame are sent:
+ * their pixels XOR the previous frame, which is mostly zero, compressed with Deflate. So the bandwidth follows how much
+ * of the image changes, not its size. The delta of a frame is encoded once and shared by every viewer that is up to date.
+ * <p>
+ * A viewer that is still receiving an older frame when a new one is ready skips it, and the tiles it missed are
+ * remembered. Once it has caught up it gets the current pixels of those tiles in one message, so a slow viewer
+ * falls behind in frame rate, never in memory, and never holds the others back.
+ * <p>
+ * offer only copies the frame into a free buffer and returns. When the server is still encoding the frames before it,
+ * the frame replaces the one still waiting, so serving viewers never blocks the simulation and the newest frame is always sent.
+ * Closing the server sends the frame still waiting and gives the viewers a moment to receive it before they are disconnected.
+ * <p>
+ * The stream starts with the int MAGIC and the width, height and tile size, then every frame is
+ * [int length][int frame][byte kind][tile bitmap][int raw length][Deflate data], with the R, G and B bytes of every
+ * pixel of each tile set in the bitmap, tile by tile and row by row. Kind DELTA is XOR the previous frame,
+ * kind TILES replaces the pixels.
+ */
+public class FrameStreamServer implements AutoCloseable {
+
+    public static final int MAGIC = 0x4D425354;     //"MBST"
+    public static final int TILE_SIZE = 32;         //Width and height of a tile in pixels.
+    public static final byte DELTA = 0;             //The tiles XOR the previous frame.
+    public static final byte TILES = 1;             //The tiles replace the pixels.
+
+    //Bytes the system may queue for a viewer. Kept small so a slow viewer is seen as busy and skips frames,
+    //instead of the system queueing seconds of frames for it.
+    private static final int SEND_BUFFER = 1 << 17;
+    private static final long DRAIN_NANOS = 2_000_000_000L;    //How long close waits for the viewers to receive the last frame.
+
+    public final int width;
+    public final int height;
+    public final int port;              //The port the server listens on.
+
+    public long framesEncoded;          //Frames that changed and were encoded.
+    public long framesDropped;          //Frames skipped by a viewer that was busy, counted once for each viewer.
+    public long offersDropped;          //Frames replaced by a newer one before the server took them.
+    public long bytesSent;              //Bytes written to every viewer, headers included.
+
+    private final int columns;
+    private final int rows;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final ArrayDeque<int[]> free = new ArrayDeque<>();  //Buffers offer can fill. Guarded by this.
+    private int[] pending;                                      //The newest frame not encoded yet. Guarded by this.
+    private int[] previous;                                     //The last frame encoded, what every viewer is caught up to.
+
+    private final List<Viewer> viewers = new ArrayList<>();
+    private final boolean[] dirty;                              //The tiles that changed in the frame being encoded.
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] raw = new byte[0];                           //The bytes of the tiles before they are compressed.
+    private byte[] compressed = new byte[0];
+
+    /**
+     * One connected viewer.
+     */
+    private static class Viewer {
+        final SocketChannel channel;
+        final SelectionKey key;
+        final boolean[] stale;          //Tiles changed in frames the viewer skipped.
+        boolean behind;                 //True when some tiles are stale.
+        ByteBuffer out;                 //The message being written, null when the viewer is ready for the next.
+
+        Viewer(SocketChannel channel, SelectionKey key, int tiles) {
+            this.channel = channel;
+            this.key = key;
+            this.stale = new boolean[tiles];
+        }
+    }
+
+    /**
+     * Start the server on its own thread.
+     * @param port The port to listen on, 0 for any free port.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @throws IOException If the port can not be opened.
+     */
+    public FrameStreamServer(int port, int width, int height) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.dirty = new boolean[columns * rows];
+
+        previous = new int[width * height];
+        free.add(new int[width * height]);
+        free.add(new int[width * height]);
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+
+        thread = new Thread(this::serve, "frame-stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hand a frame to the server. Copies it and returns, replacing the frame still waiting if there is one.
+     * @param pixels The frame, packed as [.... .... RRRR RRRR GGGG GGGG BBBB BBBB], the alpha is ignored.
+     */
+    public void offer(int[] pixels) {
+        int[] buffer;
+        synchronized(this){
+            buffer = free.poll();
+            if(buffer == null && pending != null){
+                //The server holds the frame it encodes and the previous one, so the third buffer is the one waiting.
+                //The server only takes it under the lock, so it is overwritten in place.
+                System.arraycopy(pixels, 0, pending, 0, pending.length);
+                offersDropped++;
+                return;
+            }
+        }
+        if(buffer == null) return;
+
+        System.arraycopy(pixels, 0, buffer, 0, buffer.length);
+        synchronized(this){
+            //A newer frame makes the one still waiting stale.
+            if(pending != null){
+                free.add(pending);
+                offersDropped++;
+            }
+            pending = buffer;
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Get the number of viewers connected.
+     * @return The number of viewers.
+     */
+    public synchronized int viewerCount() {
+        return viewers.size();
+    }
+
+    /**
+     * Describe what was streamed.
+     * @return The frames, skips and bytes sent.
+     */
+    public String report() {
+        return String.format(Locale.ROOT, "Streamed %d frames to %d viewers on port %d: %.1f MB sent, %d frames skipped by busy viewers, %d replaced before they were encoded",
+            framesEncoded, viewerCount(), port, bytesSent / 1e6, framesDropped, offersDropped);
+    }
+
+    /**
+     * Stop the server, send the last frame offered and disconnect every viewer once it has received it,
+     * or after a short wait at most.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try{
+            thread.join();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The loop of the server thread: accept viewers, encode new frames and write to the viewers as they take it.
+     */
+    private void serve() {
+        try{
+            while(running){
+                selector.select();
+                for(SelectionKey key : selector.selectedKeys()){
+                    if(key.isValid() && key.isAcceptable()) accept();
+                }
+                selector.selectedKeys().clear();
+
+                publishPending();
+                writeAll();
+            }
+
+            //Send the last frame, a viewer that takes too long misses it.
+            publishPending();
+            long deadline = System.nanoTime() + DRAIN_NANOS;
+            while(writeAll() && System.nanoTime() < deadline){
+                selector.select(10);
+                selector.selectedKeys().clear();
+            }
+        }catch(IOException e){
+            System.err.println("Frame stream stopped: " + e.getMessage());
+        }finally{
+            for(int v = viewers.size() - 1; v >= 0; v--) disconnect(viewers.get(v));
+            try{
+                server.close();
+                selector.close();
+            }catch(IOException ignored){
+            }
+            deflater.end();
+        }
+    }
+
+    /**
+     * Publish the frame waiting, if there is one.
+     */
+    private void publishPending() {
+        int[] frame;
+        synchronized(this){
+            frame = pending;
+            pending = null;
+        }
+        if(frame != null) publish(frame);
+    }
+
+    /**
+     * Write to every viewer what it can take, disconnecting the ones that are gone.
+     * @return True if a viewer still has something to receive.
+     */
+    private boolean writeAll() {
+        boolean waiting = false;
+        for(int v = viewers.size() - 1; v >= 0; v--){
+            Viewer viewer = viewers.get(v);
+            try{
+                write(viewer);
+                waiting |= viewer.out != null || viewer.behind;
+            }catch(IOException e){
+                disconnect(viewer);
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Accept a new viewer and queue the header of the stream. Every tile is stale, so the first message it gets is the whole frame.
+     * @throws IOException If the viewer can not be set up.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if(channel == null) return;
+
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER);
+        Viewer viewer = new Viewer(channel, channel.register(selector, SelectionKey.OP_READ), dirty.length);
+        Arrays.fill(viewer.stale, true);
+        viewer.behind = true;
+        viewer.out = ByteBuffer.allocate(16).putInt(MAGIC).putInt(width).putInt(height).putInt(TILE_SIZE);
+        viewer.out.flip();
+        synchronized(this){
+            viewers.add(viewer);
+        }
+    }
+
+    /**
+     * Find the tiles that changed, encode their delta once for the viewers that are ready and mark them stale for the others.
+     * The frame becomes the previous frame and the old previous frame goes back to the free buffers.
+     * @param frame The new frame.
+     */
+    private void publish(int[] frame) {
+        boolean changed = false;
+        for(int t = 0; t < dirty.length; t++){
+            dirty[t] = tileChanged(frame, previous, t);
+            changed |= dirty[t];
+        }
+
+        if(changed){
+            framesEncoded++;
+            ByteBuffer delta = null;
+            for(Viewer viewer : viewers){
+                if(viewer.out == null && !viewer.behind){
+                    if(delta == null) delta = encode(DELTA, frame, previous, dirty);
+                    viewer.out = delta.duplicate();
+                }else{
+                    //The viewer is busy, it skips this frame and gets the tiles once it is free.
+                    for(int t = 0; t < dirty.length; t++) viewer.stale[t] |= dirty[t];
+                    viewer.behind = true;
+                    framesDropped++;
+                }
+            }
+        }
+
+        synchronized(this){
+            free.add(previous);
+        }
+        previous = frame;
+    }
+
+    /**
+     * Write what a viewer can take without blocking, and give it its stale tiles once it is free.
+     * @param viewer The viewer.
+     * @throws IOException If the viewer disconnected.
+     */
+    private void write(Viewer viewer) throws IOException {
+        if(viewer.out == null && viewer.behind){
+            viewer.out = encode(TILES, previous, null, viewer.stale);
+            Arrays.fill(viewer.stale, false);
+            viewer.behind = false;
+        }
+
+        if(viewer.out != null){
+            bytesSent += viewer.channel.write(viewer.out);
+            if(!viewer.out.hasRemaining()) viewer.out = null;
+        }
+
+        //Viewers never send anything, reading only notices when they disconnect.
+        if(viewer.key.isReadable() && viewer.channel.read(ByteBuffer.allocate(64)) < 0) throw new IOException("Viewer disconnected");
+        viewer.key.interestOps(viewer.out != null || viewer.behind ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Close the connection of a viewer and forget it.
+     * @param viewer The viewer.
+     */
+    private void disconnect(Viewer viewer) {
+        viewer.key.cancel();
+        try{
+            viewer.channel.close();
+        }catch(IOException ignored){
+        }
+        synchronized(this){
+            viewers.remove(viewer);
+        }
+    }
+
+    /**
+     * Tell if a tile differs between two frames.
+     * @param frame The new frame.
+     * @param reference The previous frame.
+     * @param tile The tile.
+     * @return True if any pixel of the tile differs in R, G or B.
+     */
+    private boolean tileChanged(int[] frame, int[] reference, int tile) {
+        int startX = (tile % columns) * TILE_SIZE, endX = Math.min(width, startX + TILE_SIZE);
+        int startY = (tile / columns) * TILE_SIZE, endY = Math.min(height, startY + TILE_SIZE);
+        for(int y = startY; y < endY; y++){
+            for(int pos = y * width + startX; pos < y * width + endX; pos++){
+                if(((frame[pos] ^ reference[pos]) & 0xFFFFFF) != 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode the tiles of a frame into one message.
+     * @param kind DELTA to XOR the reference, TILES to send the pixels.
+     * @param frame The frame.
+     * @param reference The frame to XOR, null for TILES.
+     * @param tiles The tiles to encode.
+     * @return The message, ready to be written.
+     */
+    private ByteBuffer encode(byte kind, int[] frame, int[] reference, boolean[] tiles) {
+        int size = 0;
+        for(int t = 0; t < tiles.length; t++){
+            if(tiles[t]) size += tileWidth(t) * tileHeight(t) * 3;
+        }
+        if(raw.length < size) raw = new byte[size];
+
+        int at = 0;
+        byte[] bitmap = new byte[(tiles.length + 7) / 8];
+        for(int t = 0; t < tiles.length; t++){
+            if(!tiles[t]) continue;
+
+            bitmap[t >> 3] |= 1 << (t & 7);
+            int startX = (t % columns) * TILE_SIZE, endX = startX + tileWidth(t);
+            int startY = (t / columns) * TILE_SIZE, endY = startY + tileHeight(t);
+            for(int y = startY; y < endY; y++){
+                for(int pos = y * width + startX; pos < y * width + endX; pos++){
+                    int value = reference == null ? frame[pos] : frame[pos] ^ reference[pos];
+                    raw[at++] = (byte)(value >> 16);
+                    raw[at++] = (byte)(value >> 8);
+                    raw[at++] = (byte)value;
+                }
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(raw, 0, size);
+        deflater.finish();
+        int length = 0;
+        while(!deflater.finished()){
+            if(compressed.length - length < 4096) compressed = Arrays.copyOf(compressed, Math.max(8192, compressed.length * 2));
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(4 + 4 + 1 + bitmap.length + 4 + length);
+        message.putInt(message.capacity() - 4).putInt((int)framesEncoded).put(kind).put(bitmap).putInt(size).put(compressed, 0, length);
+        message.flip();
+        return message;
+    }
+
+    /**
+     * Get the width of a tile, smaller on the right edge.
+     * @param tile The tile.
+     * @return The width in pixels.
+     */
+    private int tileWidth(int tile) {
+        return Math.min(TILE_SIZE, width - (tile % columns) * TILE_SIZE);
+    }
+
+    /**
+     * Get the height of a tile, smaller on the bottom edge.
+     * @param tile The tile.
+     * @return The height in pixels.
+     */
+    private int tileHeight(int tile) {
+        return Math.min(TILE_SIZE, height - (tile / columns) * TILE_SIZE);
+    }
+}
@@ -0,0 +1,160 @@
+package Microbiome;
+
+import javax.swing.ImageIcon;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Watches a FrameStreamServer from another machine, decoding the frames it sends into a full image.
+ * <p>
+ * Usage: FrameStreamViewer HOST:PORT [--out DIR] [--every N] [--frames N]
+ * <p>
+ * Without an output directory the frames are shown in a window. With one, every Nth frame received is written as PNG.
+ */
+public class FrameStreamViewer {
+
+    public final int width;
+    public final int height;
+    public final int[] pixels;          //The frame as decoded so far, packed as 0xFFRRGGBB.
+
+    public long frames;                 //Messages decoded.
+    public long bytesReceived;          //Bytes read, headers included.
+
+    private final DataInputStream in;
+    private final int tileSize;
+    private final int columns;
+    private final int rows;
+    private final Inflater inflater = new Inflater();
+    private byte[] message = new byte[0];
+    private byte[] raw = new byte[0];
+
+    /**
+     * Read the header of a stream.
+     * @param stream The stream of the server.
+     * @throws IOException If the stream is not a frame stream.
+     */
+    public FrameStreamViewer(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        if(in.readInt() != FrameStreamServer.MAGIC) throw new IOException("Not a frame stream");
+        width = in.readInt();
+        height = in.readInt();
+        tileSize = in.readInt();
+        columns = (width + tileSize - 1) / tileSize;
+        rows = (height + tileSize - 1) / tileSize;
+        pixels = new int[width * height];
+        bytesReceived = 16;
+    }
+
+    /**
+     * Read the next message and apply it to the pixels.
+     * @throws IOException If the stream ends or the message is broken.
+     */
+    public void next() throws IOException {
+        int length = in.readInt();
+        if(message.length < length) message = new byte[length];
+        in.readFully(message, 0, length);
+        bytesReceived += 4 + length;
+
+        byte kind = message[4];
+        int bitmapLength = (columns * rows + 7) / 8;
+        int at = 5 + bitmapLength;
+        int size = ((message[at] & 255) << 24) | ((message[at + 1] & 255) << 16) | ((message[at + 2] & 255) << 8) | (message[at + 3] & 255);
+        at += 4;
+
+        if(raw.length < size) raw = new byte[size];
+        inflater.reset();
+        inflater.setInput(message, at, length - at);
+        try{
+            int inflated = 0;
+            while(inflated < size){
+                int count = inflater.inflate(raw, inflated, size - inflated);
+                if(count == 0 && (inflater.finished() || inflater.needsInput())) throw new IOException("Frame data is too short");
+                inflated += count;
+            }
+        }catch(DataFormatException e){
+            throw new IOException("Broken frame data", e);
+        }
+
+        int read = 0;
+        for(int t = 0; t < columns * rows; t++){
+            if((message[5 + (t >> 3)] & (1 << (t & 7))) == 0) continue;
+
+            int startX = (t % columns) * tileSize, endX = Math.min(width, startX + tileSize);
+            int startY = (t / columns) * tileSize, endY = Math.min(height, startY + tileSize);
+            for(int y = startY; y < endY; y++){
+                for(int pos = y * width + startX; pos < y * width + endX; pos++){
+                    int value = ((raw[read] & 255) << 16) | ((raw[read + 1] & 255) << 8) | (raw[read + 2] & 255);
+                    read += 3;
+                    pixels[pos] = kind == FrameStreamServer.DELTA ? pixels[pos] ^ value : 0xFF000000 | value;
+                }
+            }
+        }
+        frames++;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1 || !args[0].contains(":")){
+            System.err.println("Usage: FrameStreamViewer HOST:PORT [--out DIR] [--every N] [--frames N]");
+            System.exit(1);
+        }
+
+        File outputDirectory = null;
+        int every = 1;
+        long maxFrames = Long.MAX_VALUE;
+        for(int i = 1; i + 1 < args.length; i += 2){
+            switch(args[i]){
+                case "--out": outputDirectory = new File(args[i + 1]); break;
+                case "--every": every = Integer.parseInt(args[i + 1]); break;
+                case "--frames": maxFrames = Long.parseLong(args[i + 1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if(outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) throw new IOException("Can not create " + outputDirectory);
+
+        String host = args[0].substring(0, args[0].lastIndexOf(':'));
+        int port = Integer.parseInt(args[0].substring(args[0].lastIndexOf(':') + 1));
+        try(Socket socket = new Socket(host, port)){
+            FrameStreamViewer viewer = new FrameStreamViewer(socket.getInputStream());
+            BufferedImage image = new BufferedImage(viewer.width, viewer.height, BufferedImage.TYPE_INT_RGB);
+            JLabel label = null;
+            if(outputDirectory == null){
+                JFrame window = new JFrame("Microbiome " + args[0]);
+                label = new JLabel(new ImageIcon(image));
+                window.add(label);
+                window.pack();
+                window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+                window.setVisible(true);
+            }
+
+            long start = System.nanoTime();
+            try{
+                while(viewer.frames < maxFrames){
+                    viewer.next();
+                    if(label != null){
+                        image.setRGB(0, 0, viewer.width, viewer.height, viewer.pixels, 0, viewer.width);
+                        label.repaint();
+                    }else if(viewer.frames % every == 0){
+                        FrameWriter.writePng(viewer.pixels, viewer.width, viewer.height, new File(outputDirectory, String.format("frame-%06d.png", viewer.frames)));
+                    }
+                }
+            }catch(EOFException e){
+                System.out.println("The stream ended");
+            }
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "%d frames, %.1f KB per frame, %.1f frames/s%n",
+                viewer.frames, viewer.bytesReceived / 1e3 / Math.max(1, viewer.frames), viewer.frames / Math.max(seconds, 1e-9));
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package Microbiome;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes frames of [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB] pixels to files.
+ */
+public class FrameWriter {
+
+    /**
+     * The file formats a frame can be written in.
+     */
+    public enum Format {
+        PNG("png"),     //Compressed image that any viewer can open.
+        RAW("rgb");     //Uncompressed 8 bit R, G, B bytes for each pixel, row by row, with no header.
+
+        public final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private FrameWriter() {}
+
+    /**
+     * Write a frame to a file.
+     * @param pixels The pixels of the frame.
+     * @param width Width of the frame.
+     * @param height Height of the frame.
+     * @param format The format to write.
+     * @param file The file to write to, replaced if it exists.
+     * @throws IOException If the file can not be written.
+     */
+    public static void write(int[] pixels, int width, int height, Format format, File file) throws IOException {
+        switch(format){
+            case PNG:
+                writePng(pixels, width, height, file);
+                break;
+            case RAW:
+                writeRaw(pixels, width, height, file);
+                break;
+        }
+    }
+
+    /**
+     * Write a frame as a PNG image.
+     * @param pixels The pixels of the frame.
+     * @param width Width of the frame.
+     * @param height Height of the frame.
+     * @param file The file to write to, replaced if it exists.
+     * @throws IOException If the file can not be written.
+     */
+    public static void writePng(int[] pixels, int width, int height, File file) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        if(!ImageIO.write(image, "png", file)) throw new IOException("No PNG writer available for " + file);
+    }
+
+    /**
+     * Write a frame as raw R, G, B bytes.
+     * @param pixels The pixels of the frame.
+     * @param width Width of the frame.
+     * @param height Height of the frame.
+     * @param file The file to write to, replaced if it exists.
+     * @throws IOException If the file can not be written.
+     */
+    public static void writeRaw(int[] pixels, int width, int height, File file) throws IOException {
+        byte[] row = new byte[width * 3];
+        try(OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)){
+            for(int y = 0; y < height; y++){
+                for(int x = 0; x < width; x++){
+                    int color = pixels[y * width + x];
+                    row[x * 3] = (byte)(color >> 16);
+                    row[x * 3 + 1] = (byte)(color >> 8);
+                    row[x * 3 + 2] = (byte)color;
+                }
+                out.write(row);
+            }
+        }
+    }
+
+    /**
+     * Put a frame into a buffer as raw R, G, B bytes.
+     * @param pixels The pixels of the frame.
+     * @param target The buffer to put the bytes in, with room for 3 bytes per pixel.
+     */
+    public static void packRgb(int[] pixels, ByteBuffer target) {
+        for(int color : pixels){
+            target.put((byte)(color >> 16));
+            target.put((byte)(color >> 8));
+            target.put((byte)color);
+        }
+    }
+}
@@ -6,8 +6,32 @@ package Microbiome;
 public class GlobalSettings{
     public final static int FRAME_RATE = 90;
     public final static double DELTA_TIME = 1 / (double)GlobalSettings.FRAME_RATE;
-    public final static int CANVAS_WIDTH = 700;
-    public final static int CANVAS_HEIGHT = 500;
-    public final static int BOTTOM_PRESERVE = 80;
-    public final static int TOTAL_PIXELS = CANVAS_WIDTH * CANVAS_HEIGHT;   
+    public final static int CANVAS_WIDTH = Integer.getInteger("microbiome.width", 700);
+    public final static int CANVAS_HEIGHT = Integer.getInteger("microbiome.height", 500);
+    public final static int BOTTOM_PRESERVE = 100;
+    public final static int TOTAL_PIXELS = CANVAS_WIDTH * CANVAS_HEIGHT;
+    public final static double SIMULATION_SCALE = Double.parseDouble(System.getProperty("microbiome.scale", "1"));
+    public final static int SIMULATION_WIDTH = Math.max(1, (int)Math.round(CANVAS_WIDTH * SIMULATION_SCALE));
+    public final static int SIMULATION_HEIGHT = Math.max(1, (int)Math.round(CANVAS_HEIGHT * SIMULATION_SCALE));
+    public final static boolean FAST_MATH = Boolean.getBoolean("microbiome.fastMath");
+    public final static boolean VERIFY_FAST_MATH = Boolean.getBoolean("microbiome.verifyFastMath");
+    public final static boolean SIMD = Boolean.getBoolean("microbiome.simd");
+    public final static int SORT_INTERVAL = Integer.getInteger("microbiome.sortEvery", 0);
+    public final static String PRESET_FILE = System.getProperty("microbiome.presets", "presets.csv");
+    public final static String CHECKPOINT_FILE = System.getProperty("microbiome.checkpoint", "microbiome.checkpoint");
+    public final static String RECORDING_DIRECTORY = System.getProperty("microbiome.recordings", "recordings");
+    public final static boolean TELEMETRY_OVERLAY = Boolean.getBoolean("microbiome.telemetry");
+    public final static String TELEMETRY_CSV = System.getProperty("microbiome.telemetryCsv");
+    public final static String SPECIES = System.getProperty("microbiome.species", "Vein,Venom,FireFly");
+    public final static String SPECIES_WEIGHTS = System.getProperty("microbiome.speciesWeights", "1,-1");
+    public final static int MAX_STEPS_PER_FRAME = Integer.getInteger("microbiome.maxStepsPerFrame", 4);
+    public final static boolean ADAPTIVE_QUALITY = Boolean.parseBoolean(System.getProperty("microbiome.adaptiveQuality", "true"));
+    public final static boolean SUMMED_AREA_SENSING = Boolean.parseBoolean(System.getProperty("microbiome.summedArea", "true"));
+    public final static int STREAM_PORT = Integer.getInteger("microbiome.streamPort", -1);
+    public final static int WORKER_COUNT = Integer.getInteger("microbiome.workers", Runtime.getRuntime().availableProcessors());
+
+    static{
+        Agent.checkSize("The canvas", CANVAS_WIDTH, CANVAS_HEIGHT);
+        Agent.checkSize("The simulation at scale " + SIMULATION_SCALE, SIMULATION_WIDTH, SIMULATION_HEIGHT);
+    }
 }
\ No newline at end of file
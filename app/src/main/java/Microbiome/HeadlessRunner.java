@@ -0,0 +1,322 @@
+package Microbiome;
+
+import Microbiome.AgentPresets.AgentPreset;
+import Microbiome.AgentPresets.PresetCatalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Runs the simulation without a window, as fast as the machine allows, and writes the trail to files.
+ * <p>
+ * Usage: HeadlessRunner [--preset NAME] [--agents N] [--width W] [--height H] [--seed S] [--steps N]
+ * [--workers N] [--spawn-size D] [--every N] [--format png|raw] [--out DIR]
+ * [--fast-math true|false] [--verify-fast-math true|false] [--sort-every N]
+ * [--restore FILE] [--save FILE] [--record DIR] [--record-output png|raw|stream] [--record-policy drop|block]
+ * [--telemetry FILE] [--preview-width W] [--species NAME,NAME,...] [--species-weights SELF,OTHER|W,W,...] [--tile-size N]
+ * [--stream PORT]
+ * <p>
+ * With a preview width the frames are written and recorded scaled down to it, so a large trail can be simulated
+ * while only a small preview of it is written.
+ * <p>
+ * With a tile size the world is split into a TiledWorld instead of one trail, for canvases in the tens of megapixels.
+ * Checkpoints, recording and sorting are not available on a tiled world.
+ * <p>
+ * With a stream port every step is streamed to the FrameStreamViewers that connect to it, at the preview width when one is set.
+ */
+public class HeadlessRunner {
+
+    private static final int RECORD_SLOTS = 16;         //Frames that can wait to be encoded while recording.
+    private static final int TELEMETRY_WINDOW = 100;    //Steps summarised together in the telemetry.
+
+    public String presetName = "Default";       //Name of the preset the agents are spawned with.
+    public int totalAgents = 50000;             //Total agents to be spawned.
+    public int width = GlobalSettings.CANVAS_WIDTH;
+    public int height = GlobalSettings.CANVAS_HEIGHT;
+    public long seed = 0;                       //Seed of every random stream in the simulation.
+    public int steps = 1000;                    //Number of steps to simulate.
+    public int workers = GlobalSettings.WORKER_COUNT;
+    public double spawnAreaSize = 150;          //Maximum distance of the spawn area.
+    public int every = 0;                       //Write every Nth step as well as the last, 0 for only the last.
+    public FrameWriter.Format format = FrameWriter.Format.PNG;
+    public File outputDirectory = new File(".");
+    public boolean fastMath = GlobalSettings.FAST_MATH;             //Move the agents with the TrigTable.
+    public boolean verifyFastMath = GlobalSettings.VERIFY_FAST_MATH; //Report how far the fast math path drifts.
+    public int sortEvery = GlobalSettings.SORT_INTERVAL;            //Sort the agents by position every N steps, 0 to never sort.
+    public File restoreFile;                    //Checkpoint to start from instead of spawning, null to spawn.
+    public File saveFile;                       //Checkpoint to write after the last step, null to not save.
+    public File recordDirectory;                //Directory every step is recorded to, null to not record.
+    public FrameRecorder.Output recordOutput = FrameRecorder.Output.PNG;
+    public FrameRecorder.Policy recordPolicy = FrameRecorder.Policy.BLOCK;
+    public File telemetryFile;                  //CSV file the phase timings are written to, null to only print them.
+    public String species;                      //Names of the presets spawned together, null to spawn only the preset.
+    public String speciesWeights = GlobalSettings.SPECIES_WEIGHTS;  //How much each species is drawn to each channel.
+    public int previewWidth = 0;                //Width the frames are scaled to before they are written, 0 to write them at the size of the trail.
+    public int tileSize = 0;                    //Width and height of the tiles of a tiled world, 0 to run on one trail.
+    public int streamPort = -1;                 //Port the frames are streamed on, -1 to not stream.
+
+    private int frameWidth;                     //Size of the frames written.
+    private int frameHeight;
+    private int[] preview;                      //The scaled frame, null when frames are written at the size of the trail.
+
+    /**
+     * Read the options from the command line.
+     * @param args The command line arguments.
+     * @return The runner with the options set.
+     */
+    public static HeadlessRunner parse(String[] args) {
+        HeadlessRunner runner = new HeadlessRunner();
+
+        for(int i = 0; i < args.length; i++){
+            String option = args[i];
+            if(i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+
+            switch(option){
+                case "--preset": runner.presetName = value; break;
+                case "--agents": runner.totalAgents = Integer.parseInt(value); break;
+                case "--width": runner.width = Integer.parseInt(value); break;
+                case "--height": runner.height = Integer.parseInt(value); break;
+                case "--seed": runner.seed = Long.parseLong(value); break;
+                case "--steps": runner.steps = Integer.parseInt(value); break;
+                case "--workers": runner.workers = Integer.parseInt(value); break;
+                case "--spawn-size": runner.spawnAreaSize = Double.parseDouble(value); break;
+                case "--every": runner.every = Integer.parseInt(value); break;
+                case "--format": runner.format = FrameWriter.Format.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                case "--out": runner.outputDirectory = new File(value); break;
+                case "--fast-math": runner.fastMath = Boolean.parseBoolean(value); break;
+                case "--verify-fast-math": runner.verifyFastMath = Boolean.parseBoolean(value); break;
+                case "--sort-every": runner.sortEvery = Integer.parseInt(value); break;
+                case "--restore": runner.restoreFile = new File(value); break;
+                case "--save": runner.saveFile = new File(value); break;
+                case "--record": runner.recordDirectory = new File(value); break;
+                case "--record-output": runner.recordOutput = FrameRecorder.Output.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                case "--record-policy": runner.recordPolicy = FrameRecorder.Policy.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                case "--telemetry": runner.telemetryFile = new File(value); break;
+                case "--preview-width": runner.previewWidth = Integer.parseInt(value); break;
+                case "--species": runner.species = value; break;
+                case "--species-weights": runner.speciesWeights = value; break;
+                case "--tile-size": runner.tileSize = Integer.parseInt(value); break;
+                case "--stream": runner.streamPort = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        Agent.checkSize("The canvas", runner.width, runner.height);
+        return runner;
+    }
+
+    /**
+     * Spawn the agents, run all the steps and write the frames.
+     * @throws IOException If a frame can not be written.
+     */
+    public void run() throws IOException {
+        AgentPreset[] catalog = PresetCatalog.loadAll(new File(GlobalSettings.PRESET_FILE));
+        AgentPreset preset = AgentPreset.find(catalog, presetName);
+        if(preset == null) throw new IllegalArgumentException("Unknown preset " + presetName);
+        if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) throw new IOException("Can not create " + outputDirectory);
+        if(tileSize > 0){
+            runTiled(preset, catalog);
+            return;
+        }
+
+        Simulation simulation = new Simulation(width, height, workers, seed);
+        frameWidth = width;
+        frameHeight = height;
+        if(previewWidth > 0 && previewWidth != width){
+            frameWidth = previewWidth;
+            frameHeight = Math.max(1, (int)((long)height * previewWidth / width));
+            preview = new int[frameWidth * frameHeight];
+        }
+
+        FrameRecorder recorder = null;
+        FrameStreamServer stream = null;
+        Telemetry telemetry = new Telemetry(GlobalSettings.FRAME_RATE, TELEMETRY_WINDOW);
+        try{
+            simulation.telemetry = telemetry;
+            if(telemetryFile != null) telemetry.openCsv(telemetryFile);
+            simulation.fastMath = fastMath;
+            simulation.sortInterval = sortEvery;
+            if(verifyFastMath) simulation.verifier = new FastMathVerifier(simulation.workers.size());
+            if(restoreFile != null){
+                long start = System.nanoTime();
+                Checkpoint.restore(simulation, restoreFile);
+                System.out.printf(Locale.ROOT, "Restored %d agents from %s in %.0f ms%n",
+                    simulation.agents.count, restoreFile, (System.nanoTime() - start) / 1e6);
+                preset = simulation.preset;
+            }else if(species != null){
+                AgentPreset[] presets = AgentPreset.findAll(catalog, species);
+                simulation.spawnSpecies(totalAgents, spawnAreaSize, presets, Simulation.parseSpeciesWeights(speciesWeights, presets.length));
+                preset = simulation.preset;
+            }else{
+                simulation.spawn(totalAgents, spawnAreaSize, preset);
+            }
+
+            if(recordDirectory != null){
+                recorder = new FrameRecorder(frameWidth, frameHeight, RECORD_SLOTS, Runtime.getRuntime().availableProcessors(),
+                    recordOutput, recordPolicy, recordDirectory);
+            }
+            if(streamPort >= 0){
+                stream = new FrameStreamServer(streamPort, frameWidth, frameHeight);
+                System.out.println("Streaming on port " + stream.port);
+            }
+
+            long simulatedNanos = 0;
+            for(int step = 1; step <= steps; step++){
+                long start = System.nanoTime();
+                simulation.step();
+                simulatedNanos += System.nanoTime() - start;
+
+                telemetry.endFrame();
+                if(recorder != null) recorder.record(frame(simulation.trail));
+                if(stream != null) stream.offer(frame(simulation.trail));
+
+                if(every > 0 && step % every == 0 && step != steps){
+                    writeFrame(simulation.trail, String.format("frame-%06d", step));
+                }
+            }
+            writeFrame(simulation.trail, "final");
+
+            if(saveFile != null){
+                long start = System.nanoTime();
+                Checkpoint.save(simulation, saveFile);
+                System.out.printf(Locale.ROOT, "Saved %d agents to %s in %.0f ms%n",
+                    simulation.agents.count, saveFile, (System.nanoTime() - start) / 1e6);
+            }
+
+            double seconds = simulatedNanos / 1e9;
+            System.out.printf(Locale.ROOT, "%s: %d agents, %dx%d, %d steps in %.2f s (%.1f steps/s)%n",
+                preset.name, simulation.agents.count, width, height, steps, seconds, steps / Math.max(seconds, 1e-9));
+            if(!telemetry.summary.isEmpty()) System.out.println("Last " + TELEMETRY_WINDOW + " steps (p50/p99/max ms): " + telemetry.summary);
+            if(simulation.verifier != null){
+                System.out.println(simulation.verifier.report());
+                if(!simulation.verifier.withinBound()) System.err.println("Fast math headings went past TrigTable.MAX_ERROR");
+            }
+            if(recorder != null){
+                recorder.close();
+                System.out.println(recorder.report());
+                recorder = null;
+            }
+            if(stream != null) System.out.println(stream.report());
+            if(sortEvery > 0){
+                SpatialSorter sorter = simulation.sorter;
+                System.out.println(sorter.report());
+                System.out.printf(Locale.ROOT, "Sorting took %.1f%% of the run, %.1f steps/s without it%n",
+                    100.0 * sorter.sortNanos / Math.max(simulatedNanos, 1), steps / Math.max((simulatedNanos - sorter.sortNanos) / 1e9, 1e-9));
+            }
+        }finally{
+            if(recorder != null) recorder.close();
+            if(stream != null) stream.close();
+            telemetry.close();
+            simulation.shutdown();
+        }
+    }
+
+    /**
+     * Spawn the agents on a tiled world, run all the steps and write the frames.
+     * @param preset The preset the agents are spawned with when no species are given.
+     * @param catalog Every preset, the species are found in.
+     * @throws IOException If a frame can not be written.
+     */
+    private void runTiled(AgentPreset preset, AgentPreset[] catalog) throws IOException {
+        if(restoreFile != null || saveFile != null || recordDirectory != null || sortEvery > 0 || streamPort >= 0){
+            throw new IllegalArgumentException("--restore, --save, --record, --sort-every and --stream can not be used with --tile-size");
+        }
+
+        TiledWorld world = new TiledWorld(width, height, tileSize, workers, seed);
+        frameWidth = previewWidth > 0 ? previewWidth : width;
+        frameHeight = Math.max(1, (int)((long)height * frameWidth / width));
+        preview = new int[frameWidth * frameHeight];
+
+        Telemetry telemetry = new Telemetry(GlobalSettings.FRAME_RATE, TELEMETRY_WINDOW);
+        try{
+            world.telemetry = telemetry;
+            if(telemetryFile != null) telemetry.openCsv(telemetryFile);
+            world.fastMath = fastMath;
+
+            String name = preset.name;
+            long start = System.nanoTime();
+            if(species != null){
+                AgentPreset[] presets = AgentPreset.findAll(catalog, species);
+                world.spawn(totalAgents, spawnAreaSize, presets, Simulation.parseSpeciesWeights(speciesWeights, presets.length));
+                name = String.join(" + ", species.split(","));
+            }else{
+                world.spawn(totalAgents, spawnAreaSize, new AgentPreset[]{ preset }, null);
+            }
+            System.out.printf(Locale.ROOT, "Spawned %d agents on %dx%d tiles of %d pixels with a halo of %d in %.0f ms%n",
+                world.agentCount(), world.columns, world.rows, tileSize, world.halo, (System.nanoTime() - start) / 1e6);
+
+            long simulatedNanos = 0;
+            for(int step = 1; step <= steps; step++){
+                start = System.nanoTime();
+                world.step();
+                simulatedNanos += System.nanoTime() - start;
+                telemetry.endFrame();
+
+                if(every > 0 && step % every == 0 && step != steps){
+                    writeFrame(world, String.format("frame-%06d", step));
+                }
+            }
+            writeFrame(world, "final");
+
+            double seconds = simulatedNanos / 1e9;
+            System.out.printf(Locale.ROOT, "%s: %d agents, %dx%d, %d steps in %.2f s (%.1f steps/s), %d hand overs between tiles%n",
+                name, world.agentCount(), width, height, steps, seconds, steps / Math.max(seconds, 1e-9), world.migrations);
+            if(!telemetry.summary.isEmpty()) System.out.println("Last " + TELEMETRY_WINDOW + " steps (p50/p99/max ms): " + telemetry.summary);
+        }finally{
+            telemetry.close();
+            world.shutdown();
+        }
+    }
+
+    /**
+     * Write a tiled world to the output directory, scaled to the preview width when one is set.
+     * @param world The world to write.
+     * @param name Name of the file without the extension.
+     * @throws IOException If the file can not be written.
+     */
+    private void writeFrame(TiledWorld world, String name) throws IOException {
+        world.presentScaled(preview, frameWidth, frameHeight);
+        File file = new File(outputDirectory, name + "." + format.extension);
+        FrameWriter.write(preview, frameWidth, frameHeight, format, file);
+    }
+
+    /**
+     * Write the front buffer of the trail to the output directory.
+     * @param trail The trail to write.
+     * @param name Name of the file without the extension.
+     * @throws IOException If the file can not be written.
+     */
+    private void writeFrame(TrailMap trail, String name) throws IOException {
+        File file = new File(outputDirectory, name + "." + format.extension);
+        FrameWriter.write(frame(trail), frameWidth, frameHeight, format, file);
+    }
+
+    /**
+     * Get the pixels of the frame to write, scaled to the preview width when one is set.
+     * @param trail The trail to write.
+     * @return The pixels of the frame, only valid until the next call.
+     */
+    private int[] frame(TrailMap trail) {
+        if(preview == null) return trail.color;
+
+        trail.presentScaled(preview, frameWidth, frameHeight);
+        return preview;
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        try{
+            parse(args).run();
+        }catch(IllegalArgumentException e){
+            System.err.println(e.getMessage());
+            System.err.println("Usage: HeadlessRunner [--preset NAME] [--agents N] [--width W] [--height H] [--seed S] [--steps N]"
+                + " [--workers N] [--spawn-size D] [--every N] [--format png|raw] [--out DIR] [--fast-math true|false] [--verify-fast-math true|false] [--sort-every N]"
+                + " [--restore FILE] [--save FILE] [--record DIR] [--record-output png|raw|stream] [--record-policy drop|block]"
+                + " [--telemetry FILE] [--preview-width W] [--species NAME,NAME,...] [--species-weights SELF,OTHER|W,W,...] [--tile-size N] [--stream PORT]");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package Microbiome;
+
+/**
+ * The data parallel loops of the simulation, kept behind one interface so they can run on SIMD lanes when available.
+ * ScalarKernels is always available. VectorKernels, built on jdk.incubator.vector, is loaded by name only when asked for,
+ * so the program still runs when the module is missing.
+ */
+public interface Kernels {
+
+    /**
+     * Tell if the kernels run on vector lanes.
+     * @return True for the jdk.incubator.vector backend.
+     */
+    boolean isVector();
+
+    /**
+     * Split a row of packed colors into three padded planes.
+     * Plane c starts at c * (width + 2), and its first and last value are padding that is never written.
+     * @param source The packed [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB] colors.
+     * @param offset Index of the first pixel of the row.
+     * @param width Width of the row.
+     * @param channels The planes to write, R, G then B.
+     */
+    void unpackRow(int[] source, int offset, int width, int[] channels);
+
+    /**
+     * Sum each value of the planes with its left and right neighbour.
+     * @param channels The padded planes of a row.
+     * @param width Width of the row.
+     * @param sums The sums to write, plane c starts at c * width.
+     */
+    void sumRow(int[] channels, int width, int[] sums);
+
+    /**
+     * Finish the 3x3 box sum of a row, darken it and lerp the current color towards it.
+     * @param above Horizontal sums of the row above.
+     * @param middle Horizontal sums of the row.
+     * @param below Horizontal sums of the row below.
+     * @param channels The padded planes of the current colors of the row.
+     * @param width Width of the row.
+     * @param darkenDelta How much the blurred color is darkened.
+     * @param lerpSteps The rounded lerp step for every difference in [-255, 255].
+     * @param lerpFixed The lerp amount in 16.16 fixed point, or -1 when fixed point does not round like lerpSteps.
+     * @param target The packed colors to write.
+     * @param targetIntensity The R + G + B to write.
+     * @param offset Index of the first pixel of the row in the target.
+     */
+    void blendRow(int[] above, int[] middle, int[] below, int[] channels, int width, int darkenDelta,
+        int[] lerpSteps, int lerpFixed, int[] target, short[] targetIntensity, int offset);
+
+    /**
+     * Work out the heading of a block of agents and where they move to along it.
+     * @param agents The store of all agents.
+     * @param start The first agent of the block.
+     * @param count The number of agents in the block.
+     * @param headingX Cosine of the angle of each agent, written from index 0.
+     * @param headingY Sine of the angle of each agent, written from index 0.
+     * @param newX The new position X of each agent, written from index 0.
+     * @param newY The new position Y of each agent, written from index 0.
+     */
+    void integrate(AgentStore agents, int start, int count, double[] headingX, double[] headingY, double[] newX, double[] newY);
+
+    /**
+     * Create the kernels.
+     * @param vector Try the jdk.incubator.vector backend first.
+     * @return The vector kernels if asked for and available, else the scalar kernels.
+     */
+    static Kernels create(boolean vector) {
+        if(vector){
+            try{
+                return (Kernels)Class.forName("Microbiome.VectorKernels").getDeclaredConstructor().newInstance();
+            }catch(ReflectiveOperationException | LinkageError e){
+                System.err.println("Vector kernels are not available, using scalar kernels: " + e);
+            }
+        }
+        return new ScalarKernels();
+    }
+}
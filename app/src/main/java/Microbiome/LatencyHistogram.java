@@ -0,0 +1,110 @@
+package Microbiome;
+
+import java.util.Arrays;
+
+/**
+ * Counts durations in buckets that grow with the value, so recording is a few bit operations and never allocates.
+ * Each power of two is split in 8 buckets, which keeps every percentile within 12.5% of the true value.
+ * The largest value is kept exactly.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;                  //Each power of two is split in 2^SUB_BITS buckets.
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;         //Number of values recorded.
+    private long max;           //Largest value recorded.
+    private long total;         //Sum of every value recorded.
+
+    /**
+     * Count one value.
+     * @param value The value, negative values count as 0.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts[bucket(value)]++;
+        count++;
+        total += value;
+        if(value > max) max = value;
+    }
+
+    /**
+     * Forget every value.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+        total = 0;
+    }
+
+    /**
+     * Get the number of values recorded.
+     * @return The number of values.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Get the largest value recorded.
+     * @return The largest value, 0 when empty.
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Get the mean of the values recorded.
+     * @return The mean, 0 when empty.
+     */
+    public double mean() {
+        return count == 0 ? 0 : (double)total / count;
+    }
+
+    /**
+     * Get a value that the given share of the values are at or below.
+     * @param percentile The share in [0, 100].
+     * @return The upper bound of the bucket holding the percentile, never more than the largest value, 0 when empty.
+     */
+    public long percentile(double percentile) {
+        if(count == 0) return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int b = 0; b < BUCKETS; b++){
+            seen += counts[b];
+            if(seen >= rank) return Math.min(max, upperBound(b));
+        }
+        return max;
+    }
+
+    /**
+     * Get the bucket of a value.
+     * @param value A value of at least 0.
+     * @return The index of the bucket.
+     */
+    private static int bucket(long value) {
+        if(value < SUB_BUCKETS) return (int)value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the largest value that falls in a bucket.
+     * @param bucket The index of the bucket.
+     * @return The largest value of the bucket.
+     */
+    private static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+
+        int magnitude = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << (magnitude - SUB_BITS);
+        return lower + (1L << (magnitude - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,114 @@
+package Microbiome;
+
+/**
+ * Arithmetic on colors packed as [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB] that works on all three channels at once,
+ * treating the int as three 8 bit lanes (SIMD within a register).
+ * Carries and borrows are kept from crossing into the next lane by doing the top bit of each lane separately,
+ * so every operation is a few bit operations instead of one unpack, clamp and pack for each channel.
+ * Every operation gives exactly the same result as doing it on each channel on its own.
+ */
+public final class PackedColor {
+
+    private static final int LANES = 0xFFFFFF;      //[0000 0000 1111 1111 1111 1111 1111 1111]
+    private static final int HIGH = 0x808080;       //[0000 0000 1000 0000 1000 0000 1000 0000], the top bit of each lane.
+    private static final int LOW = 0x7F7F7F;        //[0000 0000 0111 1111 0111 1111 0111 1111], the other bits of each lane.
+    private static final int ONES = 0x010101;       //[0000 0000 0000 0001 0000 0001 0000 0001], the bottom bit of each lane.
+    private static final long ROUND_RB = (32768L << 32) | 32768L;   //Half of the 16.16 fixed point one, in the R and the B lane.
+
+    private PackedColor() {}
+
+    /**
+     * Add two colors, each channel saturates at 255.
+     * @param a A packed color.
+     * @param b A packed color.
+     * @return min(255, a + b) for each channel.
+     */
+    public static int addSaturate(int a, int b) {
+        //Add the low 7 bits of each lane, then put the top bits back in without letting them carry.
+        int sum = ((a & LOW) + (b & LOW)) ^ ((a ^ b) & HIGH);
+        int carry = ((a & b) | ((a | b) & ~sum)) & HIGH;
+        //Turn the carry out of a lane into 255 in that lane.
+        return (sum | ((carry >>> 7) * 255)) & LANES;
+    }
+
+    /**
+     * Subtract the same amount from each channel, each channel stops at 0.
+     * @param color A packed color.
+     * @param amount The amount in [0, 255].
+     * @return max(0, color - amount) for each channel.
+     */
+    public static int darken(int color, int amount) {
+        int amounts = amount * ONES;
+        //Subtract with the top bit of each lane set so no lane borrows from the next, then fix the top bits.
+        int difference = ((color | HIGH) - (amounts & LOW)) ^ ((color ^ ~amounts) & HIGH);
+        int borrow = ((~color & amounts) | (~(color ^ amounts) & difference)) & HIGH;
+        //Clear the lanes that went below 0.
+        return difference & ~((borrow >>> 7) * 255) & LANES;
+    }
+
+    /**
+     * Average two colors, rounding down.
+     * @param a A packed color.
+     * @param b A packed color.
+     * @return (a + b) / 2 for each channel.
+     */
+    public static int average(int a, int b) {
+        //The shared bits plus half of the differing bits, masked so no bit shifts into the lane below.
+        return (a & b) + (((a ^ b) & 0xFEFEFE) >>> 1);
+    }
+
+    /**
+     * Move a color towards another by a 16.16 fixed point amount, rounding each step to the nearest integer.
+     * R and B are done together in the two halves of a long, G on its own.
+     * @param from The packed color to move.
+     * @param to The packed color to move towards.
+     * @param fraction The amount in [0, 65536], 65536 reaches the target.
+     * @return from + ((to - from) * fraction + 32768) >> 16 for each channel.
+     */
+    public static int lerp(int from, int to, int fraction) {
+        long fromRB = ((long)(from & 0xFF0000) << 16) | (from & 0xFF);
+        long toRB = ((long)(to & 0xFF0000) << 16) | (to & 0xFF);
+
+        //The B lane may go negative and borrow from the R lane, which is undone when the lanes are split.
+        long stepRB = (toRB - fromRB) * fraction + ROUND_RB;
+        int stepB = (int)stepRB;
+        int stepR = (int)((stepRB - stepB) >> 32);
+        int stepG = (((to >> 8) & 0xFF) - ((from >> 8) & 0xFF)) * fraction + 32768;
+
+        return from + ((stepR >> 16) << 16) + ((stepG >> 16) << 8) + (stepB >> 16);
+    }
+
+    /**
+     * Spread the channels of a color into 16 bit lanes of a long, R at bit 32, G at bit 16 and B at bit 0,
+     * so the sums of up to 257 colors can be added lane by lane without overflowing.
+     * @param color A packed color.
+     * @return The wide color.
+     */
+    public static long widen(int color) {
+        return (color & 0xFF) | ((color & 0xFF00) << 8) | ((long)(color & 0xFF0000) << 16);
+    }
+
+    /**
+     * Divide the sums of nine colors in wide lanes by nine.
+     * @param sums The sums of nine wide colors.
+     * @return The packed average, rounded down.
+     */
+    public static int averageOfNine(long sums) {
+        //(sum * 7282) >> 16 is sum / 9 for every sum of nine 8 bit values.
+        int r = (((int)(sums >>> 32) & 0xFFFF) * 7282) >> 16;
+        int g = (((int)(sums >>> 16) & 0xFFFF) * 7282) >> 16;
+        int b = (((int)sums & 0xFFFF) * 7282) >> 16;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Sum the channels of a color.
+     * @param color A packed color.
+     * @return R + G + B.
+     */
+    public static int sum(int color) {
+        //B + G in the low half and R in the high half, then add the halves.
+        int pairs = (color & 0xFF00FF) + ((color >>> 8) & 0xFF);
+        return (pairs >>> 16) + (pairs & 0xFFFF);
+    }
+}
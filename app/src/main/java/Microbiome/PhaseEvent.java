@@ -0,0 +1,32 @@
+package Microbiome;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * A JFR event for one phase of one frame, so recordings line the phases up with GC and the other JVM events.
+ * It is committed when the phase ends, with the time the phase took as a field.
+ * Only committed while a recording has the event enabled.
+ */
+@Name("Microbiome.Phase")
+@Label("Simulation Phase")
+@Category("Microbiome")
+@Description("One phase of one frame of the simulation")
+@StackTrace(false)
+public class PhaseEvent extends Event {
+
+    @Label("Phase")
+    public String phase;
+
+    @Label("Frame")
+    public long frame;
+
+    @Label("Elapsed")
+    @Timespan(Timespan.NANOSECONDS)
+    public long elapsed;
+}
@@ -0,0 +1,81 @@
+package Microbiome;
+
+/**
+ * Trades quality for speed when frames take longer than the frame rate allows, and gives it back when they are fast again.
+ * <p>
+ * The cost of every frame is smoothed into a moving average. When the average stays over the budget,
+ * the governor goes one level down: first the trail is diffused less often, then fewer agents move and deposit,
+ * then both again. When the average stays well under the budget for longer, it goes one level back up.
+ * After every change the average starts over, so a change is judged on frames that ran with it.
+ */
+public class QualityGovernor {
+
+    public static final int MAX_LEVEL = 4;
+
+    private static final double SMOOTHING = 0.1;        //Weight of the newest frame in the moving average.
+    private static final double OVER_BUDGET = 0.95;     //Share of the budget the average must stay above to lower the quality.
+    private static final double UNDER_BUDGET = 0.6;     //Share of the budget the average must stay below to raise the quality.
+    private static final int LOWER_AFTER = 15;          //Frames over the budget before the quality is lowered.
+    private static final int RAISE_AFTER = 120;         //Frames under the budget before the quality is raised.
+
+    //Diffusion interval and agent stride of each level, from full quality down.
+    private static final int[] DIFFUSE_INTERVAL = { 1, 2, 2, 3, 3 };
+    private static final int[] AGENT_STRIDE =     { 1, 1, 2, 2, 3 };
+
+    public final long budgetNanos;      //Time a frame may take.
+    public int level;                   //0 for full quality, up to MAX_LEVEL.
+
+    private double average = -1;        //Moving average of the frame cost, -1 until the first frame after a change.
+    private int framesOver;
+    private int framesUnder;
+
+    /**
+     * Creates the governor at full quality.
+     * @param frameRate The frame rate to hold.
+     */
+    public QualityGovernor(int frameRate) {
+        this.budgetNanos = 1_000_000_000L / frameRate;
+    }
+
+    /**
+     * Count the cost of a frame and change the quality level when it has been over or under the budget long enough.
+     * The new level is not applied, call apply when no phase of the simulation is running.
+     * @param frameNanos How long the frame took.
+     * @return True if the level changed.
+     */
+    public boolean update(long frameNanos) {
+        average = average < 0 ? frameNanos : average + (frameNanos - average) * SMOOTHING;
+
+        framesOver = average > budgetNanos * OVER_BUDGET ? framesOver + 1 : 0;
+        framesUnder = average < budgetNanos * UNDER_BUDGET ? framesUnder + 1 : 0;
+
+        int next = level;
+        if(framesOver >= LOWER_AFTER && level < MAX_LEVEL) next = level + 1;
+        else if(framesUnder >= RAISE_AFTER && level > 0) next = level - 1;
+        if(next == level) return false;
+
+        level = next;
+        average = -1;
+        framesOver = 0;
+        framesUnder = 0;
+        return true;
+    }
+
+    /**
+     * Set the diffusion interval and agent stride of the current level on a simulation.
+     * @param simulation The simulation.
+     */
+    public void apply(Simulation simulation) {
+        simulation.diffuseInterval = DIFFUSE_INTERVAL[level];
+        simulation.agentStride = AGENT_STRIDE[level];
+    }
+
+    /**
+     * Describe the current level.
+     * @return The level and what it changes.
+     */
+    public String describe() {
+        return "quality " + (MAX_LEVEL - level) + "/" + MAX_LEVEL + " (diffuse every " + DIFFUSE_INTERVAL[level]
+            + " steps, 1/" + AGENT_STRIDE[level] + " of the agents)";
+    }
+}
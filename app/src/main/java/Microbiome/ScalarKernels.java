@@ -0,0 +1,111 @@
+package Microbiome;
+
+/**
+ * The kernels written as plain loops, used when the vector backend is not available.
+ */
+public class ScalarKernels implements Kernels {
+
+    //The int value of color is represented as XRGB
+    //which is constructed in [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB]
+    private static final int B_MASK = 255;       //[0000 0000 0000 0000 0000 0000 1111 1111]
+    private static final int G_MASK = 255<<8;    //[0000 0000 0000 0000 1111 1111 0000 0000]
+    private static final int R_MASK = 255<<16;   //[0000 0000 1111 1111 0000 0000 0000 0000]
+
+    @Override
+    public boolean isVector() {
+        return false;
+    }
+
+    @Override
+    public void unpackRow(int[] source, int offset, int width, int[] channels) {
+        unpackRange(source, offset, width, channels, 0, width);
+    }
+
+    @Override
+    public void sumRow(int[] channels, int width, int[] sums) {
+        sumRange(channels, width, sums, 0, width);
+    }
+
+    @Override
+    public void blendRow(int[] above, int[] middle, int[] below, int[] channels, int width, int darkenDelta,
+        int[] lerpSteps, int lerpFixed, int[] target, short[] targetIntensity, int offset) {
+
+        blendRange(above, middle, below, channels, width, darkenDelta, lerpSteps, target, targetIntensity, offset, 0, width);
+    }
+
+    @Override
+    public void integrate(AgentStore agents, int start, int count, double[] headingX, double[] headingY, double[] newX, double[] newY) {
+        integrateRange(agents, start, headingX, headingY, newX, newY, 0, count);
+    }
+
+    /**
+     * Run unpackRow on the pixels [from, to) of the row.
+     */
+    protected void unpackRange(int[] source, int offset, int width, int[] channels, int from, int to) {
+        int planeR = 1, planeG = width + 3, planeB = 2 * width + 5;
+        for(int x = from; x < to; x++){
+            int sample = source[offset + x];
+            channels[planeR + x] = (sample & R_MASK)>>16;
+            channels[planeG + x] = (sample & G_MASK)>>8;
+            channels[planeB + x] = sample & B_MASK;
+        }
+    }
+
+    /**
+     * Run sumRow on the pixels [from, to) of the row.
+     */
+    protected void sumRange(int[] channels, int width, int[] sums, int from, int to) {
+        for(int c = 0; c < 3; c++){
+            int plane = c * (width + 2);
+            int sumPlane = c * width;
+            for(int x = from; x < to; x++){
+                sums[sumPlane + x] = channels[plane + x] + channels[plane + x + 1] + channels[plane + x + 2];
+            }
+        }
+    }
+
+    /**
+     * Run blendRow on the pixels [from, to) of the row, rounding the lerp with lerpSteps.
+     */
+    protected void blendRange(int[] above, int[] middle, int[] below, int[] channels, int width, int darkenDelta,
+        int[] lerpSteps, int[] target, short[] targetIntensity, int offset, int from, int to) {
+
+        int planeR = 1, planeG = width + 3, planeB = 2 * width + 5;
+        int sumG = width, sumB = 2 * width;
+
+        for(int x = from; x < to; x++){
+            //(sum * 7282) >> 16 is sum / 9 for every sum of nine 8 bit values.
+            int avgR = Math.max(0, (((above[x] + middle[x] + below[x]) * 7282) >> 16) - darkenDelta);
+            int avgG = Math.max(0, (((above[sumG + x] + middle[sumG + x] + below[sumG + x]) * 7282) >> 16) - darkenDelta);
+            int avgB = Math.max(0, (((above[sumB + x] + middle[sumB + x] + below[sumB + x]) * 7282) >> 16) - darkenDelta);
+
+            int r = channels[planeR + x];
+            int g = channels[planeG + x];
+            int b = channels[planeB + x];
+
+            //Same rounding as PApplet.lerpColor in the RGB color mode.
+            r += lerpSteps[avgR - r + 255];
+            g += lerpSteps[avgG - g + 255];
+            b += lerpSteps[avgB - b + 255];
+
+            target[offset + x] = (r << 16) | (g << 8) | b;
+            targetIntensity[offset + x] = (short)(r + g + b);
+        }
+    }
+
+    /**
+     * Run integrate on the agents [from, to) of the block.
+     */
+    protected void integrateRange(AgentStore agents, int start, double[] headingX, double[] headingY, double[] newX, double[] newY, int from, int to) {
+        for(int k = from; k < to; k++){
+            int i = start + k;
+            double angle = agents.angle[i];
+            double moveDistance = agents.moveSpeed[i] * GlobalSettings.DELTA_TIME;
+
+            headingX[k] = Math.cos(angle);
+            headingY[k] = Math.sin(angle);
+            newX[k] = agents.x[i] + headingX[k] * moveDistance;
+            newY[k] = agents.y[i] + headingY[k] * moveDistance;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package Microbiome;
+
+import Microbiome.AgentPresets.AgentPreset;
+import Microbiome.AgentPresets.DefaultPreset;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The agents and the trail they live on, without anything that renders them.
+ * A step of the simulation runs in phases, and each phase finishes before the next one starts:
+ * sense and steer, move, diffuse and deposit.
+ * When the agents sense large windows, a summed area table of the trail is built before they sense,
+ * so a sensor costs the same whatever its size.
+ * <p>
+ * Up to three species can share the trail. Each species is a block of the agent store and deposits into its own channel
+ * of the trail, R, G or B, and senses the channels through its own weights, so species can follow or avoid each other.
+ * The channels are lanes of the same packed color, so the trail is diffused once whatever the number of species.
+ * <p>
+ * New agents are spawned into a pooled store by the Spawner in the background and replace the current ones at once,
+ * so a frame loop can keep running the old agents until the new ones are ready.
+ */
+public class Simulation {
+
+    public final WorkerPool workers;    //The workers every phase is split between.
+    public final TrailMap trail;        //The trail the agents sense and draw on.
+    public final Diffuser diffuser;     //Diffuses and evaporates the trail.
+    public final Depositor depositor;   //Deposits the agents on the trail from every worker.
+    public final SpatialSorter sorter;  //Reorders the agents by where they stand on the trail.
+    public final Kernels kernels;       //The loops that can run on SIMD lanes.
+    public final Spawner spawner;       //Fills the stores of new spawns in the background.
+    public AgentStore agents;           //The state of every agent.
+    public AgentPreset preset = new DefaultPreset();    //The parameters the agents were last spawned with.
+
+    public boolean fastMath = GlobalSettings.FAST_MATH;    //Move the agents with the TrigTable instead of Math.sin and Math.cos.
+    public FastMathVerifier verifier;                       //Measures the drift of the fast math path when not null.
+    public int sortInterval = GlobalSettings.SORT_INTERVAL;  //Sort the agents every this many steps, 0 to never sort.
+    public int stepsSinceSort;                              //Steps run since the agents were last sorted.
+    public Telemetry telemetry;                             //Records how long each phase takes when not null.
+    public int diffuseInterval = 1;                         //Diffuse the trail every this many steps.
+    public int stepsSinceDiffuse;                           //Steps run since the trail was last diffused.
+    public int agentStride = 1;                             //Only every this many agents move and deposit, the others wait where they are.
+    public boolean summedAreaSensing = GlobalSettings.SUMMED_AREA_SENSING;  //Sense through a summed area table when it is cheaper.
+    public SummedAreaTable summedArea;                      //The table sensed through, made the first time it is cheaper.
+
+    private SplittableRandom random;           //Random stream used when spawning.
+    private final WorkerPool.RangeTask senseAndMoveTask = this::senseAndMove;
+    private final WorkerPool.RangeTask clearTask = this::clearTrail;
+    private Future<AgentStore> pendingSpawn;            //The spawn being prepared, null when there is none.
+    private AgentPreset pendingPreset;                  //The preset of the spawn being prepared.
+
+    //One species for each channel of the trail.
+    public static final int MAX_SPECIES = 3;
+
+    //Mixed into the seed of the spawn stream so it differs from the streams of the workers.
+    private static final long SPAWN_SEED_MIX = 0x9E3779B97F4A7C15L;
+
+    //Agents are integrated on the vector kernels in blocks of this size.
+    private static final int BLOCK_SIZE = 256;
+    //For each worker, the heading X, heading Y, new X and new Y of a block.
+    private final double[][][] blocks;
+
+    /**
+     * Creates an empty simulation.
+     * @param width Width of the trail in pixels.
+     * @param height Height of the trail in pixels.
+     * @param workerCount Number of workers the phases are split between.
+     * @param seed Seed of every random stream in the simulation.
+     * @throws IllegalArgumentException If the trail is smaller than Agent.MIN_SIZE.
+     */
+    public Simulation(int width, int height, int workerCount, long seed) {
+        Agent.checkSize("The simulation", width, height);
+        workers = new WorkerPool(workerCount, seed);
+        trail = new TrailMap(width, height);
+        kernels = Kernels.create(GlobalSettings.SIMD);
+        diffuser = new Diffuser(width, height, workers, kernels);
+        depositor = new Depositor(height, workers);
+        sorter = new SpatialSorter(width, height, workers);
+        blocks = new double[workers.size()][4][BLOCK_SIZE];
+        agents = new AgentStore(0);
+        spawner = new Spawner(width, height, workerCount);
+        random = spawnStream(seed);
+        if(GlobalSettings.VERIFY_FAST_MATH) verifier = new FastMathVerifier(workers.size());
+    }
+
+    /**
+     * Get a random number from the spawn stream.
+     * @return A random number in [0, 1).
+     */
+    public double random() {
+        return random.nextDouble();
+    }
+
+    /**
+     * Restart every random stream of the simulation from a seed, the same way the constructor starts them.
+     * @param seed The new seed.
+     */
+    public void reseed(long seed) {
+        random = spawnStream(seed);
+        workers.reseed(seed);
+    }
+
+    /**
+     * Get the seed of the first spawn of a simulation started or reseeded with a seed, so code that spawns
+     * without a Simulation, like the bands and the tiles, places the same agents.
+     * @param seed The seed of the simulation.
+     * @return The seed handed to the Spawner.
+     */
+    public static long spawnSeed(long seed) {
+        return spawnStream(seed).nextLong();
+    }
+
+    /**
+     * Start the spawn stream of a seed.
+     * @param seed The seed of the simulation.
+     * @return The stream the seeds of the spawns are drawn from.
+     */
+    private static SplittableRandom spawnStream(long seed) {
+        return new SplittableRandom(seed ^ SPAWN_SEED_MIX);
+    }
+
+    /**
+     * Draw a new seed from the spawn stream and restart every random stream from it.
+     * @return The new seed, giving the same streams again when passed to reseed.
+     */
+    public long reseed() {
+        long seed = random.nextLong();
+        reseed(seed);
+        return seed;
+    }
+
+    /**
+     * Clear the trail and spawn agents with a preset in a circle in the middle of it.
+     * @param totalAgents Total agents to be spawned.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param agentPreset The preset of the agents.
+     */
+    public void spawn(int totalAgents, double spawnAreaSize, AgentPreset agentPreset){
+        prepareSpawn(totalAgents, spawnAreaSize, agentPreset);
+        finishSpawn();
+    }
+
+    /**
+     * Clear the trail and spawn agents in a circle in the middle of it.
+     * @param totalAgents Total agents to be spawned.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param moveSpeed The movement speed of the agents.
+     * @param turnSpeed The turn speed of the agents.
+     * @param sensorSize The sensor size of the agents.
+     * @param sensorDistance The sensor distance of the agents.
+     * @param sensorOffsetAngle The sensor offset angle in radian of the agents.
+     * @param colorR The red color value of each agent.
+     * @param colorG The green color value of each agent.
+     * @param colorB The blue color value of each agent.
+     */
+    public void spawn(int totalAgents, double spawnAreaSize, double moveSpeed, double turnSpeed, int sensorSize, double sensorDistance, double sensorOffsetAngle, int colorR, int colorG, int colorB){
+        spawn(totalAgents, spawnAreaSize, new AgentPreset("Custom", moveSpeed, turnSpeed, sensorSize, sensorDistance, sensorOffsetAngle, colorR, colorG, colorB));
+    }
+
+    /**
+     * Clear the trail and spawn several species together, each in its own block of the store and its own channel of the trail.
+     * A species deposits as much into its channel as its preset deposits into all three, up to 255.
+     * @param totalAgents Total agents to be spawned, shared evenly between the species.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species, at most MAX_SPECIES. The first deposits into R, the second into G and the third into B.
+     * @param weights For each species, how much it is drawn to the R, G and B channel, negative to be repelled.
+     */
+    public void spawnSpecies(int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights){
+        prepareSpawnSpecies(totalAgents, spawnAreaSize, species, weights);
+        finishSpawn();
+    }
+
+    /**
+     * Start spawning agents with a preset in the background. The agents replace the current ones at the first
+     * call to installSpawn after they are ready, so the current agents keep running until then.
+     * A spawn that was prepared but not installed yet is dropped.
+     * @param totalAgents Total agents to be spawned.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param agentPreset The preset of the agents.
+     */
+    public void prepareSpawn(int totalAgents, double spawnAreaSize, AgentPreset agentPreset){
+        prepare(totalAgents, spawnAreaSize, new AgentPreset[]{ agentPreset }, null, agentPreset);
+    }
+
+    /**
+     * Start spawning several species in the background, like spawnSpecies, to be installed like prepareSpawn.
+     * @param totalAgents Total agents to be spawned, shared evenly between the species.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species, at most MAX_SPECIES.
+     * @param weights For each species, how much it is drawn to the R, G and B channel, negative to be repelled.
+     */
+    public void prepareSpawnSpecies(int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights){
+        checkSpeciesCount(species.length);
+        if(weights.length != species.length) throw new IllegalArgumentException("Expected weights for " + species.length + " species, got " + weights.length);
+
+        StringBuilder name = new StringBuilder();
+        for(int s = 0; s < species.length; s++){
+            if(weights[s].length != MAX_SPECIES) throw new IllegalArgumentException("Expected " + MAX_SPECIES + " weights for " + species[s].name);
+            if(s > 0) name.append(" + ");
+            name.append(species[s].name);
+        }
+
+        AgentPreset first = species[0];
+        prepare(totalAgents, spawnAreaSize, species, weights, new AgentPreset(name.toString(), first.moveSpeed, first.turnSpeed,
+            first.sensorSize, first.sensorDistance, first.sensorOffsetAngle, first.colorR, first.colorG, first.colorB));
+    }
+
+    /**
+     * Replace the agents with the spawn prepared in the background if it is ready. Must run while no phase is running.
+     * @return True if the agents were replaced.
+     */
+    public boolean installSpawn(){
+        if(pendingSpawn == null || !pendingSpawn.isDone()) return false;
+        finishSpawn();
+        return true;
+    }
+
+    /**
+     * Drop the spawn prepared in the background, if there is one, so it is never installed.
+     */
+    public void cancelSpawn(){
+        if(pendingSpawn == null) return;
+
+        spawner.recycleWhenDone(pendingSpawn);
+        pendingSpawn = null;
+        pendingPreset = null;
+    }
+
+    /**
+     * Wait for the spawn prepared in the background and replace the agents with it. Must run while no phase is running.
+     * The old store goes back to the spawner and the trail is cleared.
+     */
+    public void finishSpawn(){
+        if(pendingSpawn == null) return;
+
+        AgentStore spawned;
+        try{
+            spawned = pendingSpawn.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while spawning", e);
+        }catch(ExecutionException e){
+            throw new IllegalStateException("Spawning failed", e.getCause());
+        }finally{
+            pendingSpawn = null;
+        }
+
+        spawner.recycle(agents);
+        agents = spawned;
+        preset = pendingPreset;
+        pendingPreset = null;
+        stepsSinceSort = 0;
+        workers.parallelFor(trail.size(), clearTask);
+    }
+
+    /**
+     * Build the weights of species that follow their own channel and react the same way to every other channel.
+     * @param count The number of species, at most MAX_SPECIES.
+     * @param self How much a species is drawn to its own channel.
+     * @param other How much a species is drawn to the channels of the others, negative to be repelled.
+     * @return For each species, the weight of the R, G and B channel.
+     * @throws IllegalArgumentException If there are more species than channels.
+     */
+    public static int[][] speciesWeights(int count, int self, int other){
+        checkSpeciesCount(count);
+        int[][] weights = new int[count][MAX_SPECIES];
+        for(int s = 0; s < count; s++){
+            for(int c = 0; c < count; c++){
+                weights[s][c] = s == c ? self : other;
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Read species weights written as "self,other" or as every weight of every species, row by row.
+     * @param text The weights separated by commas.
+     * @param count The number of species, at most MAX_SPECIES.
+     * @return For each species, the weight of the R, G and B channel.
+     * @throws IllegalArgumentException If there are more species than channels or the weights do not match the count.
+     */
+    public static int[][] parseSpeciesWeights(String text, int count){
+        checkSpeciesCount(count);
+        String[] values = text.split(",");
+        if(values.length == 2) return speciesWeights(count, Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()));
+        if(values.length != count * count) throw new IllegalArgumentException("Expected 2 or " + count * count + " species weights, got " + values.length);
+
+        int[][] weights = new int[count][MAX_SPECIES];
+        for(int s = 0; s < count; s++){
+            for(int c = 0; c < count; c++){
+                weights[s][c] = Integer.parseInt(values[s * count + c].trim());
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * Make sure every species can have a channel of the trail to itself.
+     * @param count The number of species.
+     * @throws IllegalArgumentException If the count is not in [1, MAX_SPECIES].
+     */
+    public static void checkSpeciesCount(int count){
+        if(count < 1 || count > MAX_SPECIES) throw new IllegalArgumentException("Between 1 and " + MAX_SPECIES + " species can be spawned, not " + count);
+    }
+
+    /**
+     * Hand a spawn to the spawner, dropping the one that was pending.
+     * @param totalAgents Total agents to be spawned.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species.
+     * @param weights The species weights, or null for a single species.
+     * @param spawnedPreset The preset the simulation reports once the spawn is installed.
+     */
+    private void prepare(int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights, AgentPreset spawnedPreset){
+        cancelSpawn();
+        pendingSpawn = spawner.prepare(totalAgents, spawnAreaSize, species, weights, random.nextLong());
+        pendingPreset = spawnedPreset;
+    }
+
+    /**
+     * Run a whole step of the simulation on the current thread.
+     */
+    public void step() {
+        senseAndMove();
+        diffuseIfDue();
+        deposit();
+        sortIfDue();
+    }
+
+    /**
+     * Sense, steer and move phases. Only reads the front buffer of the trail.
+     * Both phases only touch the state of the agent they run on, so they run together in one pass.
+     * The summed area table is built first when it is worth it, and only used during this phase.
+     */
+    public void senseAndMove() {
+        long start = System.nanoTime();
+        trail.summedArea = buildSummedAreaIfWorthwhile();
+        try{
+            workers.parallelFor(agents.count, senseAndMoveTask);
+        }finally{
+            trail.summedArea = null;
+        }
+        if(telemetry != null) telemetry.record(Telemetry.Phase.SENSE_MOVE, start);
+    }
+
+    /**
+     * Build the summed area table of the front buffer if the agents about to sense make up for building it,
+     * judging by the sensor size of the preset.
+     * @return The table, or null if the agents should read the pixels.
+     */
+    private SummedAreaTable buildSummedAreaIfWorthwhile() {
+        int sensorSize = preset.sensorSize;
+        long sensingAgents = (agents.count + agentStride - 1) / agentStride;
+        boolean channels = agents.speciesWeights != null;
+        if(!summedAreaSensing || !SummedAreaTable.worthwhile(sensingAgents, (2 * sensorSize + 1) * (2 * sensorSize + 1), trail.size(), channels)){
+            return null;
+        }
+
+        if(summedArea == null) summedArea = new SummedAreaTable(trail.width, trail.height, workers);
+        summedArea.build(trail, channels);
+        return summedArea;
+    }
+
+    /**
+     * Diffuse phase. Reads the front buffer of the trail, writes the back buffer and swaps them.
+     */
+    public void diffuse() {
+        long start = System.nanoTime();
+        diffuser.diffuse(trail);
+        if(telemetry != null) telemetry.record(Telemetry.Phase.DIFFUSE, start);
+    }
+
+    /**
+     * Diffuse phase, only every diffuseInterval steps.
+     */
+    public void diffuseIfDue() {
+        if(++stepsSinceDiffuse < diffuseInterval) return;
+
+        stepsSinceDiffuse = 0;
+        diffuse();
+    }
+
+    /**
+     * Deposit phase. Every agent that moves adds its color to the front buffer of the trail.
+     */
+    public void deposit() {
+        long start = System.nanoTime();
+        depositor.deposit(agents, trail, agentStride);
+        if(telemetry != null) telemetry.record(Telemetry.Phase.DEPOSIT, start);
+    }
+
+    /**
+     * Sort phase. Every sortInterval steps, reorders the agents so the next steps walk the trail mostly in order.
+     * Which random number each agent gets depends on its index, so runs only repeat with the same interval.
+     */
+    public void sortIfDue() {
+        if(sortInterval <= 0 || ++stepsSinceSort < sortInterval) return;
+
+        long start = System.nanoTime();
+        stepsSinceSort = 0;
+        agents = sorter.sort(agents);
+        if(telemetry != null) telemetry.record(Telemetry.Phase.SORT, start);
+    }
+
+    /**
+     * Stop the workers of the simulation.
+     */
+    public void shutdown() {
+        spawner.shutdown();
+        workers.shutdown();
+    }
+
+    /**
+     * Logic of the agents in one part of the store, each worker uses its own random stream.
+     * @param worker The worker running the part.
+     * @param start The first agent of the part.
+     * @param end The agent after the last agent of the part.
+     */
+    private void senseAndMove(int worker, int start, int end) {
+        SplittableRandom random = workers.random(worker);
+        AgentStore agents = this.agents;
+        FastMathVerifier verifier = this.verifier;
+
+        if(verifier != null){
+            for (int i = start; i < end; i++) {
+                verifier.check(worker, agents, i, trail);
+            }
+        }
+
+        int stride = agentStride;
+        if(stride > 1){
+            //Only the agents whose index is a multiple of the stride move.
+            for (int i = start + Math.floorMod(-start, stride); i < end; i += stride) {
+                if(fastMath) Agent.tickFast(agents, i, trail, random.nextDouble());
+                else Agent.tick(agents, i, trail, random.nextDouble());
+            }
+        }else if(fastMath){
+            for (int i = start; i < end; i++) {
+                Agent.tickFast(agents, i, trail, random.nextDouble());
+            }
+        }else if(kernels.isVector()){
+            double[][] block = blocks[worker];
+            for (int blockStart = start; blockStart < end; blockStart += BLOCK_SIZE) {
+                int count = Math.min(BLOCK_SIZE, end - blockStart);
+                kernels.integrate(agents, blockStart, count, block[0], block[1], block[2], block[3]);
+                for (int k = 0; k < count; k++) {
+                    Agent.tickAlong(agents, blockStart + k, trail, random.nextDouble(), block[0][k], block[1][k], block[2][k], block[3][k]);
+                }
+            }
+        }else{
+            for (int i = start; i < end; i++) {
+                Agent.tick(agents, i, trail, random.nextDouble());
+            }
+        }
+    }
+
+    /**
+     * Clear one part of the trail.
+     * @param worker The worker running the part.
+     * @param start The first pixel of the part.
+     * @param end The pixel after the last pixel of the part.
+     */
+    private void clearTrail(int worker, int start, int end) {
+        trail.clear(start, end);
+    }
+}
@@ -0,0 +1,221 @@
+package Microbiome;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reorders the agents of a store so agents that are close on the trail are also close in memory.
+ * Each agent gets the Morton index of the cell it stands in, the indices are sorted with a parallel LSD radix sort,
+ * and every array of the store is gathered into a spare store in the sorted order.
+ * After a sort, sensing and depositing walk the trail mostly in order instead of jumping across it.
+ * When the store holds several species, the species is the highest part of the key so each species stays in one block.
+ */
+public class SpatialSorter {
+
+    private static final int CELL_SHIFT = 3;    //Cells are 8x8 pixels, about the area the sensors of an agent cover.
+    private static final int DIGIT_BITS = 8;    //Bits sorted by each pass of the radix sort.
+    private static final int RADIX = 1 << DIGIT_BITS;
+    private static final int SPECIES_BITS = 2;  //Bits of the key taken by the species, enough for Simulation.MAX_SPECIES.
+
+    private final WorkerPool workers;
+    private final int mortonBits;               //Bits of the Morton index of a cell.
+
+    private int[] keys = new int[0];
+    private int[] order = new int[0];
+    private int[] sortedKeys = new int[0];
+    private int[] sortedOrder = new int[0];
+    private final int[][] counts;               //For each worker, how many of its keys have each digit.
+    private AgentStore spare = new AgentStore(0);
+
+    private AgentStore agents;
+    private int shift;
+    private int speciesShift;                   //Where the species goes in the key, -1 for a store without species.
+    private final WorkerPool.RangeTask keyTask = this::computeKeys;
+    private final WorkerPool.RangeTask countTask = this::countDigits;
+    private final WorkerPool.RangeTask scatterTask = this::scatterDigits;
+    private final WorkerPool.RangeTask gatherTask = this::gatherAgents;
+
+    public long sorts;          //Number of sorts done.
+    public long sortNanos;      //Total time spent sorting.
+
+    /**
+     * Creates the sorter for a trail size.
+     * @param width The width of the trail.
+     * @param height The height of the trail.
+     * @param workers The workers that share the sort.
+     */
+    public SpatialSorter(int width, int height, WorkerPool workers) {
+        this.workers = workers;
+        this.counts = new int[workers.size()][RADIX];
+
+        int cellBits = 32 - Integer.numberOfLeadingZeros(Math.max(width - 1, height - 1) >> CELL_SHIFT);
+        this.mortonBits = 2 * cellBits;
+    }
+
+    /**
+     * Sort the agents of a store by the cell they stand in.
+     * The agents are copied to a spare store, and the store given in is kept as the next spare.
+     * @param agents The store of all agents, every agent must stand inside the trail.
+     * @return The sorted store, holding the same agents.
+     */
+    public AgentStore sort(AgentStore agents) {
+        long start = System.nanoTime();
+        int count = agents.count;
+
+        if(keys.length < count){
+            int capacity = agents.capacity();
+            keys = new int[capacity];
+            order = new int[capacity];
+            sortedKeys = new int[capacity];
+            sortedOrder = new int[capacity];
+        }
+        if(spare.capacity() < agents.capacity()) spare = new AgentStore(agents.capacity());
+
+        this.agents = agents;
+        speciesShift = agents.speciesWeights == null ? -1 : mortonBits;
+        int keyBits = mortonBits + (speciesShift < 0 ? 0 : SPECIES_BITS);
+        int passes = Math.max(1, (keyBits + DIGIT_BITS - 1) / DIGIT_BITS);
+        workers.parallelFor(count, keyTask);
+
+        for(int pass = 0; pass < passes; pass++){
+            shift = pass * DIGIT_BITS;
+            for(int[] digits : counts) Arrays.fill(digits, 0);
+            workers.parallelFor(count, countTask);
+
+            //Lay the output out digit by digit, worker by worker, so the sort stays stable.
+            int position = 0;
+            for(int digit = 0; digit < RADIX; digit++){
+                for(int w = 0; w < counts.length; w++){
+                    int size = counts[w][digit];
+                    counts[w][digit] = position;
+                    position += size;
+                }
+            }
+            workers.parallelFor(count, scatterTask);
+
+            int[] swap = keys; keys = sortedKeys; sortedKeys = swap;
+            swap = order; order = sortedOrder; sortedOrder = swap;
+        }
+
+        workers.parallelFor(count, gatherTask);
+        spare.count = count;
+        spare.speciesWeights = agents.speciesWeights;
+
+        AgentStore sorted = spare;
+        spare = agents;
+        this.agents = null;
+
+        sorts++;
+        sortNanos += System.nanoTime() - start;
+        return sorted;
+    }
+
+    /**
+     * Describe the time spent sorting.
+     * @return One line with the number of sorts and their average time.
+     */
+    public String report() {
+        return String.format(Locale.ROOT, "Spatial sort: %d sorts, %.2f ms each, %.2f s in total",
+            sorts, sorts == 0 ? 0 : sortNanos / 1e6 / sorts, sortNanos / 1e9);
+    }
+
+    /**
+     * Interleave the bits of a cell position into its Morton index.
+     * @param cellX The column of the cell, at most 16 bits.
+     * @param cellY The row of the cell, at most 16 bits.
+     * @return The Morton index, with the bits of X in the even positions.
+     */
+    public static int morton(int cellX, int cellY) {
+        return spread(cellX) | (spread(cellY) << 1);
+    }
+
+    /**
+     * Move the lower 16 bits of a value to the even bits.
+     * @param value The value to spread.
+     * @return The spread bits.
+     */
+    private static int spread(int value) {
+        value &= 0xFFFF;
+        value = (value | (value << 8)) & 0x00FF00FF;
+        value = (value | (value << 4)) & 0x0F0F0F0F;
+        value = (value | (value << 2)) & 0x33333333;
+        value = (value | (value << 1)) & 0x55555555;
+        return value;
+    }
+
+    /**
+     * Work out the Morton index of the agents of a part of the store.
+     * @param worker The worker running the part.
+     * @param start The first index of the part.
+     * @param end The index after the last index of the part.
+     */
+    private void computeKeys(int worker, int start, int end) {
+        double[] x = agents.x;
+        double[] y = agents.y;
+        byte[] species = agents.species;
+        int speciesShift = this.speciesShift;
+        for(int i = start; i < end; i++){
+            int key = morton((int)x[i] >> CELL_SHIFT, (int)y[i] >> CELL_SHIFT);
+            if(speciesShift >= 0) key |= species[i] << speciesShift;
+            keys[i] = key;
+            order[i] = i;
+        }
+    }
+
+    /**
+     * Count the keys of a part with each digit of the current pass.
+     * @param worker The worker running the part.
+     * @param start The first index of the part.
+     * @param end The index after the last index of the part.
+     */
+    private void countDigits(int worker, int start, int end) {
+        int[] count = counts[worker];
+        int[] keys = this.keys;
+        for(int i = start; i < end; i++){
+            count[(keys[i] >>> shift) & (RADIX - 1)]++;
+        }
+    }
+
+    /**
+     * Move the keys of a part to where their digit of the current pass puts them.
+     * @param worker The worker running the part.
+     * @param start The first index of the part.
+     * @param end The index after the last index of the part.
+     */
+    private void scatterDigits(int worker, int start, int end) {
+        int[] cursor = counts[worker];
+        int[] keys = this.keys, order = this.order;
+        for(int i = start; i < end; i++){
+            int key = keys[i];
+            int position = cursor[(key >>> shift) & (RADIX - 1)]++;
+            sortedKeys[position] = key;
+            sortedOrder[position] = order[i];
+        }
+    }
+
+    /**
+     * Copy a part of the sorted agents into the spare store.
+     * @param worker The worker running the part.
+     * @param start The first index of the part.
+     * @param end The index after the last index of the part.
+     */
+    private void gatherAgents(int worker, int start, int end) {
+        AgentStore from = agents, to = spare;
+        int[] order = this.order;
+        for(int k = start; k < end; k++){
+            int i = order[k];
+            to.x[k] = from.x[i];
+            to.y[k] = from.y[i];
+            to.angle[k] = from.angle[i];
+            to.moveSpeed[k] = from.moveSpeed[i];
+            to.turnSpeed[k] = from.turnSpeed[i];
+            to.sensorSize[k] = from.sensorSize[i];
+            to.sensorDistance[k] = from.sensorDistance[i];
+            to.sensorOffsetAngle[k] = from.sensorOffsetAngle[i];
+            to.sensorOffsetCos[k] = from.sensorOffsetCos[i];
+            to.sensorOffsetSin[k] = from.sensorOffsetSin[i];
+            to.color[k] = from.color[i];
+            to.species[k] = from.species[i];
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package Microbiome;
+
+import Microbiome.AgentPresets.AgentPreset;
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prepares the next population of agents away from the frame loop.
+ * <p>
+ * Spawns run one at a time on a background thread, which splits the agents into chunks and fills them in parallel.
+ * Every chunk has its own random stream split from the seed of the spawn, so the result only depends on the seed,
+ * not on how many workers fill it. The stores are taken from a pool and given back once they are replaced,
+ * so switching between populations of the same size does not allocate.
+ */
+public class Spawner {
+
+    private static final int CHUNK_SIZE = 4096;     //Agents filled from one random stream.
+
+    public final int width;             //Width of the trail the agents are spawned on.
+    public final int height;            //Height of the trail the agents are spawned on.
+
+    private final WorkerPool workers;   //Fills the chunks, only used from the spawn thread.
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "spawner");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ArrayDeque<AgentStore> pool = new ArrayDeque<>();    //Stores that can be filled again. Guarded by itself.
+
+    //The spawn being filled, only used from the spawn thread.
+    private AgentStore target;
+    private SplittableRandom[] streams;
+    private AgentPreset[] species;
+    private int[] speciesColor;
+    private int[] speciesEnd;
+    private double spawnAreaSize;
+    private final WorkerPool.RangeTask fillTask = this::fill;
+
+    /**
+     * Creates the spawner and its workers.
+     * @param width Width of the trail the agents are spawned on.
+     * @param height Height of the trail the agents are spawned on.
+     * @param workerCount Number of workers filling the chunks.
+     */
+    public Spawner(int width, int height, int workerCount) {
+        this.width = width;
+        this.height = height;
+        this.workers = new WorkerPool(workerCount, 0);
+    }
+
+    /**
+     * Start filling a store in the background with agents in a circle in the middle of the trail.
+     * @param totalAgents Total agents to be spawned, shared evenly between the species.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species.
+     * @param weights The species weights of the store, or null for a single species that deposits the color of its preset.
+     * With weights, the first species deposits into R, the second into G and the third into B.
+     * @param seed The seed the random streams of the spawn are split from.
+     * @return The filled store, once it is done.
+     */
+    public Future<AgentStore> prepare(int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights, long seed) {
+        return thread.submit(() -> {
+            AgentStore store = take(totalAgents);
+            spawn(store, totalAgents, spawnAreaSize, species, weights, seed);
+            return store;
+        });
+    }
+
+    /**
+     * Start filling a new store in the background with only the agents of a spawn that stand in some rows of the trail.
+     * The agents are the same, in the same order, as the ones prepare gives for those rows with the same arguments,
+     * so processes that each own some rows can spawn their part without ever holding the whole spawn.
+     * The chunks are filled one after the other on the spawn thread.
+     * @param totalAgents Total agents of the whole spawn.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species.
+     * @param weights The species weights of the store, or null for a single species.
+     * @param seed The seed the random streams of the spawn are split from.
+     * @param startRow The first row whose agents are kept.
+     * @param endRow The row after the last row whose agents are kept.
+     * @return The filled store, once it is done.
+     */
+    public Future<AgentStore> prepareRows(int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights, long seed, int startRow, int endRow) {
+        return thread.submit(() -> {
+            AgentStore store = new AgentStore(0);
+            setUp(totalAgents, spawnAreaSize, species, weights, seed);
+
+            for(int chunk = 0; chunk < streams.length; chunk++){
+                SplittableRandom random = streams[chunk];
+                int first = chunk * CHUNK_SIZE;
+                int last = Math.min(totalAgents, first + CHUNK_SIZE);
+
+                int s = 0;
+                for(int i = first; i < last; i++){
+                    while(i >= speciesEnd[s]) s++;
+                    //Every agent draws its random numbers, the ones outside of the rows are written over by the next.
+                    store.ensureCapacity(store.count + 1);
+                    spawnAgent(store, store.count, random, s);
+                    int row = (int)store.y[store.count];
+                    if(row >= startRow && row < endRow) store.count++;
+                }
+            }
+
+            this.streams = null;
+            this.species = null;
+            store.speciesWeights = weights;
+            return store;
+        });
+    }
+
+    /**
+     * Give a store back to be filled again.
+     * @param store The store, nothing else may use it anymore.
+     */
+    public void recycle(AgentStore store) {
+        synchronized(pool){
+            pool.push(store);
+        }
+    }
+
+    /**
+     * Give the store of a spawn back once it is done, for a spawn that is no longer wanted.
+     * @param spawn The spawn.
+     */
+    public void recycleWhenDone(Future<AgentStore> spawn) {
+        thread.submit(() -> {
+            recycle(spawn.get());
+            return null;
+        });
+    }
+
+    /**
+     * Stop the spawn thread and its workers.
+     */
+    public void shutdown() {
+        thread.shutdownNow();
+        workers.shutdown();
+    }
+
+    /**
+     * Take a store that can hold enough agents from the pool, or create one.
+     * Stores that are too small are dropped from the pool.
+     * @param capacity The number of agents it must hold.
+     * @return The store, to be given back with recycle once it is not used anymore.
+     */
+    public AgentStore take(int capacity) {
+        synchronized(pool){
+            AgentStore store;
+            while((store = pool.poll()) != null){
+                if(store.capacity() >= capacity) return store;
+            }
+        }
+        return new AgentStore(capacity);
+    }
+
+    /**
+     * Fill a store on the spawn thread.
+     * @param store The store to fill.
+     * @param totalAgents Total agents to be spawned.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species.
+     * @param weights The species weights of the store, or null for a single species.
+     * @param seed The seed the random streams of the spawn are split from.
+     */
+    private void spawn(AgentStore store, int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights, long seed) {
+        setUp(totalAgents, spawnAreaSize, species, weights, seed);
+
+        this.target = store;
+        workers.parallelFor(streams.length, fillTask);
+        this.target = null;
+        this.streams = null;
+        this.species = null;
+
+        store.count = totalAgents;
+        store.speciesWeights = weights;
+    }
+
+    /**
+     * Work out the colors and blocks of the species and split the random stream of every chunk, on the spawn thread.
+     * @param totalAgents Total agents to be spawned.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species.
+     * @param weights The species weights of the store, or null for a single species.
+     * @param seed The seed the random streams of the spawn are split from.
+     */
+    private void setUp(int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights, long seed) {
+        //If the spawn area is larger than the trail, set the spawn area to the maximum of the trail.
+        int midWidth = width / 2;
+        int midHeight = height / 2;
+        if(spawnAreaSize >= midWidth || spawnAreaSize >= midHeight) spawnAreaSize = Math.min(midWidth, midHeight);
+
+        speciesColor = new int[species.length];
+        speciesEnd = new int[species.length];
+        for(int s = 0; s < species.length; s++){
+            AgentPreset preset = species[s];
+            int amount = Math.min(255, preset.colorR + preset.colorG + preset.colorB);
+            speciesColor[s] = weights == null ? (preset.colorR << 16) | (preset.colorG << 8) | preset.colorB : amount << (16 - 8 * s);
+            speciesEnd[s] = (int)((long)totalAgents * (s + 1) / species.length);
+        }
+
+        //Split the streams in order, so each chunk gets the same stream whichever worker fills it.
+        SplittableRandom source = new SplittableRandom(seed);
+        streams = new SplittableRandom[(totalAgents + CHUNK_SIZE - 1) / CHUNK_SIZE];
+        for(int c = 0; c < streams.length; c++){
+            streams[c] = source.split();
+        }
+
+        this.species = species;
+        this.spawnAreaSize = spawnAreaSize;
+    }
+
+    /**
+     * Fill the agents of some chunks.
+     * @param worker The worker running the part.
+     * @param start The first chunk of the part.
+     * @param end The chunk after the last chunk of the part.
+     */
+    private void fill(int worker, int start, int end) {
+        AgentStore store = target;
+        int totalAgents = speciesEnd[speciesEnd.length - 1];
+
+        for(int chunk = start; chunk < end; chunk++){
+            SplittableRandom random = streams[chunk];
+            int first = chunk * CHUNK_SIZE;
+            int last = Math.min(totalAgents, first + CHUNK_SIZE);
+
+            int s = 0;
+            for(int i = first; i < last; i++){
+                while(i >= speciesEnd[s]) s++;
+                spawnAgent(store, i, random, s);
+            }
+        }
+    }
+
+    /**
+     * Spawn one agent of a species at a random place of the spawn area.
+     * @param store The store to write the agent to.
+     * @param i The index of the agent in the store.
+     * @param random The random stream of the chunk of the agent.
+     * @param s The species of the agent.
+     */
+    private void spawnAgent(AgentStore store, int i, SplittableRandom random, int s) {
+        AgentPreset preset = species[s];
+        int color = speciesColor[s];
+
+        double randomAngle = 2 * Math.PI * random.nextDouble();
+        double randomDistance = spawnAreaSize * random.nextDouble();
+
+        double randomPosX = width / 2.0 + Math.cos(randomAngle) * randomDistance;
+        double randomPoxY = height / 2.0 + Math.sin(randomAngle) * randomDistance;
+
+        store.set(i, randomPosX, randomPoxY, randomAngle, preset.moveSpeed, preset.turnSpeed, preset.sensorSize,
+            preset.sensorDistance, preset.sensorOffsetAngle, (color >> 16) & 255, (color >> 8) & 255, color & 255);
+        store.species[i] = (byte)s;
+    }
+}
@@ -0,0 +1,227 @@
+package Microbiome;
+
+/**
+ * The integral image of a trail, so the sum of any rectangle of it is four reads whatever its size.
+ * <p>
+ * Entry (x, y) holds the sum of every pixel above and to the left of pixel (x, y), so the table is one row and one
+ * column larger than the trail and its first row and column are zero. Without species the table sums the intensity,
+ * with species it sums the R, G and B channels in three planes, so every species can weight them its own way.
+ * <p>
+ * The sums of a large trail do not fit in an int, but they wrap around the same way when added and subtracted,
+ * so the sum of a sensor still comes out exact as long as it fits in an int itself, which the sensors of the agents do.
+ * <p>
+ * Building the table reads and writes every pixel twice, so it is only worth it when the agents sense large windows
+ * or are many for the size of the trail. worthwhile tells when it is.
+ */
+public class SummedAreaTable {
+
+    //The costs in pixels read by a sensor window, measured on 1920x1080 with 100k and 1M agents.
+    private static final double BUILD_COST = 0.5;   //Building one plane, for each pixel of the trail.
+    private static final double LOOKUP_COST = 7;    //Summing one sensor from one plane, its four reads land far apart.
+
+    public final int width;             //Width of the trail summed.
+    public final int height;            //Height of the trail summed.
+
+    public final int[] intensity;       //Sums of R + G + B.
+    public int[] red;                   //Sums of each channel, only made once the channels are summed.
+    public int[] green;
+    public int[] blue;
+    public boolean channels;            //True if the last build summed the channels instead of the intensity.
+
+    private final int stride;           //Entries in a row of the table.
+    private final WorkerPool workers;
+    private TrailMap source;            //The trail being summed.
+    private final WorkerPool.RangeTask rowTask = this::sumRows;
+    private final WorkerPool.RangeTask columnTask = this::sumColumns;
+
+    /**
+     * Creates the table of a trail size.
+     * @param width Width of the trail.
+     * @param height Height of the trail.
+     * @param workers The workers the build is split between.
+     */
+    public SummedAreaTable(int width, int height, WorkerPool workers) {
+        this.width = width;
+        this.height = height;
+        this.stride = width + 1;
+        this.workers = workers;
+        intensity = new int[stride * (height + 1)];
+    }
+
+    /**
+     * Tell if building the table before sensing costs less than sensing the pixels.
+     * @param sensingAgents The number of agents that sense in a step.
+     * @param sensorCells The mean number of pixels in the window of a sensor.
+     * @param pixels The number of pixels of the trail.
+     * @param channels True if the channels are summed, which builds and reads three planes.
+     * @return True if the table is cheaper.
+     */
+    public static boolean worthwhile(long sensingAgents, double sensorCells, long pixels, boolean channels) {
+        int planes = channels ? 3 : 1;
+        double pixelReads = 3.0 * sensingAgents * sensorCells;
+        double tableReads = BUILD_COST * pixels * planes + 3.0 * sensingAgents * LOOKUP_COST * planes;
+        return tableReads < pixelReads;
+    }
+
+    /**
+     * Sum the front buffer of a trail on the workers.
+     * @param trail The trail, of the size of the table.
+     * @param channels Sum the R, G and B channels instead of the intensity.
+     */
+    public void build(TrailMap trail, boolean channels) {
+        if(channels && red == null){
+            red = new int[intensity.length];
+            green = new int[intensity.length];
+            blue = new int[intensity.length];
+        }
+
+        this.channels = channels;
+        source = trail;
+        workers.parallelFor(height, rowTask);
+        workers.parallelFor(width, columnTask);
+        source = null;
+    }
+
+    /**
+     * Sum the intensity in the window of a sensor, the same pixels Agent.senseAt reads.
+     * @param sensorX Position X of the sensor.
+     * @param sensorY Position Y of the sensor.
+     * @param sensorSize The size of the sensor.
+     * @return The sum of RGB value sensed within the sensor.
+     */
+    public int sum(double sensorX, double sensorY, int sensorSize) {
+        int firstX = first(sensorX, sensorSize, width), lastX = last(sensorX, sensorSize, width);
+        int firstY = first(sensorY, sensorSize, height), lastY = last(sensorY, sensorSize, height);
+        if(firstX > lastX || firstY > lastY) return 0;
+
+        return rectangle(intensity, (int)sensorX + firstX, (int)sensorY + firstY, (int)sensorX + lastX + 1, (int)sensorY + lastY + 1);
+    }
+
+    /**
+     * Sum the channels in the window of a sensor with a weight for each, the same pixels Agent.senseAt reads.
+     * The table must have been built with the channels.
+     * @param sensorX Position X of the sensor.
+     * @param sensorY Position Y of the sensor.
+     * @param sensorSize The size of the sensor.
+     * @param weights How much the R, G and B channels count, negative to be repelled.
+     * @return The weighted sum of the channels sensed within the sensor.
+     */
+    public int sum(double sensorX, double sensorY, int sensorSize, int[] weights) {
+        int firstX = first(sensorX, sensorSize, width), lastX = last(sensorX, sensorSize, width);
+        int firstY = first(sensorY, sensorSize, height), lastY = last(sensorY, sensorSize, height);
+        if(firstX > lastX || firstY > lastY) return 0;
+
+        int left = (int)sensorX + firstX, top = (int)sensorY + firstY;
+        int right = (int)sensorX + lastX + 1, bottom = (int)sensorY + lastY + 1;
+        return rectangle(red, left, top, right, bottom) * weights[0]
+            + rectangle(green, left, top, right, bottom) * weights[1]
+            + rectangle(blue, left, top, right, bottom) * weights[2];
+    }
+
+    /**
+     * Get the sum of a rectangle of the trail from a plane of the table.
+     * @param plane The plane.
+     * @param left The first column.
+     * @param top The first row.
+     * @param right The column after the last.
+     * @param bottom The row after the last.
+     * @return The sum.
+     */
+    private int rectangle(int[] plane, int left, int top, int right, int bottom) {
+        return plane[bottom * stride + right] - plane[top * stride + right] - plane[bottom * stride + left] + plane[top * stride + left];
+    }
+
+    /**
+     * Get the first offset of a sensor window that falls inside the trail, tested the way Agent.senseAt tests it.
+     * @param position The position of the sensor along one axis.
+     * @param size The size of the sensor.
+     * @param extent The width or height of the trail.
+     * @return The first offset in [-size, size], or size + 1 if none is inside.
+     */
+    private static int first(double position, int size, int extent) {
+        int offset = -size;
+        while(offset <= size && (position + offset < 0 || position + offset >= extent)) offset++;
+        return offset;
+    }
+
+    /**
+     * Get the last offset of a sensor window that falls inside the trail, tested the way Agent.senseAt tests it.
+     * @param position The position of the sensor along one axis.
+     * @param size The size of the sensor.
+     * @param extent The width or height of the trail.
+     * @return The last offset in [-size, size], or -size - 1 if none is inside.
+     */
+    private static int last(double position, int size, int extent) {
+        int offset = size;
+        while(offset >= -size && (position + offset < 0 || position + offset >= extent)) offset--;
+        return offset;
+    }
+
+    /**
+     * Fill rows of the table with the sums along each row of the trail.
+     * @param worker The worker running the part.
+     * @param start The first row of the trail.
+     * @param end The row after the last row of the trail.
+     */
+    private void sumRows(int worker, int start, int end) {
+        if(channels){
+            int[] color = source.color;
+            for(int y = start; y < end; y++){
+                int r = 0, g = 0, b = 0;
+                int at = (y + 1) * stride + 1;
+                for(int pos = y * width; pos < (y + 1) * width; pos++, at++){
+                    int sample = color[pos];
+                    r += (sample >> 16) & 255;
+                    g += (sample >> 8) & 255;
+                    b += sample & 255;
+                    red[at] = r;
+                    green[at] = g;
+                    blue[at] = b;
+                }
+            }
+        }else{
+            short[] pixels = source.intensity;
+            for(int y = start; y < end; y++){
+                int sum = 0;
+                int at = (y + 1) * stride + 1;
+                for(int pos = y * width; pos < (y + 1) * width; pos++, at++){
+                    sum += pixels[pos];
+                    intensity[at] = sum;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add each row of the table to the one below it, for a band of columns, so the row sums become rectangle sums.
+     * The rows are walked in order so the band is read and written along memory.
+     * @param worker The worker running the part.
+     * @param start The first column of the trail.
+     * @param end The column after the last column of the trail.
+     */
+    private void sumColumns(int worker, int start, int end) {
+        if(channels){
+            accumulate(red, start, end);
+            accumulate(green, start, end);
+            accumulate(blue, start, end);
+        }else{
+            accumulate(intensity, start, end);
+        }
+    }
+
+    /**
+     * Add each row of a plane to the one below it, for a band of columns.
+     * @param plane The plane.
+     * @param start The first column of the trail.
+     * @param end The column after the last column of the trail.
+     */
+    private void accumulate(int[] plane, int start, int end) {
+        for(int y = 2; y <= height; y++){
+            int above = (y - 1) * stride + 1;
+            int at = y * stride + 1;
+            for(int x = start; x < end; x++){
+                plane[at + x] += plane[above + x];
+            }
+        }
+    }
+}
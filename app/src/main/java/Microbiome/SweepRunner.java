@@ -0,0 +1,328 @@
+package Microbiome;
+
+import Microbiome.AgentPresets.AgentPreset;
+import Microbiome.AgentPresets.PresetCatalog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many small headless simulations over ranges of preset fields and records how each one turned out.
+ * <p>
+ * Usage: SweepRunner [--preset NAME] [--vary FIELD=FROM:TO:COUNT|FIELD=V,V,...]... [--repeats N] [--seed S]
+ * [--agents N] [--width W] [--height H] [--steps N] [--spawn-size D] [--threads N] [--thumbnail-width W]
+ * [--out DIR] [--fast-math true|false]
+ * <p>
+ * Every combination of the values of every varied field is run, each with the given number of seeds, starting from the preset.
+ * The runs are handed to the threads as they free up, each thread running one whole simulation at a time on one worker,
+ * so the threads never wait on each other. Each thread keeps its simulation, and with it the trail, the pooled agent stores
+ * and the tables of the diffuser, for every run it does. Only the spawn and the trail change between runs.
+ * <p>
+ * The output directory gets results.csv, one line for each run as it finishes, and a thumbnail of each run.
+ * The results have the columns of a preset catalog, so they can be loaded with -Dmicrobiome.presets.
+ */
+public class SweepRunner {
+
+    //The pixels brighter than this are counted as covered, a tenth of full white.
+    private static final int COVERED = 765 / 10;
+
+    public String presetName = "Default";       //Name of the preset the fields are varied from.
+    public final List<String> varied = new ArrayList<>();       //The fields varied, in the order they were given.
+    public final List<double[]> values = new ArrayList<>();     //The values of each varied field.
+    public int repeats = 1;                     //Runs of each combination, each with the next seed.
+    public long seed = 0;                       //Seed of the first run of each combination.
+    public int totalAgents = 20000;
+    public int width = 320;
+    public int height = 240;
+    public int steps = 600;
+    public double spawnAreaSize = 80;           //Maximum distance of the spawn area.
+    public int threads = GlobalSettings.WORKER_COUNT;      //Simulations run at the same time.
+    public int thumbnailWidth = 96;             //Width of the thumbnails, 0 to write none.
+    public File outputDirectory = new File("sweep");
+    public boolean fastMath = GlobalSettings.FAST_MATH;   //Move the agents with the TrigTable.
+
+    private AgentPreset[] presets;              //The preset of each combination.
+    private Simulation[] simulations;           //The simulation of each thread, made by the thread on its first run.
+    private int[][] thumbnails;                 //The thumbnail pixels of each thread.
+    private PrintWriter results;                //Guarded by itself.
+    private final AtomicInteger next = new AtomicInteger();    //The next run to hand out.
+    private final AtomicInteger finished = new AtomicInteger();
+
+    /**
+     * What was measured on the trail at the end of a run, each in [0, 1].
+     */
+    public static class Metrics {
+        public double brightness;       //Mean of R + G + B over the trail, of full white.
+        public double coverage;         //Share of the pixels brighter than a tenth of full white.
+        public double contrast;         //Standard deviation of R + G + B, of full white.
+        public double edges;            //Mean difference of R + G + B between neighbouring pixels, of full white, high for fine patterns.
+
+        /**
+         * Measure the front buffer of a trail.
+         * @param trail The trail.
+         * @return The metrics.
+         */
+        public static Metrics of(TrailMap trail) {
+            int width = trail.width;
+            short[] intensity = trail.intensity;
+            long sum = 0, squares = 0, covered = 0, differences = 0;
+
+            for(int y = 0; y < trail.height; y++){
+                int row = y * width;
+                for(int x = 0; x < width; x++){
+                    int value = intensity[row + x];
+                    sum += value;
+                    squares += (long)value * value;
+                    if(value > COVERED) covered++;
+                    if(x > 0) differences += Math.abs(value - intensity[row + x - 1]);
+                    if(y > 0) differences += Math.abs(value - intensity[row + x - width]);
+                }
+            }
+
+            double pixels = trail.size();
+            double mean = sum / pixels;
+            Metrics metrics = new Metrics();
+            metrics.brightness = mean / 765;
+            metrics.coverage = covered / pixels;
+            metrics.contrast = Math.sqrt(Math.max(0, squares / pixels - mean * mean)) / 765;
+            metrics.edges = differences / (2 * pixels * 765);
+            return metrics;
+        }
+    }
+
+    /**
+     * Read the options from the command line.
+     * @param args The command line arguments.
+     * @return The runner with the options set.
+     */
+    public static SweepRunner parse(String[] args) {
+        SweepRunner runner = new SweepRunner();
+
+        for(int i = 0; i < args.length; i++){
+            String option = args[i];
+            if(i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+            String value = args[++i];
+
+            switch(option){
+                case "--preset": runner.presetName = value; break;
+                case "--vary": runner.vary(value); break;
+                case "--repeats": runner.repeats = Integer.parseInt(value); break;
+                case "--seed": runner.seed = Long.parseLong(value); break;
+                case "--agents": runner.totalAgents = Integer.parseInt(value); break;
+                case "--width": runner.width = Integer.parseInt(value); break;
+                case "--height": runner.height = Integer.parseInt(value); break;
+                case "--steps": runner.steps = Integer.parseInt(value); break;
+                case "--spawn-size": runner.spawnAreaSize = Double.parseDouble(value); break;
+                case "--threads": runner.threads = Integer.parseInt(value); break;
+                case "--thumbnail-width": runner.thumbnailWidth = Integer.parseInt(value); break;
+                case "--out": runner.outputDirectory = new File(value); break;
+                case "--fast-math": runner.fastMath = Boolean.parseBoolean(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+
+        Agent.checkSize("The canvas", runner.width, runner.height);
+        if(runner.repeats < 1 || runner.threads < 1) throw new IllegalArgumentException("The repeats and the threads must be at least 1");
+        return runner;
+    }
+
+    /**
+     * Add a varied field, as FIELD=FROM:TO:COUNT for COUNT values evenly spaced from FROM to TO, or as FIELD=V,V,...
+     * @param text The field and its values.
+     */
+    public void vary(String text) {
+        int equals = text.indexOf('=');
+        if(equals < 0) throw new IllegalArgumentException("Expected FIELD=FROM:TO:COUNT or FIELD=V,V,... but got " + text);
+        String field = text.substring(0, equals).trim();
+        String range = text.substring(equals + 1).trim();
+
+        //Check the field exists and takes numbers.
+        if(field.equals("name")) throw new IllegalArgumentException("The name can not be varied");
+        AgentPreset check = new AgentPreset("Check", 0, 0, 0, 0, 0, 0, 0, 0);
+        PresetCatalog.set(check, field, "0");
+
+        double[] list;
+        String[] bounds = range.split(":");
+        if(bounds.length == 3){
+            double from = Double.parseDouble(bounds[0]), to = Double.parseDouble(bounds[1]);
+            int count = Integer.parseInt(bounds[2]);
+            if(count < 1) throw new IllegalArgumentException("A range needs at least one value: " + text);
+            list = new double[count];
+            for(int v = 0; v < count; v++){
+                list[v] = count == 1 ? from : from + (to - from) * v / (count - 1);
+            }
+        }else{
+            String[] items = range.split(",");
+            list = new double[items.length];
+            for(int v = 0; v < items.length; v++){
+                list[v] = Double.parseDouble(items[v].trim());
+            }
+        }
+
+        //Check every value is in the range of the field, before any run starts.
+        for(double value : list){
+            PresetCatalog.set(check, field, text(field, value));
+        }
+
+        varied.add(field);
+        values.add(list);
+    }
+
+    /**
+     * Write a varied value as the text of a field. Whole number fields are rounded, the others written so they read back the same.
+     * @param field The field.
+     * @param value The value.
+     * @return The text of the value.
+     */
+    private static String text(String field, double value) {
+        boolean whole = field.equals("sensorSize") || field.startsWith("color");
+        return whole ? Long.toString(Math.round(value)) : Double.toString(value);
+    }
+
+    /**
+     * Get the preset of every combination of the varied values. The first field varies slowest.
+     * @param base The preset the fields are varied from.
+     * @return The presets, named after the base preset and their index.
+     */
+    public AgentPreset[] combinations(AgentPreset base) {
+        long count = 1;
+        for(double[] list : values){
+            count *= list.length;
+            if(count * repeats > Integer.MAX_VALUE / 2) throw new IllegalArgumentException("Too many runs in the sweep");
+        }
+
+        AgentPreset[] combinations = new AgentPreset[(int)count];
+        for(int c = 0; c < count; c++){
+            AgentPreset preset = PresetCatalog.copy(base, String.format(Locale.ROOT, "%s-%d", base.name, c));
+            int rest = c;
+            for(int f = varied.size() - 1; f >= 0; f--){
+                double[] list = values.get(f);
+                double value = list[rest % list.length];
+                rest /= list.length;
+
+                String field = varied.get(f);
+                PresetCatalog.set(preset, field, text(field, value));
+            }
+            combinations[c] = preset;
+        }
+        return combinations;
+    }
+
+    /**
+     * Run every combination and write the results.
+     * @throws IOException If the catalog can not be read or the results can not be written.
+     */
+    public void run() throws IOException {
+        AgentPreset base = AgentPreset.find(PresetCatalog.loadAll(new File(GlobalSettings.PRESET_FILE)), presetName);
+        if(base == null) throw new IllegalArgumentException("Unknown preset " + presetName);
+        presets = combinations(base);
+        int runs = presets.length * repeats;
+
+        File thumbnailDirectory = new File(outputDirectory, "thumbnails");
+        if(!thumbnailDirectory.isDirectory() && !thumbnailDirectory.mkdirs()) throw new IOException("Can not create " + thumbnailDirectory);
+
+        threads = Math.min(threads, runs);
+        simulations = new Simulation[threads];
+        thumbnails = new int[threads][];
+        WorkerPool pool = new WorkerPool(threads, seed);
+        System.out.printf(Locale.ROOT, "Sweeping %d runs of %d agents on %dx%d for %d steps with %d threads%n",
+            runs, totalAgents, width, height, steps, threads);
+
+        long start = System.nanoTime();
+        try(PrintWriter writer = new PrintWriter(new File(outputDirectory, "results.csv"), StandardCharsets.UTF_8.name())){
+            results = writer;
+            writer.println("run,seed," + PresetCatalog.header() + ",milliseconds,brightness,coverage,contrast,edges,thumbnail");
+
+            //Every worker takes the next run until there are none left, so a slow run never holds up the others.
+            pool.parallelFor(threads, (worker, first, last) -> {
+                int run;
+                while((run = next.getAndIncrement()) < runs){
+                    run(worker, run);
+                }
+            });
+        }catch(UncheckedIOException e){
+            throw e.getCause();
+        }finally{
+            pool.shutdown();
+            for(Simulation simulation : simulations){
+                if(simulation != null) simulation.shutdown();
+            }
+        }
+
+        double hours = (System.nanoTime() - start) / 3.6e12;
+        System.out.printf(Locale.ROOT, "%d runs in %.1f s, %.0f runs per hour, results in %s%n",
+            runs, hours * 3600, runs / Math.max(hours, 1e-12), new File(outputDirectory, "results.csv"));
+    }
+
+    /**
+     * Run one simulation on the simulation of a thread, measure it and write its line and thumbnail.
+     * @param thread The thread running it.
+     * @param run The index of the run, the repeats of a combination follow each other.
+     */
+    private void run(int thread, int run) {
+        Simulation simulation = simulations[thread];
+        if(simulation == null){
+            simulation = new Simulation(width, height, 1, 0);
+            simulation.fastMath = fastMath;
+            simulations[thread] = simulation;
+        }
+
+        AgentPreset preset = presets[run / repeats];
+        long runSeed = seed + run % repeats;
+        long start = System.nanoTime();
+
+        //The same streams as a new simulation with the seed, so a run can be repeated alone with HeadlessRunner.
+        simulation.reseed(runSeed);
+        simulation.spawn(totalAgents, spawnAreaSize, preset);
+        for(int step = 0; step < steps; step++){
+            simulation.step();
+        }
+        long milliseconds = (System.nanoTime() - start) / 1000000;
+        Metrics metrics = Metrics.of(simulation.trail);
+
+        String thumbnail = "";
+        if(thumbnailWidth > 0){
+            int thumbnailHeight = Math.max(1, (int)((long)height * thumbnailWidth / width));
+            if(thumbnails[thread] == null) thumbnails[thread] = new int[thumbnailWidth * thumbnailHeight];
+            simulation.trail.presentScaled(thumbnails[thread], thumbnailWidth, thumbnailHeight);
+
+            thumbnail = String.format("thumbnails/run-%06d.png", run);
+            try{
+                FrameWriter.writePng(thumbnails[thread], thumbnailWidth, thumbnailHeight, new File(outputDirectory, thumbnail));
+            }catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        String line = String.format(Locale.ROOT, "%d,%d,%s,%d,%.5f,%.5f,%.5f,%.5f,%s", run, runSeed, PresetCatalog.line(preset),
+            milliseconds, metrics.brightness, metrics.coverage, metrics.contrast, metrics.edges, thumbnail);
+        synchronized(results){
+            results.println(line);
+            results.flush();
+        }
+
+        int done = finished.incrementAndGet();
+        if(done % 100 == 0) System.out.println(done + " runs done");
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        try{
+            parse(args).run();
+        }catch(IllegalArgumentException e){
+            System.err.println(e.getMessage());
+            System.err.println("Usage: SweepRunner [--preset NAME] [--vary FIELD=FROM:TO:COUNT|FIELD=V,V,...]... [--repeats N] [--seed S]"
+                + " [--agents N] [--width W] [--height H] [--steps N] [--spawn-size D] [--threads N] [--thumbnail-width W]"
+                + " [--out DIR] [--fast-math true|false]");
+            System.exit(1);
+        }
+    }
+}
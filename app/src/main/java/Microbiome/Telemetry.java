@@ -0,0 +1,282 @@
+package Microbiome;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures where the time of each frame goes.
+ * <p>
+ * Every phase records its duration into its own LatencyHistogram, and into a PhaseEvent when a JFR recording asks for it.
+ * At the end of each window of frames, about one second, the p50, p99 and max of every phase, the allocation rate,
+ * the GC pauses and the number of late frames are summarised into one line for the overlay and one row of the CSV file,
+ * then the histograms start over.
+ * <p>
+ * Phases may be recorded from any thread, but only one thread may record a phase at a time,
+ * and endFrame must run when no phase is running.
+ */
+public class Telemetry implements AutoCloseable {
+
+    /**
+     * The parts a frame is measured in.
+     */
+    public enum Phase {
+        SENSE_MOVE("move"),     //Sense, steer and move the agents.
+        DIFFUSE("diffuse"),     //Diffuse and evaporate the trail.
+        DEPOSIT("deposit"),     //Deposit the agents on the trail.
+        SORT("sort"),           //Sort the agents by position.
+        PRESENT("present"),     //Show the trail in the window.
+        UI("ui"),               //Draw the text of the window.
+        FRAME("frame");         //The whole frame, from the start of draw to its end.
+
+        public final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final double LATE_FACTOR = 1.1;     //A frame is late when it takes 10% longer than the frame rate allows.
+
+    public final int windowFrames;          //Frames summarised together.
+    public final long frameBudgetNanos;     //Time between frames at the target frame rate.
+
+    private final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+    private final LatencyHistogram gcPauses = new LatencyHistogram();   //Pauses in milliseconds. Guarded by itself, filled from the JMX thread.
+    private long reclaimedBytes;                                        //Guarded by gcPauses.
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener gcListener = this::onGarbageCollection;
+    private BufferedWriter csv;
+
+    private long frame;                 //Number of the current frame.
+    private long framesInWindow;
+    private long lateFrames;
+    private long lastFrameEnd;
+    private long windowStart;
+    private long heapUsedAtWindowStart;
+    private final long startNanos = System.nanoTime();
+
+    public String summary = "";         //The summary of the last finished window.
+
+    /**
+     * Creates the telemetry and starts listening for garbage collections.
+     * @param frameRate The target frame rate, frames slower than it are counted as late.
+     * @param windowFrames Frames summarised together.
+     */
+    public Telemetry(int frameRate, int windowFrames) {
+        this.windowFrames = Math.max(1, windowFrames);
+        this.frameBudgetNanos = 1_000_000_000L / frameRate;
+
+        for(int p = 0; p < phases.length; p++){
+            phases[p] = new LatencyHistogram();
+        }
+
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+            if(collector instanceof NotificationEmitter){
+                NotificationEmitter emitter = (NotificationEmitter)collector;
+                emitter.addNotificationListener(gcListener, null, null);
+                emitters.add(emitter);
+            }
+        }
+
+        windowStart = System.nanoTime();
+        heapUsedAtWindowStart = memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Write a row for every window to a CSV file from now on.
+     * @param file The file to write, replaced if it exists.
+     * @throws IOException If the file can not be created.
+     */
+    public void openCsv(File file) throws IOException {
+        csv = new BufferedWriter(new FileWriter(file));
+
+        StringBuilder header = new StringBuilder("time_s,frames,late_frames");
+        for(Phase phase : PHASES){
+            header.append(',').append(phase.label).append("_p50_ms");
+            header.append(',').append(phase.label).append("_p99_ms");
+            header.append(',').append(phase.label).append("_max_ms");
+        }
+        header.append(",alloc_mb_per_s,gc_count,gc_pause_max_ms,gc_pause_total_ms");
+        csv.write(header.toString());
+        csv.newLine();
+        csv.flush();
+    }
+
+    /**
+     * Record a phase that started at a time and ends now.
+     * @param phase The phase.
+     * @param startNanos The System.nanoTime when the phase started.
+     */
+    public void record(Phase phase, long startNanos) {
+        long duration = System.nanoTime() - startNanos;
+        phases[phase.ordinal()].record(duration);
+
+        PhaseEvent event = new PhaseEvent();
+        if(event.isEnabled()){
+            event.phase = phase.label;
+            event.frame = frame;
+            event.elapsed = duration;
+            event.commit();
+        }
+    }
+
+    /**
+     * Mark the end of a frame. Counts the frame as late when it came too long after the previous one,
+     * and finishes the window when it is full.
+     */
+    public void endFrame() {
+        long now = System.nanoTime();
+        if(lastFrameEnd != 0 && now - lastFrameEnd > frameBudgetNanos * LATE_FACTOR) lateFrames++;
+        lastFrameEnd = now;
+
+        frame++;
+        if(++framesInWindow >= windowFrames) finishWindow(now);
+    }
+
+    /**
+     * Get the number of the current frame.
+     * @return The number of frames ended so far.
+     */
+    public long frame() {
+        return frame;
+    }
+
+    /**
+     * Stop listening for garbage collections and close the CSV file.
+     * @throws IOException If the CSV file can not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        for(NotificationEmitter emitter : emitters){
+            try{
+                emitter.removeNotificationListener(gcListener);
+            }catch(ListenerNotFoundException e){
+                //Already removed.
+            }
+        }
+        emitters.clear();
+
+        if(csv != null){
+            csv.close();
+            csv = null;
+        }
+    }
+
+    /**
+     * Summarise the window, write it to the CSV file and start the next window.
+     * @param now The System.nanoTime at the end of the window.
+     */
+    private void finishWindow(long now) {
+        double seconds = Math.max(now - windowStart, 1) / 1e9;
+        long heapUsed = memory.getHeapMemoryUsage().getUsed();
+
+        long gcCount, gcMax, reclaimed;
+        double gcTotal;
+        synchronized(gcPauses){
+            gcCount = gcPauses.count();
+            gcMax = gcPauses.max();
+            gcTotal = gcPauses.mean() * gcCount;
+            reclaimed = reclaimedBytes;
+            gcPauses.reset();
+            reclaimedBytes = 0;
+        }
+        //What the heap grew by plus what the collections took back is what was allocated.
+        double allocatedMb = Math.max(0, heapUsed - heapUsedAtWindowStart + reclaimed) / 1e6;
+
+        StringBuilder line = new StringBuilder();
+        for(Phase phase : PHASES){
+            LatencyHistogram histogram = phases[phase.ordinal()];
+            if(histogram.count() == 0) continue;
+            line.append(String.format(Locale.ROOT, "%s %.1f/%.1f/%.1f  ", phase.label,
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.max() / 1e6));
+        }
+        line.append(String.format(Locale.ROOT, "alloc %.1f MB/s  gc %d/%d ms  late %d/%d",
+            allocatedMb / seconds, gcCount, gcMax, lateFrames, framesInWindow));
+        summary = line.toString();
+
+        if(csv != null) writeRow((now - startNanos) / 1e9, allocatedMb / seconds, gcCount, gcMax, gcTotal);
+
+        for(LatencyHistogram histogram : phases){
+            histogram.reset();
+        }
+        framesInWindow = 0;
+        lateFrames = 0;
+        windowStart = now;
+        heapUsedAtWindowStart = heapUsed;
+    }
+
+    /**
+     * Write the window to the CSV file, closing it if the write fails.
+     * @param time Seconds since the telemetry was created.
+     * @param allocationRate Megabytes allocated per second.
+     * @param gcCount Number of garbage collections.
+     * @param gcMax The longest garbage collection pause in milliseconds.
+     * @param gcTotal The total garbage collection pause in milliseconds.
+     */
+    private void writeRow(double time, double allocationRate, long gcCount, long gcMax, double gcTotal) {
+        StringBuilder row = new StringBuilder();
+        row.append(String.format(Locale.ROOT, "%.3f,%d,%d", time, framesInWindow, lateFrames));
+        for(LatencyHistogram histogram : phases){
+            row.append(String.format(Locale.ROOT, ",%.3f,%.3f,%.3f",
+                histogram.percentile(50) / 1e6, histogram.percentile(99) / 1e6, histogram.max() / 1e6));
+        }
+        row.append(String.format(Locale.ROOT, ",%.2f,%d,%d,%.1f", allocationRate, gcCount, gcMax, gcTotal));
+
+        try{
+            csv.write(row.toString());
+            csv.newLine();
+            csv.flush();
+        }catch(IOException e){
+            System.err.println("Can not write the telemetry: " + e.getMessage());
+            try{
+                csv.close();
+            }catch(IOException ignored){
+                //Already failing.
+            }
+            csv = null;
+        }
+    }
+
+    /**
+     * Record the pause and the reclaimed memory of a garbage collection.
+     * @param notification The notification sent by a collector.
+     * @param handback Not used.
+     */
+    private void onGarbageCollection(Notification notification, Object handback) {
+        if(!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return;
+
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData)notification.getUserData());
+        long reclaimed = 0;
+        Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+        Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+        for(Map.Entry<String, MemoryUsage> pool : before.entrySet()){
+            MemoryUsage afterPool = after.get(pool.getKey());
+            if(afterPool != null) reclaimed += Math.max(0, pool.getValue().getUsed() - afterPool.getUsed());
+        }
+
+        synchronized(gcPauses){
+            gcPauses.record(info.getGcInfo().getDuration());
+            reclaimedBytes += reclaimed;
+        }
+    }
+}
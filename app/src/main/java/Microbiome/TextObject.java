@@ -2,9 +2,13 @@ package Microbiome;
 
 import processing.core.PApplet;
 import processing.core.PFont;
+import processing.core.PGraphics;
+
+import java.util.Objects;
 
 /**
  * Represents a text object that can be used as UI in the game.
+ * The text remembers when it changed since it was last drawn, so a UiLayer only draws it again when it has to.
  */
 public class TextObject {
 
@@ -14,6 +18,7 @@ public class TextObject {
     private String text;        //The Text's content.
     protected PFont font;       //The Text's font.
     protected int textAlign;    //The Text's align format.
+    private boolean dirty = true;   //True if the text changed since it was last drawn.
 
     /**
      * Creates a new Text object.
@@ -38,13 +43,30 @@ public class TextObject {
      * @param app The main program.
      */
     public void draw(PApplet app) {
+        draw(app.g);
+    }
+
+    /**
+     * Draws the Text to a graphics layer, between its beginDraw and endDraw when it is offscreen.
+     * @param graphics The graphics to draw on.
+     */
+    public void draw(PGraphics graphics) {
         // The text() method is used to draw string onto the screen.
         // The first argument is the text, the second and third arguments are coordinates
-        app.textFont(font);
-        app.textSize(size);
-        app.textAlign(textAlign, PApplet.CENTER);
-        app.fill(255);
-        app.text(this.text, this.x, this.y);
+        graphics.textFont(font);
+        graphics.textSize(size);
+        graphics.textAlign(textAlign, PApplet.CENTER);
+        graphics.fill(255);
+        graphics.text(this.text, this.x, this.y);
+        dirty = false;
+    }
+
+    /**
+     * Tell if the text changed since it was last drawn.
+     * @return True if it has to be drawn again.
+     */
+    public boolean isDirty() {
+        return dirty;
     }
 
     /**
@@ -69,6 +91,7 @@ public class TextObject {
      */
     public void setX(int x) {
         this.x = x;
+        dirty = true;
     }
 
     /**
@@ -77,6 +100,7 @@ public class TextObject {
      */
     public void setY(int y) {
         this.y = y;
+        dirty = true;
     }
 
     /**
@@ -87,6 +111,7 @@ public class TextObject {
     public void setPosition(int x, int y) {
         this.x = x;
         this.y = y;
+        dirty = true;
     }
 
     /**
@@ -103,6 +128,7 @@ public class TextObject {
      */
     public void setSize(int size) {
         this.size = size;
+        dirty = true;
     }
 
     /**
@@ -114,11 +140,13 @@ public class TextObject {
     }
 
     /**
-     * Set the text content in the object.
+     * Set the text content in the object. Setting the same text again does not make it dirty.
      * @param text The content String.
      */
     public void setText(String text) {
+        if(Objects.equals(this.text, text)) return;
         this.text = text;
+        dirty = true;
     }
 
     /**
@@ -135,5 +163,6 @@ public class TextObject {
      */
     public void setFont(PFont font) {
         this.font = font;
+        dirty = true;
     }
 }
\ No newline at end of file
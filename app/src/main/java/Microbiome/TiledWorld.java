@@ -0,0 +1,468 @@
+package Microbiome;
+
+import Microbiome.AgentPresets.AgentPreset;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A world too large for one trail, split into square tiles that each own their block of the trail and the agents inside it.
+ * <p>
+ * The trail of a tile is padded with a halo on every side. Before each step the halo is filled with the pixels of the
+ * neighbouring tiles, or black outside of the world, so sensing up to sensorDistance + sensorSize away and the 3x3 diffusion
+ * only read the tile itself. An agent that moves out of its tile is handed to the tile it moved into at the end of the move,
+ * and deposits there in the same step. No pixel and no agent is written by two tiles, so the tiles of a phase run in any order.
+ * <p>
+ * Tiles are handed to the workers one at a time, the busiest first, so a worker that finishes early takes the next tile
+ * instead of waiting for the others. Every tile has its own random stream, so a run only depends on the seed and the tile size,
+ * not on how many workers run it.
+ */
+public class TiledWorld {
+
+    /**
+     * One tile of the world.
+     */
+    public static class Tile {
+        public final int column;            //Column of the tile in the grid.
+        public final int row;               //Row of the tile in the grid.
+        public final int originX;           //Position X in the world of the first pixel inside the tile.
+        public final int originY;           //Position Y in the world of the first pixel inside the tile.
+        public final int width;             //Width of the part of the world inside the tile.
+        public final int height;            //Height of the part of the world inside the tile.
+
+        public TrailMap trail;              //The trail of the tile, with the halo around it.
+        public AgentStore agents;           //The agents standing inside the tile.
+
+        private final AgentStore outgoing = new AgentStore(0);  //Agents that moved out of the tile in the last move.
+        private int[] destination = new int[0];                //The tile each outgoing agent moved into.
+        private SplittableRandom random;                        //Random stream of the agents of the tile.
+
+        Tile(int column, int row, int originX, int originY, int width, int height) {
+            this.column = column;
+            this.row = row;
+            this.originX = originX;
+            this.originY = originY;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * The work done on one tile.
+     */
+    private interface TileTask {
+        /**
+         * Run the task on a tile.
+         * @param worker The index of the worker running the task.
+         * @param tile The tile.
+         */
+        void run(int worker, Tile tile);
+    }
+
+    public static final int MIN_TILE_SIZE = 2 * Agent.BORDER_SIZE + 2;     //Small enough tiles could let a bounce skip a tile.
+
+    public final int width;             //Width of the world in pixels.
+    public final int height;            //Height of the world in pixels.
+    public final int tileSize;          //Width and height of a tile, the tiles on the right and bottom may be smaller.
+    public final int columns;           //Number of tiles across.
+    public final int rows;              //Number of tiles down.
+    public final Tile[] tiles;          //Every tile, row by row.
+    public final WorkerPool workers;    //The workers the tiles are handed to.
+    public final Spawner spawner;       //Fills the spawns before they are split between the tiles.
+    public int halo;                    //Pixels around every tile copied from its neighbours, set by the last spawn.
+
+    public boolean fastMath = GlobalSettings.FAST_MATH;    //Move the agents with the TrigTable instead of Math.sin and Math.cos.
+    public Telemetry telemetry;                             //Records how long each phase takes when not null.
+    public long migrations;                                 //Agents handed to another tile since the spawn.
+
+    private final long seed;
+    private Diffuser diffuser;                          //Sized to the padded tiles, made again when the halo changes.
+    private final Integer[] order;                      //Tiles in the order they are handed out, the busiest first.
+    private final int[] schedule;                       //The same order as plain indices, read by the workers.
+    private final AtomicInteger nextTile = new AtomicInteger();
+    private TileTask tileTask;
+    private final WorkerPool.RangeTask scheduleTask = this::runTiles;
+
+    /**
+     * Creates an empty world.
+     * @param width Width of the world in pixels.
+     * @param height Height of the world in pixels.
+     * @param tileSize Width and height of a tile, at least MIN_TILE_SIZE.
+     * @param workerCount Number of workers the tiles are handed to.
+     * @param seed Seed of every random stream in the world.
+     * @throws IllegalArgumentException If the world is smaller than Agent.MIN_SIZE or the tiles smaller than MIN_TILE_SIZE.
+     */
+    public TiledWorld(int width, int height, int tileSize, int workerCount, long seed) {
+        Agent.checkSize("The world", width, height);
+        if(tileSize < MIN_TILE_SIZE) throw new IllegalArgumentException("Tiles must be at least " + MIN_TILE_SIZE + " pixels, not " + tileSize);
+
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+        this.seed = seed;
+
+        tiles = new Tile[columns * rows];
+        for(int r = 0; r < rows; r++){
+            for(int c = 0; c < columns; c++){
+                int originX = c * tileSize, originY = r * tileSize;
+                tiles[r * columns + c] = new Tile(c, r, originX, originY, Math.min(tileSize, width - originX), Math.min(tileSize, height - originY));
+            }
+        }
+
+        order = new Integer[tiles.length];
+        schedule = new int[tiles.length];
+        for(int t = 0; t < tiles.length; t++) order[t] = t;
+
+        workers = new WorkerPool(workerCount, seed);
+        spawner = new Spawner(width, height, workerCount);
+    }
+
+    /**
+     * Spawn agents in a circle in the middle of the world and split them between the tiles, which are cleared.
+     * The halo is made wide enough for the sensors of every agent.
+     * @param totalAgents Total agents to be spawned, shared evenly between the species.
+     * @param spawnAreaSize Maximum distance of the spawn area.
+     * @param species The preset of each species, at most Simulation.MAX_SPECIES.
+     * @param weights The species weights, or null for a single species.
+     * @throws IllegalArgumentException If there are more species than Simulation.MAX_SPECIES.
+     */
+    public void spawn(int totalAgents, double spawnAreaSize, AgentPreset[] species, int[][] weights) {
+        Simulation.checkSpeciesCount(species.length);
+        int reach = 0;
+        for(AgentPreset preset : species){
+            if(preset.moveSpeed * GlobalSettings.DELTA_TIME >= tileSize - Agent.BORDER_SIZE){
+                throw new IllegalArgumentException(preset.name + " moves too far in a step for tiles of " + tileSize + " pixels");
+            }
+            reach = Math.max(reach, (int)Math.ceil(preset.sensorDistance) + preset.sensorSize);
+        }
+        //One more pixel for the truncation of the sensor position, and at least one for the diffusion.
+        setHalo(reach + 1);
+
+        AgentStore spawned;
+        try{
+            spawned = spawner.prepare(totalAgents, spawnAreaSize, species, weights, Simulation.spawnSeed(seed)).get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while spawning", e);
+        }catch(ExecutionException e){
+            throw new IllegalStateException("Spawning failed", e.getCause());
+        }
+
+        SplittableRandom source = new SplittableRandom(seed);
+        for(Tile tile : tiles){
+            tile.agents = new AgentStore(0);
+            tile.agents.speciesWeights = weights;
+            tile.random = source.split();
+            tile.trail.clear();
+        }
+        for(int i = 0; i < spawned.count; i++){
+            tileAt((int)spawned.x[i], (int)spawned.y[i]).agents.append(spawned, i);
+        }
+        migrations = 0;
+    }
+
+    /**
+     * Run a whole step: fill the halos, sense and move, diffuse, hand the agents that left their tile over, and deposit.
+     */
+    public void step() {
+        if(diffuser == null) throw new IllegalStateException("The world must be spawned before it steps");
+        scheduleBusiestFirst();
+
+        long start = System.nanoTime();
+        forEachTile(this::exchangeHalo);
+        forEachTile(this::senseAndMove);
+        if(telemetry != null) telemetry.record(Telemetry.Phase.SENSE_MOVE, start);
+
+        start = System.nanoTime();
+        diffuser.updateRates();
+        forEachTile(this::diffuse);
+        if(telemetry != null) telemetry.record(Telemetry.Phase.DIFFUSE, start);
+
+        start = System.nanoTime();
+        forEachTile(this::collectLeaving);
+        forEachTile(this::receiveArriving);
+        for(Tile tile : tiles) migrations += tile.outgoing.count;
+        forEachTile(this::deposit);
+        if(telemetry != null) telemetry.record(Telemetry.Phase.DEPOSIT, start);
+    }
+
+    /**
+     * Count the agents of every tile.
+     * @return The total number of agents in the world.
+     */
+    public long agentCount() {
+        long count = 0;
+        for(Tile tile : tiles){
+            if(tile.agents != null) count += tile.agents.count;
+        }
+        return count;
+    }
+
+    /**
+     * Get the tile a pixel of the world is in.
+     * @param x Position X in the world.
+     * @param y Position Y in the world.
+     * @return The tile.
+     */
+    public Tile tileAt(int x, int y) {
+        return tiles[(y / tileSize) * columns + x / tileSize];
+    }
+
+    /**
+     * Copy one row of the world out of the tiles.
+     * @param y The row.
+     * @param row The packed colors to write, at least the width of the world.
+     */
+    public void copyRow(int y, int[] row) {
+        copyRow(y, row, 0);
+    }
+
+    /**
+     * Copy one row of the world out of the tiles into part of an array.
+     * @param y The row.
+     * @param row The packed colors to write.
+     * @param offset Index the row starts at.
+     */
+    public void copyRow(int y, int[] row, int offset) {
+        int tileRow = y / tileSize;
+        for(int c = 0; c < columns; c++){
+            Tile tile = tiles[tileRow * columns + c];
+            System.arraycopy(tile.trail.color, (y - tile.originY + halo) * tile.trail.width + halo, row, offset + tile.originX, tile.width);
+        }
+    }
+
+    /**
+     * Convert the world to opaque pixels of another size, the way TrailMap.presentScaled does,
+     * without ever putting the whole world in one array.
+     * @param pixels The pixels to write.
+     * @param targetWidth Width of the image to write.
+     * @param targetHeight Height of the image to write.
+     */
+    public void presentScaled(int[] pixels, int targetWidth, int targetHeight) {
+        int[] rows = new int[0];
+        for(int ty = 0; ty < targetHeight; ty++){
+            int startY = (int)((long)ty * height / targetHeight);
+            int endY = Math.max(startY + 1, (int)((long)(ty + 1) * height / targetHeight));
+
+            //Only the rows of one target row are copied out of the tiles at a time.
+            if(rows.length < (endY - startY) * width) rows = new int[(endY - startY) * width];
+            for(int y = startY; y < endY; y++){
+                copyRow(y, rows, (y - startY) * width);
+            }
+            TrailMap.averageRows(rows, 0, width, endY - startY, pixels, ty * targetWidth, targetWidth);
+        }
+    }
+
+    /**
+     * Stop the workers of the world.
+     */
+    public void shutdown() {
+        spawner.shutdown();
+        workers.shutdown();
+    }
+
+    /**
+     * Give every tile a trail with a new halo, keeping the trails when the halo is the same.
+     * @param halo Pixels around every tile copied from its neighbours.
+     */
+    private void setHalo(int halo) {
+        if(diffuser != null && halo == this.halo) return;
+
+        this.halo = halo;
+        int padded = tileSize + 2 * halo;
+        diffuser = new Diffuser(padded, padded, workers, Kernels.create(GlobalSettings.SIMD));
+        for(Tile tile : tiles){
+            tile.trail = new TrailMap(padded, padded);
+        }
+    }
+
+    /**
+     * Hand the tiles out with the most agents first, so the longest tiles do not start last.
+     */
+    private void scheduleBusiestFirst() {
+        Arrays.sort(order, (a, b) -> Integer.compare(tiles[b].agents.count, tiles[a].agents.count));
+        for(int t = 0; t < order.length; t++) schedule[t] = order[t];
+    }
+
+    /**
+     * Run a task on every tile, each worker taking the next tile of the schedule until there is none left.
+     * @param task The task.
+     */
+    private void forEachTile(TileTask task) {
+        tileTask = task;
+        nextTile.set(0);
+        workers.parallelFor(Math.min(workers.size(), tiles.length), scheduleTask);
+        tileTask = null;
+    }
+
+    /**
+     * Take tiles from the schedule until it is empty.
+     * @param worker The worker taking the tiles.
+     * @param start Unused, the tiles are not split in advance.
+     * @param end Unused, the tiles are not split in advance.
+     */
+    private void runTiles(int worker, int start, int end) {
+        TileTask task = tileTask;
+        int next;
+        while((next = nextTile.getAndIncrement()) < schedule.length){
+            task.run(worker, tiles[schedule[next]]);
+        }
+    }
+
+    /**
+     * Fill the halo of a tile with the front buffers of the tiles around it, and with black outside of the world.
+     * Only reads the inside of the other tiles, which no task of this phase writes.
+     * @param worker The worker filling the halo.
+     * @param tile The tile.
+     */
+    private void exchangeHalo(int worker, Tile tile) {
+        TrailMap trail = tile.trail;
+        int padded = trail.width;
+        int left = tile.originX - halo;
+        int top = tile.originY - halo;
+
+        for(int ly = 0; ly < padded; ly++){
+            int y = top + ly;
+            int offset = ly * padded;
+            boolean insideRows = ly >= halo && ly < halo + tile.height;
+
+            if(y < 0 || y >= height){
+                trail.clear(offset, offset + padded);
+                continue;
+            }
+
+            //Rows inside the tile only need the columns on either side, the others need the whole row.
+            int lx = 0;
+            while(lx < padded){
+                if(insideRows && lx == halo){
+                    lx = halo + tile.width;
+                    continue;
+                }
+
+                int x = left + lx;
+                int runEnd = insideRows && lx < halo ? halo : padded;
+                if(x < 0){
+                    int blackEnd = Math.min(runEnd, -left);
+                    trail.clear(offset + lx, offset + blackEnd);
+                    lx = blackEnd;
+                    continue;
+                }
+                if(x >= width){
+                    trail.clear(offset + lx, offset + runEnd);
+                    lx = runEnd;
+                    continue;
+                }
+
+                //Copy up to the end of the tile the pixel belongs to.
+                Tile owner = tileAt(x, y);
+                int length = Math.min(runEnd - lx, owner.originX + owner.width - x);
+                int from = (y - owner.originY + halo) * owner.trail.width + (x - owner.originX + halo);
+                System.arraycopy(owner.trail.color, from, trail.color, offset + lx, length);
+                System.arraycopy(owner.trail.intensity, from, trail.intensity, offset + lx, length);
+                lx += length;
+            }
+        }
+    }
+
+    /**
+     * Sense, steer and move the agents of a tile. Agents may end up outside of the tile.
+     * @param worker The worker moving the agents.
+     * @param tile The tile.
+     */
+    private void senseAndMove(int worker, Tile tile) {
+        AgentStore agents = tile.agents;
+        TrailMap trail = tile.trail;
+        SplittableRandom random = tile.random;
+        double originX = tile.originX - halo;
+        double originY = tile.originY - halo;
+        double moveTime = GlobalSettings.DELTA_TIME;
+
+        for(int i = 0; i < agents.count; i++){
+            double angle = agents.angle[i];
+            double headingX = fastMath ? TrigTable.cos(angle) : Math.cos(angle);
+            double headingY = fastMath ? TrigTable.sin(angle) : Math.sin(angle);
+            double moveDistance = agents.moveSpeed[i] * moveTime;
+
+            Agent.tickIn(agents, i, trail, originX, originY, width, height, random.nextDouble(),
+                headingX, headingY, agents.x[i] + headingX * moveDistance, agents.y[i] + headingY * moveDistance);
+        }
+    }
+
+    /**
+     * Diffuse the inside of a tile into its back buffer and swap its buffers. The halo of the back buffer is left as it is,
+     * it is filled again before it is read.
+     * @param worker The worker diffusing the tile.
+     * @param tile The tile.
+     */
+    private void diffuse(int worker, Tile tile) {
+        diffuser.diffuseRows(tile.trail, worker, halo, halo + tile.height);
+        tile.trail.swap();
+    }
+
+    /**
+     * Move the agents that left a tile to its outgoing store.
+     * The last agent takes the place of each agent that leaves, so the store stays packed.
+     * @param worker The worker collecting the agents.
+     * @param tile The tile.
+     */
+    private void collectLeaving(int worker, Tile tile) {
+        AgentStore agents = tile.agents;
+        AgentStore outgoing = tile.outgoing;
+        outgoing.count = 0;
+
+        int i = 0;
+        while(i < agents.count){
+            int x = (int)agents.x[i], y = (int)agents.y[i];
+            if(x >= tile.originX && x < tile.originX + tile.width && y >= tile.originY && y < tile.originY + tile.height){
+                i++;
+                continue;
+            }
+
+            if(tile.destination.length <= outgoing.count) tile.destination = Arrays.copyOf(tile.destination, Math.max(16, outgoing.count * 2));
+            tile.destination[outgoing.count] = (y / tileSize) * columns + x / tileSize;
+            outgoing.append(agents, i);
+            agents.copy(i, agents, --agents.count);
+        }
+    }
+
+    /**
+     * Take the agents that moved into a tile from the outgoing stores of the tiles around it.
+     * An agent never moves further than the next tile in a step, so only the eight neighbours are read.
+     * @param worker The worker taking the agents.
+     * @param tile The tile.
+     */
+    private void receiveArriving(int worker, Tile tile) {
+        int self = tile.row * columns + tile.column;
+        for(int r = Math.max(0, tile.row - 1); r <= Math.min(rows - 1, tile.row + 1); r++){
+            for(int c = Math.max(0, tile.column - 1); c <= Math.min(columns - 1, tile.column + 1); c++){
+                Tile neighbour = tiles[r * columns + c];
+                if(neighbour == tile) continue;
+
+                AgentStore outgoing = neighbour.outgoing;
+                for(int k = 0; k < outgoing.count; k++){
+                    if(neighbour.destination[k] == self) tile.agents.append(outgoing, k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deposit the agents of a tile on its front buffer. Every agent stands inside the tile after the hand over.
+     * @param worker The worker depositing the agents.
+     * @param tile The tile.
+     */
+    private void deposit(int worker, Tile tile) {
+        AgentStore agents = tile.agents;
+        TrailMap trail = tile.trail;
+        int left = tile.originX - halo;
+        int top = tile.originY - halo;
+
+        for(int i = 0; i < agents.count; i++){
+            trail.deposit((int)agents.x[i] - left, (int)agents.y[i] - top, agents.color[i]);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package Microbiome;
+
+import java.util.Arrays;
+
+/**
+ * The trail left by the agents, kept apart from the pixels of the window.
+ * Each pixel stores its color with one 8 bit lane per channel, [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB],
+ * and an intensity plane stores R + G + B of the same pixel so sensing is a single read.
+ * Both planes are double buffered so diffusion can read the front and write the back.
+ */
+public class TrailMap {
+
+    //The int value of color is represented as XRGB
+    //which is constructed in [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB]
+    private static final int B_MASK = 255;       //[0000 0000 0000 0000 0000 0000 1111 1111]
+    private static final int G_MASK = 255<<8;    //[0000 0000 0000 0000 1111 1111 0000 0000]
+    private static final int R_MASK = 255<<16;   //[0000 0000 1111 1111 0000 0000 0000 0000]
+
+    public final int width;             //Width of the trail in pixels.
+    public final int height;            //Height of the trail in pixels.
+
+    public int[] color;                 //Color of each pixel in the front buffer.
+    public short[] intensity;           //R + G + B of each pixel in the front buffer.
+
+    public int[] backColor;             //Color of each pixel in the back buffer.
+    public short[] backIntensity;       //R + G + B of each pixel in the back buffer.
+
+    public SummedAreaTable summedArea;  //Sums of the front buffer the sensors read instead of the pixels, null when they read the pixels.
+
+    /**
+     * Creates an empty black trail.
+     * @param width Width of the trail in pixels.
+     * @param height Height of the trail in pixels.
+     */
+    public TrailMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        color = new int[width * height];
+        intensity = new short[width * height];
+        backColor = new int[width * height];
+        backIntensity = new short[width * height];
+    }
+
+    /**
+     * Get the number of pixels in the trail.
+     * @return Width times height.
+     */
+    public int size() {
+        return color.length;
+    }
+
+    /**
+     * Set every pixel of the front buffer to black.
+     */
+    public void clear() {
+        clear(0, color.length);
+    }
+
+    /**
+     * Set a range of pixels of the front buffer to black, so the trail can be cleared in parts.
+     * @param start The first pixel of the range.
+     * @param end The pixel after the last pixel of the range.
+     */
+    public void clear(int start, int end) {
+        Arrays.fill(color, start, end, 0);
+        Arrays.fill(intensity, start, end, (short)0);
+    }
+
+    /**
+     * Swap the front and back buffers, after the back buffer has been fully written.
+     */
+    public void swap() {
+        int[] swapColor = color;
+        color = backColor;
+        backColor = swapColor;
+
+        short[] swapIntensity = intensity;
+        intensity = backIntensity;
+        backIntensity = swapIntensity;
+    }
+
+    /**
+     * Add a color to a pixel of the front buffer, each channel saturates at 255.
+     * @param x Position X.
+     * @param y Position Y.
+     * @param rgb The color to add as [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB].
+     */
+    public void deposit(int x, int y, int rgb) {
+        int pos = y * width + x;
+        int finalColor = PackedColor.addSaturate(color[pos], rgb);
+
+        color[pos] = finalColor;
+        intensity[pos] = (short)PackedColor.sum(finalColor);
+    }
+
+    /**
+     * Fill a rectangle of the front buffer with a color. Parts outside of the trail are ignored.
+     * @param x Left of the rectangle.
+     * @param y Top of the rectangle.
+     * @param w Width of the rectangle.
+     * @param h Height of the rectangle.
+     * @param rgb The color as [0000 0000 RRRR RRRR GGGG GGGG BBBB BBBB].
+     */
+    public void fillRect(int x, int y, int w, int h, int rgb) {
+        int startX = Math.max(0, x), endX = Math.min(width, x + w);
+        int startY = Math.max(0, y), endY = Math.min(height, y + h);
+        short sum = (short)sumRGB(rgb);
+
+        for(int row = startY; row < endY; row++){
+            for(int col = startX; col < endX; col++){
+                color[row * width + col] = rgb & 0xFFFFFF;
+                intensity[row * width + col] = sum;
+            }
+        }
+    }
+
+    /**
+     * Blend white into the front buffer using the alpha of an image of the same size,
+     * so text or shapes drawn offscreen become part of the trail.
+     * @param argb The pixels of the image, only the alpha channel is used.
+     */
+    public void stamp(int[] argb) {
+        for(int pos = 0; pos < color.length; pos++){
+            int alpha = argb[pos] >>> 24;
+            if(alpha == 0) continue;
+
+            int original = color[pos];
+            int r = (original & R_MASK)>>16;
+            int g = (original & G_MASK)>>8;
+            int b = original & B_MASK;
+
+            r += (255 - r) * alpha / 255;
+            g += (255 - g) * alpha / 255;
+            b += (255 - b) * alpha / 255;
+
+            color[pos] = (r << 16) | (g << 8) | b;
+            intensity[pos] = (short)(r + g + b);
+        }
+    }
+
+    /**
+     * Convert the front buffer to opaque pixels that can be shown.
+     * @param pixels The pixels to write, must be the same size as the trail.
+     */
+    public void present(int[] pixels) {
+        int[] color = this.color;
+        for(int pos = 0; pos < color.length; pos++){
+            pixels[pos] = 0xFF000000 | color[pos];
+        }
+    }
+
+    /**
+     * Convert the front buffer to opaque pixels of another size.
+     * Each pixel of a smaller image is the average of the trail pixels it covers, and a larger image repeats the nearest trail pixel.
+     * @param pixels The pixels to write.
+     * @param targetWidth Width of the image to write.
+     * @param targetHeight Height of the image to write.
+     */
+    public void presentScaled(int[] pixels, int targetWidth, int targetHeight) {
+        if(targetWidth == width && targetHeight == height){
+            present(pixels);
+            return;
+        }
+
+        for(int ty = 0; ty < targetHeight; ty++){
+            int startY = (int)((long)ty * height / targetHeight);
+            int endY = Math.max(startY + 1, (int)((long)(ty + 1) * height / targetHeight));
+            averageRows(color, startY * width, width, endY - startY, pixels, ty * targetWidth, targetWidth);
+        }
+    }
+
+    /**
+     * Average some rows of packed colors into one row of opaque pixels of another width.
+     * Each pixel written is the average of the pixels it covers, and a wider row repeats the nearest pixel.
+     * @param source Rows of packed colors, one after the other.
+     * @param offset Index of the first pixel of the first row.
+     * @param sourceWidth Width of the rows.
+     * @param rows Number of rows averaged, at least 1.
+     * @param target The pixels to write.
+     * @param targetOffset Index of the first pixel to write.
+     * @param targetWidth Number of pixels to write.
+     */
+    public static void averageRows(int[] source, int offset, int sourceWidth, int rows, int[] target, int targetOffset, int targetWidth) {
+        for(int tx = 0; tx < targetWidth; tx++){
+            int startX = (int)((long)tx * sourceWidth / targetWidth);
+            int endX = Math.max(startX + 1, (int)((long)(tx + 1) * sourceWidth / targetWidth));
+
+            int r = 0, g = 0, b = 0;
+            for(int y = 0; y < rows; y++){
+                int rowOffset = offset + y * sourceWidth;
+                for(int x = startX; x < endX; x++){
+                    int sample = source[rowOffset + x];
+                    r += (sample & R_MASK)>>16;
+                    g += (sample & G_MASK)>>8;
+                    b += sample & B_MASK;
+                }
+            }
+
+            int area = rows * (endX - startX);
+            target[targetOffset + tx] = 0xFF000000 | ((r / area) << 16) | ((g / area) << 8) | (b / area);
+        }
+    }
+
+    /**
+     * Convert a position on an image of another size to the trail pixel under it.
+     * @param position The position on the image.
+     * @param imageSize The width or height of the image.
+     * @param trailSize The width or height of the trail.
+     * @return The position on the trail.
+     */
+    public static int scale(int position, int imageSize, int trailSize) {
+        return (int)((long)position * trailSize / imageSize);
+    }
+
+    /**
+     * Sum the RGB values.
+     * @param sample The color int.
+     * @return The sum of RGB.
+     */
+    public static int sumRGB(int sample){
+        return PackedColor.sum(sample);
+    }
+}
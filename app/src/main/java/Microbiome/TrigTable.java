@@ -0,0 +1,54 @@
+package Microbiome;
+
+/**
+ * Precomputed sine and cosine of angles quantized to a fixed number of steps around the circle.
+ * Used by the fast math path of the agents instead of Math.sin and Math.cos.
+ */
+public final class TrigTable {
+
+    public static final int STEPS = 1 << 14;                        //Number of angles around the circle.
+    public static final double MAX_ERROR = Math.PI / STEPS;         //Largest difference from the exact angle, in radian.
+
+    private static final int MASK = STEPS - 1;
+    private static final double STEPS_PER_RADIAN = STEPS / (2 * Math.PI);
+
+    private static final double[] SIN = new double[STEPS];
+    private static final double[] COS = new double[STEPS];
+
+    static {
+        for(int step = 0; step < STEPS; step++){
+            double angle = step / STEPS_PER_RADIAN;
+            SIN[step] = Math.sin(angle);
+            COS[step] = Math.cos(angle);
+        }
+    }
+
+    private TrigTable() {}
+
+    /**
+     * Quantize an angle to its index in the table.
+     * @param angle The angle in radian, any value.
+     * @return The index of the nearest step.
+     */
+    public static int index(double angle) {
+        return (int)Math.round(angle * STEPS_PER_RADIAN) & MASK;
+    }
+
+    /**
+     * Get the sine of an angle from the table.
+     * @param angle The angle in radian.
+     * @return The sine of the nearest step.
+     */
+    public static double sin(double angle) {
+        return SIN[index(angle)];
+    }
+
+    /**
+     * Get the cosine of an angle from the table.
+     * @param angle The angle in radian.
+     * @return The cosine of the nearest step.
+     */
+    public static double cos(double angle) {
+        return COS[index(angle)];
+    }
+}
@@ -0,0 +1,81 @@
+package Microbiome;
+
+import processing.core.PApplet;
+import processing.core.PGraphics;
+
+/**
+ * A part of the screen holding some TextObjects, drawn into an offscreen layer and copied to the screen every frame.
+ * <p>
+ * Rasterizing text is slow, and the texts of the UI change only when a preset is switched. So the layer only draws its
+ * texts again when one of them is dirty, and the frames in between only copy the finished layer.
+ */
+public class UiLayer {
+
+    public final int x;                 //Position X of the layer on the screen.
+    public final int y;                 //Position Y of the layer on the screen.
+    public final PGraphics graphics;    //The layer the texts are drawn into.
+    public long redraws;                //Times the texts were drawn into the layer.
+
+    private final TextObject[] texts;   //The texts, positioned on the screen.
+    private final int background;       //Color the layer is filled with as 0xAARRGGBB, 0 to leave it transparent.
+    private boolean drawn;              //True once the texts were drawn into the layer.
+
+    /**
+     * Creates a layer for some texts.
+     * @param app The main program.
+     * @param x Position X of the layer on the screen.
+     * @param y Position Y of the layer on the screen.
+     * @param width Width of the layer.
+     * @param height Height of the layer, the texts must fit in it.
+     * @param background Color the layer is filled with as 0xAARRGGBB, 0 to leave it transparent.
+     * @param texts The texts, positioned on the screen.
+     */
+    public UiLayer(PApplet app, int x, int y, int width, int height, int background, TextObject... texts) {
+        this.x = x;
+        this.y = y;
+        this.graphics = app.createGraphics(width, height);
+        this.background = background;
+        this.texts = texts;
+    }
+
+    /**
+     * Draw the texts into the layer if one of them changed, then copy the layer to the screen.
+     * @param app The main program.
+     */
+    public void draw(PApplet app) {
+        if(isDirty()) redraw();
+        app.image(graphics, x, y);
+    }
+
+    /**
+     * Tell if the layer has to be drawn again before it is copied.
+     * @return True if it was never drawn or one of its texts changed.
+     */
+    public boolean isDirty() {
+        if(!drawn) return true;
+        for(TextObject text : texts){
+            if(text.isDirty()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Draw every text into the layer, at its position on the screen.
+     */
+    private void redraw() {
+        graphics.beginDraw();
+        if(background == 0) graphics.clear();
+        else graphics.background(background);
+
+        graphics.pushMatrix();
+        graphics.translate(-x, -y);
+        for(TextObject text : texts){
+            text.draw(graphics);
+        }
+        graphics.popMatrix();
+        graphics.endDraw();
+
+        drawn = true;
+        redraws++;
+    }
+}
@@ -0,0 +1,146 @@
+package Microbiome;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A fixed set of workers that split a range of indices between them.
+ * Each worker owns its own random stream, so no worker has to contend on a shared Random.
+ */
+public class WorkerPool {
+
+    /**
+     * The work done by one worker on its part of the range.
+     */
+    public interface RangeTask {
+        /**
+         * Run the task on a part of the range.
+         * @param worker The index of the worker running this part.
+         * @param start The first index of the part, inclusive.
+         * @param end The last index of the part, exclusive.
+         */
+        void run(int worker, int start, int end);
+    }
+
+    private final ForkJoinPool pool;            //The threads doing the work.
+    private final Slice[] slices;               //The task of each worker in the current run.
+    private final SplittableRandom[] randoms;   //One random stream for each worker.
+
+    /**
+     * Creates the workers.
+     * @param workers The number of workers.
+     * @param seed The seed that all the random streams of the workers are split from.
+     */
+    public WorkerPool(int workers, long seed) {
+        workers = Math.max(1, workers);
+        pool = new ForkJoinPool(workers);
+        slices = new Slice[workers];
+        randoms = new SplittableRandom[workers];
+        reseed(seed);
+    }
+
+    /**
+     * Get the number of workers.
+     * @return The number of workers.
+     */
+    public int size() {
+        return slices.length;
+    }
+
+    /**
+     * Get the random stream owned by a worker. Only that worker may use it while a task is running.
+     * @param worker The index of the worker.
+     * @return The random stream of the worker.
+     */
+    public SplittableRandom random(int worker) {
+        return randoms[worker];
+    }
+
+    /**
+     * Restart the random streams of all workers from a seed.
+     * @param seed The seed that all the random streams of the workers are split from.
+     */
+    public void reseed(long seed) {
+        SplittableRandom source = new SplittableRandom(seed);
+        for(int w = 0; w < randoms.length; w++){
+            randoms[w] = source.split();
+        }
+    }
+
+    /**
+     * Split the range [0, count) into one contiguous part for each worker and run them all.
+     * Worker w always gets the same part for the same count, so the result is repeatable.
+     * Returns after every part is finished.
+     * @param count The size of the range.
+     * @param task The task to run on each part.
+     */
+    public synchronized void parallelFor(int count, RangeTask task) {
+        if(count <= 0) return;
+
+        int workers = Math.min(slices.length, count);
+        if(workers == 1){
+            task.run(0, 0, count);
+            return;
+        }
+
+        //The tasks are made fresh for every run. Reinitializing finished tasks is not safe,
+        //the thread that finished one may still be waking its waiters when it is forked again.
+        for(int w = 0; w < workers; w++){
+            slices[w] = new Slice(w, task, (int)((long)count * w / workers), (int)((long)count * (w + 1) / workers));
+        }
+
+        pool.invoke(new Root(workers));
+    }
+
+    /**
+     * Stop the threads of the workers.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Forks every slice but the first, runs the first on the current thread and waits for the rest.
+     */
+    private class Root extends RecursiveAction {
+        final int workers;
+
+        Root(int workers) {
+            this.workers = workers;
+        }
+
+        @Override
+        protected void compute() {
+            for(int w = 1; w < workers; w++){
+                slices[w].fork();
+            }
+            slices[0].task.run(0, slices[0].start, slices[0].end);
+            for(int w = workers - 1; w >= 1; w--){
+                slices[w].join();
+            }
+        }
+    }
+
+    /**
+     * The part of the range given to one worker.
+     */
+    private static class Slice extends RecursiveAction {
+        final int worker;
+        final RangeTask task;
+        final int start;
+        final int end;
+
+        Slice(int worker, RangeTask task, int start, int end) {
+            this.worker = worker;
+            this.task = task;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            task.run(worker, start, end);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package Microbiome;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import Microbiome.AgentPresets.AgentPreset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that a restored simulation repeats the saved one step for step, and that a damaged file is refused
+ * without changing the simulation.
+ */
+class CheckpointTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    //Positions of fields in the header of a checkpoint.
+    private static final int COUNT = 16;
+    private static final int COLOR_R = 68;
+    private static final int NAME_LENGTH = 124;
+
+    @Test
+    void restoredRunMatchesSavedRun() throws IOException {
+        File file = temporaryFile();
+        Simulation saved = spawned(1);
+        Simulation restored = spawned(2);
+        try{
+            run(saved, 10);
+            Checkpoint.save(saved, file);
+            Checkpoint.restore(restored, file);
+            assertEquals(saved.preset.name, restored.preset.name);
+
+            run(saved, 10);
+            run(restored, 10);
+            assertEquals(saved.agents.count, restored.agents.count);
+            assertArrayEquals(saved.trail.color, restored.trail.color);
+            assertArrayEquals(Arrays.copyOf(saved.agents.x, saved.agents.count), Arrays.copyOf(restored.agents.x, restored.agents.count));
+            assertArrayEquals(Arrays.copyOf(saved.agents.angle, saved.agents.count), Arrays.copyOf(restored.agents.angle, restored.agents.count));
+        }finally{
+            saved.shutdown();
+            restored.shutdown();
+        }
+    }
+
+    @Test
+    void damagedHeaderLeavesSimulationAlone() throws IOException {
+        File file = temporaryFile();
+        Simulation simulation = spawned(1);
+        try{
+            run(simulation, 5);
+            Checkpoint.save(simulation, file);
+            AgentStore agents = simulation.agents;
+            int count = agents.count;
+            int[] trail = simulation.trail.color.clone();
+
+            for(int[] damage : new int[][]{ { NAME_LENGTH, -1 }, { NAME_LENGTH, 65 }, { COUNT, -5 }, { COLOR_R, 300 }, { COLOR_R, -1 } }){
+                File damaged = temporaryFile();
+                copyWithInt(file, damaged, damage[0], damage[1]);
+                assertThrows(IOException.class, () -> Checkpoint.restore(simulation, damaged));
+
+                assertSame(agents, simulation.agents);
+                assertEquals(count, simulation.agents.count);
+                assertArrayEquals(trail, simulation.trail.color);
+            }
+        }finally{
+            simulation.shutdown();
+        }
+    }
+
+    private static Simulation spawned(long seed) {
+        Simulation simulation = new Simulation(WIDTH, HEIGHT, 2, seed);
+        simulation.spawn(2000, 40, AgentPreset.createAll()[0]);
+        return simulation;
+    }
+
+    private static void run(Simulation simulation, int steps) {
+        for(int step = 0; step < steps; step++) simulation.step();
+    }
+
+    private static File temporaryFile() throws IOException {
+        File file = File.createTempFile("microbiome", ".checkpoint");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void copyWithInt(File source, File target, int position, int value) throws IOException {
+        byte[] bytes = Files.readAllBytes(source.toPath());
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).putInt(position, value);
+        try(RandomAccessFile file = new RandomAccessFile(target, "rw")){
+            file.setLength(0);
+            file.write(bytes);
+        }
+    }
+}
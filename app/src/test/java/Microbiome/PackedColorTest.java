@@ -0,0 +1,166 @@
+package Microbiome;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the packed color arithmetic against the same math done on each channel on its own,
+ * the way the trail was blended with color() and lerpColor() before.
+ */
+class PackedColorTest {
+
+    private static final int SAMPLES = 100_000;
+
+    private final SplittableRandom random = new SplittableRandom(42);
+
+    @Test
+    void addSaturateMatchesChannels() {
+        for(int i = 0; i < SAMPLES; i++){
+            int a = randomColor(), b = randomColor();
+            int expected = pack(Math.min(255, red(a) + red(b)), Math.min(255, green(a) + green(b)), Math.min(255, blue(a) + blue(b)));
+            assertChannelsNear(expected, PackedColor.addSaturate(a, b), a, b);
+        }
+    }
+
+    @Test
+    void darkenMatchesChannels() {
+        for(int i = 0; i < SAMPLES; i++){
+            int color = randomColor(), amount = random.nextInt(256);
+            int expected = pack(Math.max(0, red(color) - amount), Math.max(0, green(color) - amount), Math.max(0, blue(color) - amount));
+            assertChannelsNear(expected, PackedColor.darken(color, amount), color, amount);
+        }
+    }
+
+    @Test
+    void averageMatchesChannels() {
+        for(int i = 0; i < SAMPLES; i++){
+            int a = randomColor(), b = randomColor();
+            int expected = pack((red(a) + red(b)) / 2, (green(a) + green(b)) / 2, (blue(a) + blue(b)) / 2);
+            assertChannelsNear(expected, PackedColor.average(a, b), a, b);
+        }
+    }
+
+    @Test
+    void lerpMatchesChannels() {
+        for(int i = 0; i < SAMPLES; i++){
+            int from = randomColor(), to = randomColor(), fraction = random.nextInt(65537);
+            float amount = fraction / 65536f;
+            int expected = pack(lerp(red(from), red(to), amount), lerp(green(from), green(to), amount), lerp(blue(from), blue(to), amount));
+            assertChannelsNear(expected, PackedColor.lerp(from, to, fraction), from, to);
+        }
+    }
+
+    @Test
+    void lerpReachesTheEnds() {
+        for(int i = 0; i < SAMPLES; i++){
+            int from = randomColor(), to = randomColor();
+            assertEquals(from, PackedColor.lerp(from, to, 0));
+            assertEquals(to, PackedColor.lerp(from, to, 65536));
+        }
+    }
+
+    @Test
+    void sumMatchesChannels() {
+        for(int i = 0; i < SAMPLES; i++){
+            int color = randomColor();
+            assertEquals(red(color) + green(color) + blue(color), PackedColor.sum(color));
+        }
+    }
+
+    @Test
+    void averageOfNineMatchesChannels() {
+        for(int i = 0; i < SAMPLES; i++){
+            int r = 0, g = 0, b = 0;
+            long sums = 0;
+            for(int n = 0; n < 9; n++){
+                int color = randomColor();
+                r += red(color);
+                g += green(color);
+                b += blue(color);
+                sums += PackedColor.widen(color);
+            }
+            assertEquals(pack(r / 9, g / 9, b / 9), PackedColor.averageOfNine(sums));
+        }
+    }
+
+    @Test
+    void packedDiffusionMatchesPlanar() {
+        WorkerPool workers = new WorkerPool(2, 1);
+        Diffuser packed = new Diffuser(97, 61, workers, new ScalarKernels());
+        Diffuser planar = new Diffuser(97, 61, workers, new PlanarKernels());
+
+        //The packed path is only taken when the fixed point lerp rounds like lerpSteps, which it does for both speeds.
+        for(float diffuseSpeed : new float[] { 0.5f * GlobalSettings.FRAME_RATE, 10f }){
+            packed.diffuseSpeed = diffuseSpeed;
+            planar.diffuseSpeed = diffuseSpeed;
+            TrailMap packedTrail = randomTrail(97, 61);
+            TrailMap planarTrail = randomTrail(97, 61);
+            assertArrayEquals(packedTrail.color, planarTrail.color);
+
+            for(int step = 0; step < 20; step++){
+                packed.diffuse(packedTrail);
+                planar.diffuse(planarTrail);
+                assertArrayEquals(planarTrail.color, packedTrail.color, "color after step " + step);
+                assertArrayEquals(planarTrail.intensity, packedTrail.intensity, "intensity after step " + step);
+            }
+        }
+    }
+
+    /**
+     * The scalar kernels posing as the vector backend, so the diffuser takes the planar path.
+     */
+    private static class PlanarKernels extends ScalarKernels {
+        @Override
+        public boolean isVector() {
+            return true;
+        }
+    }
+
+    private TrailMap randomTrail(int width, int height) {
+        SplittableRandom trailRandom = new SplittableRandom(7);
+        TrailMap trail = new TrailMap(width, height);
+        for(int i = 0; i < trail.color.length; i++){
+            int color = trailRandom.nextInt(0x1000000);
+            trail.color[i] = color;
+            trail.intensity[i] = (short)PackedColor.sum(color);
+        }
+        return trail;
+    }
+
+    private int randomColor() {
+        return random.nextInt(0x1000000);
+    }
+
+    private static void assertChannelsNear(int expected, int actual, int a, int b) {
+        String inputs = String.format("%06X, %06X: expected %06X, got %06X", a, b, expected, actual);
+        assertEquals(0, actual & 0xFF000000, inputs);
+        assertTrue(Math.abs(red(expected) - red(actual)) <= 1, inputs);
+        assertTrue(Math.abs(green(expected) - green(actual)) <= 1, inputs);
+        assertTrue(Math.abs(blue(expected) - blue(actual)) <= 1, inputs);
+    }
+
+    private static int lerp(int from, int to, float amount) {
+        return (int)(from + (to - from) * amount);
+    }
+
+    private static int red(int color) {
+        return (color >> 16) & 0xFF;
+    }
+
+    private static int green(int color) {
+        return (color >> 8) & 0xFF;
+    }
+
+    private static int blue(int color) {
+        return color & 0xFF;
+    }
+
+    private static int pack(int r, int g, int b) {
+        return (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,118 @@
+package Microbiome;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels written on jdk.incubator.vector, using the widest lanes the CPU prefers.
+ * Each loop runs as many full vectors as fit in the row and leaves the rest to the scalar kernels.
+ * Loaded by name from Kernels.create, so it is only touched when the module is available.
+ */
+public class VectorKernels extends ScalarKernels {
+
+    private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORT = VectorSpecies.of(short.class, VectorShape.forBitSize(INT.vectorBitSize() / 2));
+    private static final VectorSpecies<Double> DOUBLE = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public boolean isVector() {
+        return true;
+    }
+
+    @Override
+    public void unpackRow(int[] source, int offset, int width, int[] channels) {
+        int planeR = 1, planeG = width + 3, planeB = 2 * width + 5;
+        int bound = INT.loopBound(width);
+
+        for(int x = 0; x < bound; x += INT.length()){
+            IntVector sample = IntVector.fromArray(INT, source, offset + x);
+            sample.lanewise(VectorOperators.LSHR, 16).and(255).intoArray(channels, planeR + x);
+            sample.lanewise(VectorOperators.LSHR, 8).and(255).intoArray(channels, planeG + x);
+            sample.and(255).intoArray(channels, planeB + x);
+        }
+        unpackRange(source, offset, width, channels, bound, width);
+    }
+
+    @Override
+    public void sumRow(int[] channels, int width, int[] sums) {
+        int bound = INT.loopBound(width);
+
+        for(int c = 0; c < 3; c++){
+            int plane = c * (width + 2);
+            int sumPlane = c * width;
+            for(int x = 0; x < bound; x += INT.length()){
+                IntVector left = IntVector.fromArray(INT, channels, plane + x);
+                IntVector middle = IntVector.fromArray(INT, channels, plane + x + 1);
+                IntVector right = IntVector.fromArray(INT, channels, plane + x + 2);
+                left.add(middle).add(right).intoArray(sums, sumPlane + x);
+            }
+        }
+        sumRange(channels, width, sums, bound, width);
+    }
+
+    @Override
+    public void blendRow(int[] above, int[] middle, int[] below, int[] channels, int width, int darkenDelta,
+        int[] lerpSteps, int lerpFixed, int[] target, short[] targetIntensity, int offset) {
+
+        //Fixed point only rounds like the lerp table for some amounts, use the table for the rest.
+        if(lerpFixed < 0){
+            super.blendRow(above, middle, below, channels, width, darkenDelta, lerpSteps, lerpFixed, target, targetIntensity, offset);
+            return;
+        }
+
+        int planeR = 1, planeG = width + 3, planeB = 2 * width + 5;
+        int bound = INT.loopBound(width);
+
+        for(int x = 0; x < bound; x += INT.length()){
+            IntVector r = blendChannel(above, middle, below, channels, x, planeR + x, darkenDelta, lerpFixed);
+            IntVector g = blendChannel(above, middle, below, channels, width + x, planeG + x, darkenDelta, lerpFixed);
+            IntVector b = blendChannel(above, middle, below, channels, 2 * width + x, planeB + x, darkenDelta, lerpFixed);
+
+            r.lanewise(VectorOperators.LSHL, 16).or(g.lanewise(VectorOperators.LSHL, 8)).or(b).intoArray(target, offset + x);
+            ((ShortVector)r.add(g).add(b).convertShape(VectorOperators.I2S, SHORT, 0)).intoArray(targetIntensity, offset + x);
+        }
+        blendRange(above, middle, below, channels, width, darkenDelta, lerpSteps, target, targetIntensity, offset, bound, width);
+    }
+
+    /**
+     * Blend one channel of a vector of pixels.
+     * @param sum The index of the pixels in the sum rows.
+     * @param channel The index of the pixels in the channel planes.
+     * @return The new value of the channel of each pixel.
+     */
+    private static IntVector blendChannel(int[] above, int[] middle, int[] below, int[] channels, int sum, int channel, int darkenDelta, int lerpFixed) {
+        IntVector box = IntVector.fromArray(INT, above, sum)
+            .add(IntVector.fromArray(INT, middle, sum))
+            .add(IntVector.fromArray(INT, below, sum));
+
+        //(sum * 7282) >> 16 is sum / 9 for every sum of nine 8 bit values.
+        IntVector average = box.mul(7282).lanewise(VectorOperators.ASHR, 16).sub(darkenDelta).max(0);
+
+        IntVector current = IntVector.fromArray(INT, channels, channel);
+        IntVector step = average.sub(current).mul(lerpFixed).add(32768).lanewise(VectorOperators.ASHR, 16);
+        return current.add(step);
+    }
+
+    @Override
+    public void integrate(AgentStore agents, int start, int count, double[] headingX, double[] headingY, double[] newX, double[] newY) {
+        int bound = DOUBLE.loopBound(count);
+
+        for(int k = 0; k < bound; k += DOUBLE.length()){
+            int i = start + k;
+            DoubleVector angle = DoubleVector.fromArray(DOUBLE, agents.angle, i);
+            DoubleVector moveDistance = DoubleVector.fromArray(DOUBLE, agents.moveSpeed, i).mul(GlobalSettings.DELTA_TIME);
+
+            DoubleVector cos = angle.lanewise(VectorOperators.COS);
+            DoubleVector sin = angle.lanewise(VectorOperators.SIN);
+            cos.intoArray(headingX, k);
+            sin.intoArray(headingY, k);
+            DoubleVector.fromArray(DOUBLE, agents.x, i).add(cos.mul(moveDistance)).intoArray(newX, k);
+            DoubleVector.fromArray(DOUBLE, agents.y, i).add(sin.mul(moveDistance)).intoArray(newY, k);
+        }
+        integrateRange(agents, start, headingX, headingY, newX, newY, bound, count);
+    }
+}
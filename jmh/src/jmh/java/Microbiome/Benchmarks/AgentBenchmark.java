@@ -0,0 +1,96 @@
+package Microbiome.Benchmarks;
+
+import Microbiome.Agent;
+import Microbiome.AgentStore;
+import Microbiome.Simulation;
+import Microbiome.SummedAreaTable;
+import Microbiome.TrailMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks Agent.tick, Agent.sense and Agent.draw over every agent, on a single thread.
+ * One operation is one pass over all the agents. senseSummedArea builds the summed area table and senses through it,
+ * to compare with sense for each sensor size.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AgentBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int agentCount;
+
+    @Param({"700x500", "1920x1080", "3840x2160"})
+    public String canvas;
+
+    @Param({"1", "2", "4"})
+    public int sensorSize;
+
+    @Param({"Default", "BreadBug", "Vein", "Venom", "StarDust", "LiquidGem", "WaterBug", "BloodStealer", "Gene",
+        "Virus", "Alpha", "Beta", "FireFly", "FlourBug", "Parallel", "COVID", "Cell"})
+    public String preset;
+
+    private Simulation simulation;
+    private AgentStore agents;
+    private TrailMap trail;
+    private SummedAreaTable summedArea;
+    private SplittableRandom random;
+
+    @Setup
+    public void setup() {
+        simulation = SimulationState.create(canvas, 1, agentCount, preset, sensorSize);
+        agents = simulation.agents;
+        trail = simulation.trail;
+        summedArea = new SummedAreaTable(trail.width, trail.height, simulation.workers);
+        random = new SplittableRandom(SimulationState.SEED);
+    }
+
+    @TearDown
+    public void tearDown() {
+        simulation.shutdown();
+    }
+
+    @Benchmark
+    public void tick() {
+        for(int i = 0; i < agents.count; i++){
+            Agent.tick(agents, i, trail, random.nextDouble());
+        }
+    }
+
+    @Benchmark
+    public void sense(Blackhole blackhole) {
+        int sum = 0;
+        for(int i = 0; i < agents.count; i++){
+            sum += Agent.sense(agents, i, trail, agents.sensorOffsetAngle[i]);
+        }
+        blackhole.consume(sum);
+    }
+
+    @Benchmark
+    public void senseSummedArea(Blackhole blackhole) {
+        summedArea.build(trail, false);
+        trail.summedArea = summedArea;
+        int sum = 0;
+        for(int i = 0; i < agents.count; i++){
+            sum += Agent.sense(agents, i, trail, agents.sensorOffsetAngle[i]);
+        }
+        trail.summedArea = null;
+        blackhole.consume(sum);
+    }
+
+    @Benchmark
+    public void draw() {
+        for(int i = 0; i < agents.count; i++){
+            Agent.draw(agents, i, trail);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package Microbiome.Benchmarks;
+
+import Microbiome.Simulation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the deposit phase split between workers.
+ * One operation is one deposit of every agent, on presets that crowd many agents on the same pixels.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DepositBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int agentCount;
+
+    @Param({"Vein", "BloodStealer", "Default"})
+    public String preset;
+
+    //0 uses one worker per core.
+    @Param({"1", "0"})
+    public int workers;
+
+    private Simulation simulation;
+
+    @Setup
+    public void setup() {
+        simulation = SimulationState.create("1920x1080", workers, agentCount, preset, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        simulation.shutdown();
+    }
+
+    @Benchmark
+    public void deposit() {
+        simulation.deposit();
+    }
+}
@@ -0,0 +1,45 @@
+package Microbiome.Benchmarks;
+
+import Microbiome.Simulation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the diffuse and evaporate pass that replaced App.blur.
+ * One operation is one pass over the whole trail.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DiffuseBenchmark {
+
+    @Param({"700x500", "1920x1080", "3840x2160"})
+    public String canvas;
+
+    //0 uses one worker per core.
+    @Param({"1", "0"})
+    public int workers;
+
+    private Simulation simulation;
+
+    @Setup
+    public void setup() {
+        simulation = SimulationState.create(canvas, workers, 100000, "Default", 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        simulation.shutdown();
+    }
+
+    @Benchmark
+    public void diffuse() {
+        simulation.diffuse();
+    }
+}
@@ -0,0 +1,69 @@
+package Microbiome.Benchmarks;
+
+import Microbiome.AgentPresets.AgentPreset;
+import Microbiome.Checkpoint;
+import Microbiome.Simulation;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Builds the simulations the benchmarks run on.
+ */
+final class SimulationState {
+
+    static final long SEED = 42;            //Same seed for every benchmark so runs can be compared.
+    static final double SPAWN_AREA = 150;   //Maximum distance of the spawn area.
+    static final int WARMUP_STEPS = 20;     //Steps run before measuring so the trail has a pattern to sense.
+
+    //A checkpoint to start from instead of the spawn circle, set with -Pjmh.checkpoint. Null to spawn.
+    static final String CHECKPOINT = System.getProperty("microbiome.checkpoint");
+
+    private SimulationState() {}
+
+    /**
+     * Read a canvas size written as WIDTHxHEIGHT.
+     * @param canvas The canvas size.
+     * @return The width and the height.
+     */
+    static int[] parseCanvas(String canvas) {
+        String[] parts = canvas.split("x");
+        return new int[]{ Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) };
+    }
+
+    /**
+     * Create a simulation, spawn the agents of a preset in it and run a few steps.
+     * When a checkpoint is given, the simulation is restored from it instead and the other parameters only set the size.
+     * @param canvas The canvas size written as WIDTHxHEIGHT.
+     * @param workers The number of workers, 0 for one per core.
+     * @param agentCount Total agents to be spawned.
+     * @param presetName Name of the preset.
+     * @param sensorSize The sensor size of the agents, overriding the preset.
+     * @return The warmed up simulation.
+     */
+    static Simulation create(String canvas, int workers, int agentCount, String presetName, int sensorSize) {
+        int[] size = parseCanvas(canvas);
+        if(workers <= 0) workers = Runtime.getRuntime().availableProcessors();
+
+        AgentPreset preset = AgentPreset.find(AgentPreset.createAll(), presetName);
+        if(preset == null) throw new IllegalArgumentException("Unknown preset " + presetName);
+
+        Simulation simulation = new Simulation(size[0], size[1], workers, SEED);
+        if(CHECKPOINT != null){
+            try{
+                Checkpoint.restore(simulation, new File(CHECKPOINT));
+            }catch(IOException e){
+                throw new IllegalStateException("Can not restore " + CHECKPOINT, e);
+            }
+            return simulation;
+        }
+
+        simulation.spawn(agentCount, SPAWN_AREA, preset.moveSpeed, preset.turnSpeed, sensorSize,
+            preset.sensorDistance, preset.sensorOffsetAngle, preset.colorR, preset.colorG, preset.colorB);
+
+        for(int step = 0; step < WARMUP_STEPS; step++){
+            simulation.step();
+        }
+        return simulation;
+    }
+}
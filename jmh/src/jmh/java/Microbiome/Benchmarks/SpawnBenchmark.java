@@ -0,0 +1,51 @@
+package Microbiome.Benchmarks;
+
+import Microbiome.AgentPresets.AgentPreset;
+import Microbiome.Simulation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks spawning a whole population, which is what App.spawnAgents does when the preset changes.
+ * One operation is one spawn of every agent.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SpawnBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int agentCount;
+
+    @Param({"700x500", "1920x1080", "3840x2160"})
+    public String canvas;
+
+    @Param({"Default", "Vein", "WaterBug"})
+    public String preset;
+
+    private Simulation simulation;
+    private AgentPreset agentPreset;
+
+    @Setup
+    public void setup() {
+        int[] size = SimulationState.parseCanvas(canvas);
+        simulation = new Simulation(size[0], size[1], 1, SimulationState.SEED);
+        agentPreset = AgentPreset.find(AgentPreset.createAll(), preset);
+    }
+
+    @TearDown
+    public void tearDown() {
+        simulation.shutdown();
+    }
+
+    @Benchmark
+    public void spawn() {
+        simulation.spawn(agentCount, SimulationState.SPAWN_AREA, agentPreset);
+    }
+}